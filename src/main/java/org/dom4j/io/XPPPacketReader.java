@@ -24,6 +24,7 @@ import org.dom4j.DocumentException;
 import org.dom4j.DocumentFactory;
 import org.dom4j.Element;
 import org.dom4j.ElementHandler;
+import org.dom4j.Namespace;
 import org.dom4j.QName;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -62,6 +63,16 @@ public class XPPPacketReader {
 	 */
 	private DispatchHandler dispatchHandler;
 
+	/**
+	 * Default number of entries of the name cache
+	 */
+	private static final int DEFAULT_NAME_CACHE_SIZE = 512;
+
+	/**
+	 * Caches the qualified names and namespaces of the parsed documents
+	 */
+	private NameCache nameCache = new NameCache(DEFAULT_NAME_CACHE_SIZE);
+
 	public XPPPacketReader() {
 	}
 
@@ -259,6 +270,40 @@ public class XPPPacketReader {
 	 */
 	public void setDocumentFactory(final DocumentFactory factory) {
 		this.factory = factory;
+		// Names are bound to the factory that created them
+		nameCache = new NameCache(nameCache.entries.length);
+	}
+
+	/**
+	 * <p>
+	 * Sets the number of entries of the cache that resolves the element and
+	 * attribute names of the parsed documents. The size is rounded up to a
+	 * power of two. Names that do not fit in the cache are resolved through the
+	 * <code>DocumentFactory</code>.
+	 * </p>
+	 * 
+	 * @param size
+	 *            the number of entries of the name cache
+	 */
+	public void setNameCacheSize(final int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("Name cache size must be positive");
+		nameCache = new NameCache(size);
+	}
+
+	/**
+	 * @return the number of names that were resolved by the name cache
+	 */
+	public long getNameCacheHits() {
+		return nameCache.hits;
+	}
+
+	/**
+	 * @return the number of names that had to be resolved through the
+	 *         <code>DocumentFactory</code>
+	 */
+	public long getNameCacheMisses() {
+		return nameCache.misses;
 	}
 
 	/**
@@ -354,28 +399,26 @@ public class XPPPacketReader {
 				return document;
 			}
 			case XmlPullParser.START_TAG: {
-				final QName qname = pp.getPrefix() == null ? df.createQName(pp.getName(), pp.getNamespace()) : df.createQName(pp.getName(), pp.getPrefix(),
-						pp.getNamespace());
+				final NameCache.Entry name = nameCache.get(df, pp.getName(), pp.getPrefix(), pp.getNamespace());
 				Element newElement = null;
 				// Do not include the namespace if this is the start tag of a
 				// new packet
 				// This avoids including "jabber:client", "jabber:server" or
 				// "jabber:component:accept"
-				if ("jabber:client".equals(qname.getNamespaceURI()) || "jabber:server".equals(qname.getNamespaceURI())
-						|| "jabber:component:accept".equals(qname.getNamespaceURI()) || "http://jabber.org/protocol/httpbind".equals(qname.getNamespaceURI())) {
-					newElement = df.createElement(pp.getName());
+				if (name.stanzaNamespace) {
+					newElement = df.createElement(nameCache.get(df, pp.getName(), null, null).qname);
 				} else {
-					newElement = df.createElement(qname);
+					newElement = df.createElement(name.qname);
 				}
 				final int nsStart = pp.getNamespaceCount(pp.getDepth() - 1);
 				final int nsEnd = pp.getNamespaceCount(pp.getDepth());
 				for (int i = nsStart; i < nsEnd; i++)
 					if (pp.getNamespacePrefix(i) != null) {
-						newElement.addNamespace(pp.getNamespacePrefix(i), pp.getNamespaceUri(i));
+						newElement.add(nameCache.getNamespace(df, pp.getNamespacePrefix(i), pp.getNamespaceUri(i)));
 					}
 				for (int i = 0; i < pp.getAttributeCount(); i++) {
-					final QName qa = pp.getAttributePrefix(i) == null ? df.createQName(pp.getAttributeName(i)) : df.createQName(pp.getAttributeName(i),
-							pp.getAttributePrefix(i), pp.getAttributeNamespace(i));
+					final String prefix = pp.getAttributePrefix(i);
+					final QName qa = nameCache.get(df, pp.getAttributeName(i), prefix, prefix == null ? null : pp.getAttributeNamespace(i)).qname;
 					newElement.addAttribute(qa, pp.getAttributeValue(i));
 				}
 				if (parent != null) {
@@ -430,6 +473,111 @@ public class XPPPacketReader {
 	protected Reader createReader(final InputStream in) throws IOException {
 		return new BufferedReader(new InputStreamReader(in));
 	}
+
+	/**
+	 * Bounded, direct-mapped cache of the qualified names and namespaces of a
+	 * reader. XMPP streams repeat the same few hundred names over and over, so
+	 * most names are resolved without allocating anything nor going through
+	 * the synchronized caches of the <code>DocumentFactory</code>. An entry is
+	 * simply replaced when another name maps to the same slot.
+	 */
+	private static final class NameCache {
+
+		private final Entry[] entries;
+		private final Namespace[] namespaces;
+		private final int mask;
+		private long hits;
+		private long misses;
+
+		NameCache(final int size) {
+			int capacity = 1;
+			while (capacity < size) {
+				capacity <<= 1;
+			}
+			entries = new Entry[capacity];
+			namespaces = new Namespace[capacity];
+			mask = capacity - 1;
+		}
+
+		/**
+		 * Returns the name of an element or attribute. A <code>null</code>
+		 * namespace means that the name has no namespace at all.
+		 */
+		Entry get(final DocumentFactory df, final String name, final String prefix, final String namespace) {
+			final int index = hash(name, prefix, namespace) & mask;
+			Entry entry = entries[index];
+			if (entry != null && entry.name.equals(name) && equal(entry.prefix, prefix) && equal(entry.namespace, namespace)) {
+				hits++;
+				return entry;
+			}
+			misses++;
+			final QName qname;
+			if (namespace == null) {
+				qname = df.createQName(name);
+			} else if (prefix == null) {
+				qname = df.createQName(name, namespace);
+			} else {
+				qname = df.createQName(name, prefix, namespace);
+			}
+			entry = new Entry(name, prefix, namespace, qname);
+			entries[index] = entry;
+			return entry;
+		}
+
+		/**
+		 * Returns a namespace declared by an element.
+		 */
+		Namespace getNamespace(final DocumentFactory df, final String prefix, final String uri) {
+			final int index = hash(prefix, null, uri) & mask;
+			Namespace namespace = namespaces[index];
+			if (namespace != null && namespace.getPrefix().equals(prefix) && namespace.getURI().equals(uri)) {
+				hits++;
+				return namespace;
+			}
+			misses++;
+			namespace = df.createNamespace(prefix, uri);
+			namespaces[index] = namespace;
+			return namespace;
+		}
+
+		private static int hash(final String name, final String prefix, final String namespace) {
+			int h = name.hashCode();
+			if (prefix != null) {
+				h = h * 31 + prefix.hashCode();
+			}
+			if (namespace != null) {
+				h = h * 31 + namespace.hashCode();
+			}
+			return h ^ (h >>> 16);
+		}
+
+		private static boolean equal(final String a, final String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+
+		static final class Entry {
+
+			final String name;
+			final String prefix;
+			final String namespace;
+			final QName qname;
+			/**
+			 * True if the name is in one of the namespaces of the top-level
+			 * stanzas, which are left out of the created elements
+			 */
+			final boolean stanzaNamespace;
+
+			Entry(final String name, final String prefix, final String namespace, final QName qname) {
+				this.name = name;
+				this.prefix = prefix;
+				this.namespace = namespace;
+				this.qname = qname;
+				final String uri = qname.getNamespaceURI();
+				stanzaNamespace = "jabber:client".equals(uri) || "jabber:server".equals(uri) || "jabber:component:accept".equals(uri)
+						|| "http://jabber.org/protocol/httpbind".equals(uri);
+			}
+		}
+	}
 }
 
 /*
@@ -0,0 +1,83 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * OutputStream that writes to a socket channel regardless of its blocking
+ * mode. When the channel is non-blocking and its send buffer is full the
+ * writing thread waits on a private selector until the channel becomes
+ * writable again, so the reactor threads never have to handle writes.
+ */
+final class ChannelOutputStream extends OutputStream {
+
+	private final SocketChannel channel;
+	/**
+	 * Selector used to wait until a non-blocking channel is writable. Opened
+	 * the first time a write could not be completed.
+	 */
+	private Selector selector;
+
+	ChannelOutputStream(final SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+		while (buffer.hasRemaining()) {
+			if (channel.write(buffer) == 0) {
+				awaitWritable();
+			}
+		}
+	}
+
+	private void awaitWritable() throws IOException {
+		if (selector == null) {
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_WRITE);
+		}
+		selector.select();
+		selector.selectedKeys().clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (selector != null) {
+				selector.close();
+			}
+		} finally {
+			channel.close();
+		}
+	}
+}
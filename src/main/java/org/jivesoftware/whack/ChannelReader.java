@@ -0,0 +1,207 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import org.jivesoftware.whack.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads XMPP packets from a non-blocking socket channel and asks the component
+ * to process them. This is the counterpart of {@link SocketReadThread} for
+ * connections serviced by a {@link ComponentReactor}: instead of blocking on
+ * the socket it is invoked by a reactor thread whenever the channel has data
+ * available.
+ * <p>
+ *
+ * When the inbound queue of the component is full the reader stops reading
+ * the channel, which lets TCP push back on the server without holding up the
+ * other connections of the reactor thread. Reading is resumed on the reactor
+ * thread once the queue has room again.
+ */
+class ChannelReader {
+
+	private static final Logger log = LoggerFactory.getLogger(ChannelReader.class);
+
+	private final ExternalComponent component;
+	private final ComponentConnection connection;
+	private final SocketChannel channel;
+	private final ReadableByteChannel input;
+	private final StanzaFramer framer;
+	private volatile boolean shutdown = false;
+	private boolean closed = false;
+	/**
+	 * Key of the channel in the selector of its reactor thread.
+	 */
+	private volatile SelectionKey key;
+
+	/**
+	 * Creates a reader for a connection.
+	 *
+	 * @param connection
+	 *            The connection for which this reader is reading for
+	 * @param channel
+	 *            The channel of the connection
+	 * @param input
+	 *            The channel to read from, which decompresses the data of the
+	 *            connection if it is compressed
+	 * @param framer
+	 *            The framer that holds the data read while connecting
+	 */
+	ChannelReader(final ComponentConnection connection, final SocketChannel channel, final ReadableByteChannel input, final StanzaFramer framer) {
+		this.component = connection.getComponent();
+		this.connection = connection;
+		this.channel = channel;
+		this.input = input;
+		this.framer = framer;
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	SelectionKey getKey() {
+		return key;
+	}
+
+	/**
+	 * Notification from the reactor that the channel was registered.
+	 */
+	void registered(final SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Processes the buffered frames and reads the data available on the
+	 * channel. Invoked by a reactor thread.
+	 */
+	void read() {
+		if (closed) {
+			return;
+		}
+		try {
+			boolean readOnce = false;
+			while (true) {
+				final int event = framer.next();
+				if (event == StanzaFramer.STANZA) {
+					// Request the component to process the received packet
+					component.processFrame(framer);
+					if (component.isInboundFull()) {
+						pause();
+						return;
+					}
+				} else if (event == StanzaFramer.STREAM_END) {
+					// The server has sent an end of stream element and
+					// probably closed the connection
+					close();
+					return;
+				} else if (event == StanzaFramer.NEED_DATA) {
+					// Read only once per wake up so that a busy connection
+					// does not starve the other connections of this thread.
+					// Compressed connections are read until the decompressor
+					// is empty since the data it holds back does not wake up
+					// the selector.
+					if (readOnce && input == channel) {
+						return;
+					}
+					readOnce = true;
+					final int read = framer.read(input);
+					if (read == 0) {
+						return;
+					}
+					if (read < 0) {
+						close();
+						return;
+					}
+				}
+			}
+		} catch (final IOException e) {
+			if (!shutdown) {
+				log.error(e.getMessage());
+			}
+			close();
+		} catch (final Exception e) {
+			log.error("Error reading packet from the server", e);
+			close();
+		}
+	}
+
+	/**
+	 * Stops reading the channel until the inbound queue of the component has
+	 * room again. The frames already read are processed once resumed.
+	 */
+	private void pause() {
+		key.interestOps(0);
+		component.whenInboundAvailable(new Runnable() {
+			@Override
+			public void run() {
+				connection.getReactor().resume(ChannelReader.this);
+			}
+		});
+	}
+
+	/**
+	 * Reads the channel again after it was paused. Invoked by the reactor
+	 * thread of the channel.
+	 */
+	void resume() {
+		if (closed || !key.isValid()) {
+			return;
+		}
+		key.interestOps(SelectionKey.OP_READ);
+		read();
+	}
+
+	/**
+	 * Closes the channel and, unless this reader was shut down, asks the
+	 * connection to be reestablished. The connection is notified outside of
+	 * the reactor thread since it may take a while to handle the loss.
+	 */
+	private void close() {
+		closed = true;
+		try {
+			channel.close();
+		} catch (final IOException e) {
+			// Do nothing
+		}
+		if (!shutdown) {
+			TaskEngine.getInstance().submit(new Runnable() {
+				@Override
+				public void run() {
+					connection.connectionLost();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Asks the reader to stop processing packets. Once this method was invoked
+	 * no reconnection will be attempted if the channel gets closed.
+	 */
+	void shutdown() {
+		shutdown = true;
+	}
+}
@@ -0,0 +1,896 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.TimerTask;
+
+import org.dom4j.DocumentException;
+import org.dom4j.Element;
+import org.dom4j.io.XPPPacketReader;
+import org.jivesoftware.whack.util.StringUtils;
+import org.jivesoftware.whack.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+import org.xmpp.component.ComponentException;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.StreamError;
+
+/**
+ * Connection of an {@link ExternalComponent} with the server. The connection
+ * authenticates with the server, writes the packets sent through it from its
+ * own {@link PacketWriter} and hands the packets it reads to the component.
+ * When the connection is lost it reconnects on its own, buffering the packets
+ * sent meanwhile.
+ * <p>
+ *
+ * A component has several connections when the server allows the same
+ * subdomain to connect multiple times. Each connection has its own socket,
+ * reader and writer while the processing of the received packets is shared.
+ */
+class ComponentConnection {
+
+	private static final Logger log = LoggerFactory.getLogger(ComponentConnection.class);
+
+	/**
+	 * The utf-8 charset for decoding and encoding XMPP packet streams.
+	 */
+	private static String CHARSET = "UTF-8";
+
+	private final ExternalComponent component;
+	private final ExternalComponentManager manager;
+	/**
+	 * Position of the connection among the connections of the component.
+	 */
+	private final int index;
+
+	/**
+	 * Socket of the connection, or <tt>null</tt> if the connection goes
+	 * through a Unix domain socket.
+	 */
+	private Socket socket;
+	/**
+	 * Channel of the connection when it goes through a Unix domain socket,
+	 * which has no {@link Socket} adaptor, otherwise <tt>null</tt>.
+	 */
+	private SocketChannel unixChannel;
+	/**
+	 * Channel of the socket when the connection is serviced by a
+	 * {@link ComponentReactor}, otherwise <tt>null</tt>.
+	 */
+	private SocketChannel channel;
+	private StanzaFramer framer;
+	private StanzaParser parser;
+	/**
+	 * Stream framed by a {@link SocketReadThread} when parsing is offloaded.
+	 */
+	private InputStream framedInput;
+	/**
+	 * Source of the framed data when the connection is read by the
+	 * {@link ComponentReactor}. Either the channel or a channel decompressing
+	 * its data.
+	 */
+	private ReadableByteChannel channelInput;
+	/**
+	 * Compression of the current connection, or <tt>null</tt> if the
+	 * connection is not compressed.
+	 */
+	private volatile StreamCompression compression;
+	private ComponentReactor reactor;
+	private XmlPullParserFactory factory = null;
+	private XPPPacketReader reader = null;
+	private Writer writer = null;
+	/**
+	 * State of the connection with the server. Changed while holding the lock
+	 * of this connection.
+	 */
+	private volatile ExternalComponentManager.ConnectionState state = ExternalComponentManager.ConnectionState.CONNECTING;
+	/**
+	 * Number of attempts to reconnect since the connection was lost.
+	 */
+	private volatile int reconnectAttempts = 0;
+
+	/**
+	 * Queues the packets sent through this connection and writes them to the
+	 * server from a dedicated thread. Exchanged with the writer of a lost
+	 * connection when this connection takes over its traffic.
+	 */
+	private volatile PacketWriter packetWriter;
+
+	private String connectionID;
+	/**
+	 * Hold the full domain of the component. The full domain is composed by
+	 * the subdomain plus the domain of the server. E.g.
+	 * conference.jivesoftware.com. The domain may change after a connection has
+	 * been established with the server.
+	 */
+	private String domain;
+	/**
+	 * Server node the connection was last established with.
+	 */
+	private volatile ServerEndpoint endpoint;
+
+	/**
+	 * Thread that will read the XML from the socket and ask the component to
+	 * process the read packets.
+	 */
+	private SocketReadThread readerThread;
+	/**
+	 * Reader that processes the packets read by the reactor when the
+	 * connection is not using a blocking {@link SocketReadThread}.
+	 */
+	private ChannelReader channelReader;
+
+	/**
+	 * Creates a new connection of a component. The connection is not opened
+	 * until {@link #connect()} is invoked.
+	 *
+	 * @param component
+	 *            the component that owns the connection.
+	 * @param index
+	 *            the position of the connection among the connections of the
+	 *            component.
+	 */
+	ComponentConnection(final ExternalComponent component, final int index) {
+		this.component = component;
+		this.manager = component.getManager();
+		this.index = index;
+		packetWriter = new PacketWriter(this, manager.getSendQueueSize(), manager.getWriteTimeout(), manager.getFlushPolicy(), new OutboundBuffer(
+				manager.getReconnectBufferSize(), manager.getReconnectBufferBytes(), manager.getReconnectBufferTtl(), manager.getBufferOverflowPolicy()));
+	}
+
+	/**
+	 * Generates a connection with the server and tries to authenticate. If an
+	 * error occurs in any of the steps then a ComponentException is thrown.
+	 *
+	 * @throws ComponentException
+	 *             if an error happens during the connection and authentication
+	 *             steps with every server node.
+	 */
+	void connect() throws ComponentException {
+		if (manager.getSpoolDirectory() != null && !packetWriter.hasSpool()) {
+			// Every connection spools to its own files
+			final String name = index == 0 ? getSubdomain() : getSubdomain() + "-c" + index;
+			try {
+				packetWriter.setSpool(new OutboundSpool(manager.getSpoolDirectory(), name, manager.getSpoolSegmentSize(), manager.getMaxSpoolSize()));
+			} catch (final IOException e) {
+				throw new ComponentException(e);
+			}
+		}
+		changeState(null, ExternalComponentManager.ConnectionState.CONNECTING);
+		if (state == ExternalComponentManager.ConnectionState.SHUTDOWN) {
+			throw new ComponentException("Component was shut down");
+		}
+		try {
+			openAnyConnection();
+		} catch (final ComponentException e) {
+			changeState(ExternalComponentManager.ConnectionState.CONNECTING, ExternalComponentManager.ConnectionState.DISCONNECTED);
+			throw e;
+		}
+		if (!changeState(ExternalComponentManager.ConnectionState.CONNECTING, ExternalComponentManager.ConnectionState.CONNECTED)) {
+			// The component was shut down while connecting
+			disconnect();
+			throw new ComponentException("Component was shut down");
+		}
+	}
+
+	/**
+	 * Connects to the server and starts reading without blocking the caller.
+	 * If the connection fails, new attempts are scheduled like after a lost
+	 * connection.
+	 */
+	void connectInBackground() {
+		TaskEngine.getInstance().submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					connect();
+				} catch (final ComponentException e) {
+					if (state == ExternalComponentManager.ConnectionState.DISCONNECTED) {
+						log.warn("Error connecting the standby connection of " + getSubdomain() + ": " + e.getMessage());
+						reconnectAttempts = 0;
+						scheduleReconnect();
+					}
+					return;
+				}
+				startReading();
+			}
+		});
+	}
+
+	/**
+	 * Connects to the preferred server node. If it cannot be reached or
+	 * refuses the component, the other nodes are tried right away.
+	 */
+	private void openAnyConnection() throws ComponentException {
+		final EndpointSelector endpoints = component.getEndpoints();
+		final ServerEndpoint[] candidates = endpoints.candidates();
+		final ServerEndpoint avoided = component.getAvoidedEndpoint(this);
+		if (avoided != null && candidates.length > 1 && candidates[0] == avoided) {
+			// Try the other nodes first so that both connections do not go
+			// down together
+			System.arraycopy(candidates, 1, candidates, 0, candidates.length - 1);
+			candidates[candidates.length - 1] = avoided;
+		}
+		ComponentException failure = null;
+		for (final ServerEndpoint candidate : candidates) {
+			final long start = System.nanoTime();
+			try {
+				openConnection(candidate);
+			} catch (final ComponentException e) {
+				endpoints.failed(candidate);
+				if (endpoints.size() > 1) {
+					log.warn("Error connecting " + getSubdomain() + " to " + candidate + ": " + e.getMessage());
+				}
+				failure = e;
+				continue;
+			}
+			endpoints.connected(candidate, System.nanoTime() - start);
+			endpoint = candidate;
+			return;
+		}
+		throw failure;
+	}
+
+	private void openConnection(final ServerEndpoint endpoint) throws ComponentException {
+		final String subdomain = getSubdomain();
+		compression = null;
+		try {
+			// Open a socket to the server. The handshake is done in blocking
+			// mode. With the reactor the channel is switched to non-blocking
+			// mode once it was authenticated.
+			if (endpoint.isUnixSocket()) {
+				socket = null;
+				unixChannel = UnixDomainSocket.connect(endpoint.getSocketPath());
+				channel = manager.getTransport() == ExternalComponentManager.Transport.REACTOR ? unixChannel : null;
+			} else {
+				unixChannel = null;
+				if (manager.getTransport() == ExternalComponentManager.Transport.REACTOR) {
+					channel = SocketChannel.open();
+					socket = channel.socket();
+				} else {
+					channel = null;
+					// A channel is only needed for reading into a direct buffer
+					socket = manager.isDirectReadBuffer() ? SocketChannel.open().socket() : new Socket();
+				}
+				socket.connect(new InetSocketAddress(endpoint.getHost(), endpoint.getPort()), manager.getConnectTimeout());
+			}
+			if (manager.getServerName() != null) {
+				domain = subdomain + "." + manager.getServerName();
+			} else {
+				domain = subdomain;
+			}
+
+			try {
+				final OutputStream out;
+				if (channel != null || component.isFramed()) {
+					// Frames are cut from the raw stream so that the reactor
+					// can keep reading where the handshake stopped, or so
+					// that the stanzas can be parsed by other threads or on
+					// demand
+					framer = new StanzaFramer(manager.getReadBufferSize(), manager.getMaxStanzaSize());
+					parser = new StanzaParser();
+					if (channel != null) {
+						framedInput = null;
+						channelInput = channel;
+						out = new ChannelOutputStream(channel);
+					} else {
+						framedInput = getInputStream();
+						out = getOutputStream();
+					}
+				} else {
+					framer = null;
+					parser = null;
+					factory = XmlPullParserFactory.newInstance();
+					reader = new XPPPacketReader();
+					reader.setXPPFactory(factory);
+
+					// Decode the stream from large chunks instead of going
+					// through a generic charset decoder
+					final Utf8Reader input;
+					if (unixChannel != null) {
+						input = new Utf8Reader(unixChannel, manager.getReadBufferSize(), true);
+					} else if (socket.getChannel() != null) {
+						input = new Utf8Reader(socket.getChannel(), manager.getReadBufferSize(), true);
+					} else {
+						input = new Utf8Reader(socket.getInputStream(), manager.getReadBufferSize());
+					}
+					reader.getXPPParser().setInput(input);
+					out = getOutputStream();
+				}
+
+				// Get a writer for sending the open stream tag
+				writer = createWriter(out);
+				// Open the stream.
+				openStream(subdomain);
+
+				// Get the answer from the server
+				readStreamHeader();
+
+				// Handshake with the server
+				StringBuilder stream = new StringBuilder();
+				stream.append("<handshake>");
+				stream.append(StringUtils.hash(connectionID + manager.getSecretKey(subdomain)));
+				stream.append("</handshake>");
+				writer.write(stream.toString());
+				writer.flush();
+				stream = null;
+
+				// Get the answer from the server
+				try {
+					final Element doc = readElement();
+					if ("error".equals(doc.getName())) {
+						final StreamError error = new StreamError(doc);
+						// Close the connection
+						closeSocket();
+						// throw the exception with the wrapped error
+						throw new ComponentException(error);
+					}
+					// Everything went fine
+					if (manager.isCompression()) {
+						negotiateCompression(out, subdomain);
+					}
+					if (channel != null) {
+						reactor = manager.getReactor();
+						channel.configureBlocking(false);
+					}
+					packetWriter.setOutput(writer);
+					// Heartbeats and IQ result timeouts are handled by the
+					// sweep of the manager
+				} catch (final DocumentException e) {
+					try {
+						closeSocket();
+					} catch (final IOException ioe) {
+						// Do nothing
+					}
+					throw new ComponentException(e);
+				} catch (final XmlPullParserException e) {
+					try {
+						closeSocket();
+					} catch (final IOException ioe) {
+						// Do nothing
+					}
+					throw new ComponentException(e);
+				}
+			} catch (final XmlPullParserException e) {
+				try {
+					closeSocket();
+				} catch (final IOException ioe) {
+					// Do nothing
+				}
+				throw new ComponentException(e);
+			}
+		} catch (final UnknownHostException uhe) {
+			try {
+				closeSocket();
+			} catch (final IOException e) {
+				// Do nothing
+			}
+			throw new ComponentException(uhe);
+		} catch (final IOException ioe) {
+			try {
+				closeSocket();
+			} catch (final IOException e) {
+				// Do nothing
+			}
+			throw new ComponentException(ioe);
+		}
+	}
+
+	private InputStream getInputStream() throws IOException {
+		return unixChannel != null ? Channels.newInputStream(unixChannel) : socket.getInputStream();
+	}
+
+	private OutputStream getOutputStream() throws IOException {
+		// Unlike the streams returned by Channels and the streams of a socket
+		// opened from a channel, this stream does not wait for a blocked read
+		// of the channel to complete
+		if (unixChannel != null) {
+			return new ChannelOutputStream(unixChannel);
+		}
+		return socket.getChannel() != null ? new ChannelOutputStream(socket.getChannel()) : socket.getOutputStream();
+	}
+
+	private boolean isSocketOpen() {
+		return unixChannel != null ? unixChannel.isOpen() : socket != null && !socket.isClosed();
+	}
+
+	/**
+	 * Closes the socket of the connection, or its channel when the connection
+	 * goes through a Unix domain socket.
+	 */
+	private void closeSocket() throws IOException {
+		if (unixChannel != null) {
+			unixChannel.close();
+		} else if (socket != null) {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Creates the writer of a connection. The byte buffer holds a whole batch
+	 * so that it reaches the socket at once.
+	 */
+	private Writer createWriter(final OutputStream out) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new BufferedOutputStream(out, manager.getFlushPolicy().getMaxBatchBytes()), CHARSET));
+	}
+
+	/**
+	 * Sends the stream header to the server. Components with several
+	 * connections or a standby connection always ask the server to accept
+	 * multiple connections.
+	 */
+	private void openStream(final String subdomain) throws IOException {
+		final StringBuilder stream = new StringBuilder();
+		stream.append("<stream:stream");
+		stream.append(" xmlns=\"jabber:component:accept\"");
+		stream.append(" xmlns:stream=\"http://etherx.jabber.org/streams\"");
+		if (manager.isMultipleAllowed(subdomain) || component.hasMultipleConnections()) {
+			stream.append(" allowMultiple=\"true\"");
+		}
+		stream.append(" to=\"").append(domain).append("\">");
+		writer.write(stream.toString());
+		writer.flush();
+	}
+
+	/**
+	 * Asks the server to compress the authenticated connection as defined in
+	 * XEP-0138. If the server agrees, the streams of the connection are
+	 * replaced with compressing ones and the stream is restarted. If the
+	 * server declines, the connection goes on uncompressed.
+	 */
+	private void negotiateCompression(final OutputStream out, final String subdomain) throws IOException, XmlPullParserException,
+			DocumentException, ComponentException {
+		writer.write("<compress xmlns=\"" + StreamCompression.NAMESPACE + "\"><method>zlib</method></compress>");
+		writer.flush();
+		final Element answer = readElement();
+		if ("failure".equals(answer.getName())) {
+			log.warn("The server refused to compress the connection of " + subdomain);
+			return;
+		}
+		if ("error".equals(answer.getName())) {
+			final StreamError error = new StreamError(answer);
+			closeSocket();
+			throw new ComponentException(error);
+		}
+		if (!"compressed".equals(answer.getName())) {
+			closeSocket();
+			throw new ComponentException("Unexpected answer to the compression request: " + answer.asXML());
+		}
+		// Nothing is sent by the server until the stream is restarted so no
+		// compressed data was read yet
+		final StreamCompression compression = new StreamCompression(manager.getCompressionLevel(), manager.getCompressionFlush());
+		writer = createWriter(compression.compress(out));
+		if (framer != null) {
+			framer = new StanzaFramer(manager.getReadBufferSize(), manager.getMaxStanzaSize());
+			if (channel != null) {
+				channelInput = compression.decompress(channel);
+			} else {
+				framedInput = compression.decompress(framedInput);
+			}
+		} else {
+			reader.getXPPParser().setInput(new Utf8Reader(compression.decompress(getInputStream()), manager.getReadBufferSize()));
+		}
+		this.compression = compression;
+		openStream(subdomain);
+		readStreamHeader();
+	}
+
+	/**
+	 * Returns true if the connection with the server is compressed.
+	 *
+	 * @return true if the connection is compressed.
+	 */
+	boolean isCompressed() {
+		return compression != null;
+	}
+
+	/**
+	 * Returns the ratio between the size of the data exchanged with the
+	 * server on the current connection and its compressed size.
+	 *
+	 * @return the compression ratio, or 1 if the connection is not
+	 *         compressed.
+	 */
+	double getCompressionRatio() {
+		final StreamCompression compression = this.compression;
+		return compression != null ? compression.getRatio() : 1;
+	}
+
+	/**
+	 * Reads the stream header sent by the server and keeps the stream ID and
+	 * the domain assigned to the component.
+	 */
+	private void readStreamHeader() throws IOException, XmlPullParserException {
+		if (framer != null) {
+			awaitFrame(StanzaFramer.STREAM_START);
+			connectionID = framer.attribute("id");
+			if (framer.attribute("from") != null) {
+				domain = framer.attribute("from");
+			}
+			return;
+		}
+		final XmlPullParser xpp = reader.getXPPParser();
+		for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;) {
+			eventType = xpp.next();
+		}
+
+		// Set the streamID returned from the server
+		connectionID = xpp.getAttributeValue("", "id");
+		if (xpp.getAttributeValue("", "from") != null) {
+			domain = xpp.getAttributeValue("", "from");
+		}
+	}
+
+	/**
+	 * Reads the next element sent by the server while connecting.
+	 */
+	private Element readElement() throws DocumentException, IOException, XmlPullParserException {
+		if (framer != null) {
+			awaitFrame(StanzaFramer.STANZA);
+			return parser.parseElement(framer.array(), framer.frameOffset(), framer.frameLength());
+		}
+		return reader.parseDocument().getRootElement();
+	}
+
+	/**
+	 * Blocks reading from the connection until the framer returns a frame of
+	 * the expected type.
+	 */
+	private void awaitFrame(final int type) throws IOException {
+		while (true) {
+			final int event = framer.next();
+			if (event == type) {
+				return;
+			}
+			if (event == StanzaFramer.STREAM_END) {
+				throw new EOFException("Stream closed by the server");
+			}
+			if (event == StanzaFramer.NEED_DATA && (channel != null ? framer.read(channelInput) : framer.read(framedInput)) < 0) {
+				throw new EOFException("Connection closed by the server");
+			}
+		}
+	}
+
+	ExternalComponent getComponent() {
+		return component;
+	}
+
+	String getSubdomain() {
+		return component.getSubdomain();
+	}
+
+	/**
+	 * Returns the domain assigned to the component by the server on this
+	 * connection.
+	 *
+	 * @return the domain of the component.
+	 */
+	String getDomain() {
+		return domain;
+	}
+
+	/**
+	 * Returns the server node the connection was last established with.
+	 *
+	 * @return the server node, or <tt>null</tt> if the connection was never
+	 *         established.
+	 */
+	ServerEndpoint getEndpoint() {
+		return endpoint;
+	}
+
+	PacketWriter getPacketWriter() {
+		return packetWriter;
+	}
+
+	/**
+	 * Starts reading the packets sent by the server on this connection.
+	 */
+	void startReading() {
+		if (channel != null) {
+			channelReader = new ChannelReader(this, channel, channelInput, framer);
+			reactor.register(channelReader);
+		} else if (framer != null) {
+			readerThread = new SocketReadThread(this, framer, framedInput);
+			readerThread.setDaemon(true);
+			readerThread.start();
+		} else {
+			readerThread = new SocketReadThread(this, reader);
+			readerThread.setDaemon(true);
+			readerThread.start();
+		}
+	}
+
+	/**
+	 * Queues a packet for being sent to the server through this connection.
+	 *
+	 * @param packet
+	 *            the packet to send.
+	 */
+	void send(final Packet packet) {
+		packetWriter.send(packet);
+	}
+
+	/**
+	 * Takes over the traffic of a lost connection. The packet writers of both
+	 * connections are exchanged, so the packets queued, buffered or spooled
+	 * by the lost connection are written to this connection right away while
+	 * the lost connection keeps the idle writer of this one.
+	 *
+	 * @param lost
+	 *            the connection that was lost.
+	 * @return false if this connection is not connected either.
+	 */
+	boolean takeOver(final ComponentConnection lost) {
+		synchronized (this) {
+			if (state != ExternalComponentManager.ConnectionState.CONNECTED) {
+				return false;
+			}
+			final PacketWriter own = packetWriter;
+			// Stop the own writer from writing to the connection before the
+			// other writer starts writing to it
+			own.detachOutput();
+			final PacketWriter taken = lost.packetWriter;
+			lost.packetWriter = own;
+			own.setConnection(lost);
+			packetWriter = taken;
+			taken.setConnection(this);
+			taken.setOutput(writer);
+		}
+		return true;
+	}
+
+	ComponentReactor getReactor() {
+		return reactor;
+	}
+
+	/**
+	 * Sends a heartbeat if no packet was sent through this connection for a
+	 * while. Drops the connection if a write has been blocked for longer than
+	 * the write timeout, since a stalled write is otherwise only noticed once
+	 * the send queue is full.
+	 *
+	 * @param now
+	 *            the current time in milliseconds.
+	 * @param keepAliveInterval
+	 *            the number of milliseconds without sending packets after
+	 *            which a heartbeat is sent.
+	 */
+	void keepAlive(final long now, final long keepAliveInterval) {
+		if (state != ExternalComponentManager.ConnectionState.CONNECTED) {
+			return;
+		}
+		packetWriter.checkStalled();
+		if (now - packetWriter.getLastActive() >= keepAliveInterval) {
+			packetWriter.sendHeartbeat();
+		}
+	}
+
+	/**
+	 * Notification from the {@link PacketWriter} that the connection can no
+	 * longer be written to. The socket is closed so that a blocked write is
+	 * released and the connection is reestablished outside of the writer
+	 * thread.
+	 */
+	void outputFailed() {
+		if (state != ExternalComponentManager.ConnectionState.CONNECTED) {
+			return;
+		}
+		try {
+			closeSocket();
+		} catch (final IOException e) {
+			// Do nothing
+		}
+		TaskEngine.getInstance().submit(new Runnable() {
+			@Override
+			public void run() {
+				connectionLost();
+			}
+		});
+	}
+
+	/**
+	 * Marks the connection as shut down so that it is never reestablished.
+	 */
+	void shutdown() {
+		changeState(null, ExternalComponentManager.ConnectionState.SHUTDOWN);
+	}
+
+	/**
+	 * Stops reading, sends the packets still queued and closes the
+	 * connection.
+	 */
+	void disconnect() {
+		if (readerThread != null) {
+			readerThread.shutdown();
+		}
+		if (channelReader != null) {
+			channelReader.shutdown();
+		}
+		if (isSocketOpen()) {
+			// Send the packets still queued before closing the stream
+			packetWriter.closeStream();
+			try {
+				closeSocket();
+			} catch (final Exception e) {
+				log.error(e.getMessage());
+			}
+		}
+		packetWriter.shutdown();
+	}
+
+	/**
+	 * Notification message that the connection with the server was lost
+	 * unexpectedly. The component is notified and a new connection is
+	 * scheduled after a delay that grows with every failed attempt, so this
+	 * method returns quickly and senders are never held up by a reconnection.
+	 * Packets sent through this connection while disconnected are buffered and
+	 * sent after the reconnection.
+	 */
+	void connectionLost() {
+		// Ensure that only one thread will try to reconnect.
+		if (!changeState(ExternalComponentManager.ConnectionState.CONNECTED, ExternalComponentManager.ConnectionState.DISCONNECTED)) {
+			return;
+		}
+		// Stop writing to the lost connection
+		packetWriter.clearOutput();
+		try {
+			closeSocket();
+		} catch (final IOException e) {
+			// Do nothing
+		}
+		readerThread = null;
+		channelReader = null;
+		// Avoid the node for a while in case it went down
+		component.getEndpoints().failed(endpoint);
+		component.connectionDown(this);
+		reconnectAttempts = 0;
+		scheduleReconnect();
+	}
+
+	/**
+	 * Schedules the next attempt to reconnect with the server. The delay
+	 * doubles with every attempt and is randomized so that components that
+	 * lost their connections together do not all reconnect at the same time.
+	 * When there are other server nodes, the first attempt fails over to them
+	 * right away.
+	 */
+	private void scheduleReconnect() {
+		final int attempt = ++reconnectAttempts;
+		final long delay = attempt == 1 && component.getEndpoints().size() > 1 ? 0 : manager.getReconnectDelay(attempt - 1);
+		for (final ConnectionListener listener : manager.getConnectionListeners()) {
+			try {
+				listener.reconnectScheduled(component, attempt, delay);
+			} catch (final RuntimeException e) {
+				log.error("Error notifying connection listener", e);
+			}
+		}
+		TaskEngine.getInstance().schedule(new TimerTask() {
+			@Override
+			public void run() {
+				// Connecting blocks until the server answers so it is done
+				// outside of the timer threads
+				TaskEngine.getInstance().submit(new Runnable() {
+					@Override
+					public void run() {
+						reconnect();
+					}
+				});
+			}
+		}, delay);
+	}
+
+	/**
+	 * Tries to establish a new connection with the server. Another attempt is
+	 * scheduled if it fails.
+	 */
+	private void reconnect() {
+		if (!changeState(ExternalComponentManager.ConnectionState.DISCONNECTED, ExternalComponentManager.ConnectionState.CONNECTING)) {
+			// The component was shut down while waiting
+			return;
+		}
+		try {
+			openAnyConnection();
+		} catch (final ComponentException e) {
+			log.error("Error trying to reconnect with the server (attempt " + reconnectAttempts + ")", e);
+			if (changeState(ExternalComponentManager.ConnectionState.CONNECTING, ExternalComponentManager.ConnectionState.DISCONNECTED)) {
+				scheduleReconnect();
+			}
+			return;
+		}
+		if (!changeState(ExternalComponentManager.ConnectionState.CONNECTING, ExternalComponentManager.ConnectionState.CONNECTED)) {
+			// The component was shut down while the new connection was being
+			// established so close the new connection
+			disconnect();
+			return;
+		}
+		reconnectAttempts = 0;
+		startReading();
+		// The component is back again working so start it up again
+		component.connectionUp();
+	}
+
+	/**
+	 * Moves the connection to a new state and notifies the listeners. A
+	 * connection that was shut down keeps its state.
+	 *
+	 * @param expected
+	 *            the state the connection must be in, or <tt>null</tt> for any
+	 *            state.
+	 * @param newState
+	 *            the new state.
+	 * @return true if the state was changed.
+	 */
+	private boolean changeState(final ExternalComponentManager.ConnectionState expected, final ExternalComponentManager.ConnectionState newState) {
+		final ExternalComponentManager.ConnectionState previous;
+		synchronized (this) {
+			previous = state;
+			if (previous == newState || previous == ExternalComponentManager.ConnectionState.SHUTDOWN || (expected != null && previous != expected)) {
+				return false;
+			}
+			state = newState;
+		}
+		for (final ConnectionListener listener : manager.getConnectionListeners()) {
+			try {
+				listener.connectionStateChanged(component, previous, newState);
+			} catch (final RuntimeException e) {
+				log.error("Error notifying connection listener", e);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the state of the connection with the server.
+	 *
+	 * @return the state of the connection.
+	 */
+	ExternalComponentManager.ConnectionState getState() {
+		return state;
+	}
+
+	/**
+	 * Returns the number of attempts to reconnect since the connection was
+	 * lost, or 0 while connected.
+	 *
+	 * @return the number of attempts to reconnect.
+	 */
+	int getReconnectAttempts() {
+		return reconnectAttempts;
+	}
+}
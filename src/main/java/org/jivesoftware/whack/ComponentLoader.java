@@ -65,11 +65,48 @@ public class ComponentLoader {
 		final String serverDomain = serverConf.getProperty("whack.domain", serverHost);
 		final String defaultKey = serverConf.getProperty("whack.secret");
 		final int timeout = Integer.parseInt(serverConf.getProperty("whack.timeout", "2000"));
+		final String transport = serverConf.getProperty("whack.transport", "blocking");
+		final int reactorThreads = Integer.parseInt(serverConf.getProperty("whack.reactor.threads", "2"));
+		final int inboundQueueSize = Integer.parseInt(serverConf.getProperty("whack.inbound.queue", "10000"));
+		final String overloadPolicy = serverConf.getProperty("whack.inbound.overload", "block");
+		final long reconnectDelay = Long.parseLong(serverConf.getProperty("whack.reconnect.delay", "1000"));
+		final long maxReconnectDelay = Long.parseLong(serverConf.getProperty("whack.reconnect.maxdelay", "60000"));
+		final int reconnectBufferSize = Integer.parseInt(serverConf.getProperty("whack.reconnect.buffer", "10000"));
+		final long reconnectBufferTtl = Long.parseLong(serverConf.getProperty("whack.reconnect.buffer.ttl", "30000"));
+		final String spoolDirectory = serverConf.getProperty("whack.spool.dir");
+		final boolean compression = Boolean.parseBoolean(serverConf.getProperty("whack.compression", "false"));
+		final String endpoints = serverConf.getProperty("whack.endpoints", "");
+		final String unixSocket = serverConf.getProperty("whack.unix.socket");
+		final int maxStanzaSize = Integer.parseInt(serverConf.getProperty("whack.stanza.maxsize", "1048576"));
 
 		manager = new ExternalComponentManager(serverHost, serverPort);
 		manager.setDefaultSecretKey(defaultKey);
 		manager.setServerName(serverDomain);
 		manager.setConnectTimeout(timeout);
+		manager.setTransport(ExternalComponentManager.Transport.valueOf(transport.toUpperCase()));
+		manager.setReactorThreads(reactorThreads);
+		manager.setInboundQueueSize(inboundQueueSize);
+		manager.setOverloadPolicy(ExternalComponentManager.OverloadPolicy.valueOf(overloadPolicy.toUpperCase()));
+		manager.setReconnectDelay(reconnectDelay);
+		manager.setMaxReconnectDelay(maxReconnectDelay);
+		manager.setReconnectBufferSize(reconnectBufferSize);
+		manager.setReconnectBufferTtl(reconnectBufferTtl);
+		if (spoolDirectory != null) {
+			manager.setSpoolDirectory(new File(spoolDirectory));
+		}
+		manager.setCompression(compression);
+		manager.setUnixSocketPath(unixSocket);
+		manager.setMaxStanzaSize(maxStanzaSize);
+		// Other server nodes as host[:port[:weight]] separated by commas
+		for (final String endpoint : endpoints.split(",")) {
+			if (endpoint.trim().length() == 0) {
+				continue;
+			}
+			final String[] parts = endpoint.trim().split(":");
+			final int port = parts.length > 1 ? Integer.parseInt(parts[1]) : serverPort;
+			final int weight = parts.length > 2 ? Integer.parseInt(parts[2]) : 1;
+			manager.addServerEndpoint(parts[0], port, weight);
+		}
 
 		for (final String componentID : serverConf.getProperty("whack.components", "").split(",")) {
 			if (!componentID.matches("\\w+") || componentID.equals("server")) {
@@ -82,6 +119,10 @@ public class ComponentLoader {
 			final String subdomain = serverConf.getProperty(componentID + ".subdomain");
 			final String secretKey = serverConf.getProperty(componentID + ".secret");
 			final boolean multi = Boolean.parseBoolean(serverConf.getProperty(componentID + ".multi"));
+			final String execution = serverConf.getProperty(componentID + ".execution");
+			final String concurrency = serverConf.getProperty(componentID + ".concurrency");
+			final String connections = serverConf.getProperty(componentID + ".connections");
+			final boolean standby = Boolean.parseBoolean(serverConf.getProperty(componentID + ".standby"));
 
 			if (className == null || subdomain == null) {
 				log.error(componentID + ".class and " + componentID + ".subdomain must be set");
@@ -99,6 +140,17 @@ public class ComponentLoader {
 
 				manager.setMultipleAllowed(subdomain, multi);
 
+				if (execution != null) {
+					manager.setExecution(subdomain, ExternalComponentManager.Execution.valueOf(execution.toUpperCase()));
+				}
+				if (concurrency != null) {
+					manager.setMaxConcurrency(subdomain, Integer.parseInt(concurrency));
+				}
+				if (connections != null) {
+					manager.setConnectionCount(subdomain, Integer.parseInt(connections));
+				}
+				manager.setHotStandby(subdomain, standby);
+
 				try {
 					manager.addComponent(subdomain, newComponent);
 				} catch (final ComponentException e) {
@@ -0,0 +1,191 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the connections of many external components with a small, fixed
+ * number of threads. Each thread owns a {@link Selector} and connections are
+ * spread over the threads in a round-robin fashion when registered. This is
+ * the non-blocking alternative to running one {@link SocketReadThread} per
+ * component.
+ */
+class ComponentReactor {
+
+	private static final Logger log = LoggerFactory.getLogger(ComponentReactor.class);
+
+	private final ReactorThread[] threads;
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Creates and starts a reactor.
+	 *
+	 * @param threadCount
+	 *            the number of threads that will service the connections.
+	 * @throws IOException
+	 *             if a selector could not be opened.
+	 */
+	ComponentReactor(final int threadCount) throws IOException {
+		threads = new ReactorThread[Math.max(1, threadCount)];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new ReactorThread("Component reactor " + (i + 1));
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * Starts reading a connection on one of the reactor threads. The channel
+	 * of the reader must already be in non-blocking mode.
+	 *
+	 * @param reader
+	 *            the reader of the connection.
+	 */
+	void register(final ChannelReader reader) {
+		final ReactorThread thread = threads[(next.getAndIncrement() & Integer.MAX_VALUE) % threads.length];
+		thread.pending.add(reader);
+		thread.selector.wakeup();
+	}
+
+	/**
+	 * Resumes the reading of a paused connection on the thread that reads it.
+	 *
+	 * @param reader
+	 *            the reader of the connection.
+	 */
+	void resume(final ChannelReader reader) {
+		final SelectionKey key = reader.getKey();
+		for (final ReactorThread thread : threads) {
+			if (thread.selector == key.selector()) {
+				thread.resumed.add(reader);
+				thread.selector.wakeup();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the calling thread is a reactor thread, which must
+	 * never block since it reads many connections.
+	 *
+	 * @return true if called by a reactor thread.
+	 */
+	static boolean isReactorThread() {
+		return Thread.currentThread() instanceof ReactorThread;
+	}
+
+	/**
+	 * Stops all reactor threads. Registered connections are not closed.
+	 */
+	void shutdown() {
+		for (final ReactorThread thread : threads) {
+			thread.shutdown = true;
+			thread.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Thread that waits for readable connections and asks their readers to
+	 * process the available data.
+	 */
+	private static class ReactorThread extends Thread {
+
+		private final Selector selector;
+		private final Queue<ChannelReader> pending = new ConcurrentLinkedQueue<ChannelReader>();
+		/**
+		 * Readers that were paused and can read again.
+		 */
+		private final Queue<ChannelReader> resumed = new ConcurrentLinkedQueue<ChannelReader>();
+		private volatile boolean shutdown = false;
+
+		ReactorThread(final String name) throws IOException {
+			super(name);
+			selector = Selector.open();
+		}
+
+		@Override
+		public void run() {
+			while (!shutdown) {
+				try {
+					selector.select();
+					registerPending();
+					resumePending();
+					final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						final SelectionKey key = it.next();
+						it.remove();
+						try {
+							if (key.isValid() && key.isReadable()) {
+								((ChannelReader) key.attachment()).read();
+							}
+						} catch (final CancelledKeyException e) {
+							// The connection was closed while processing it
+						}
+					}
+				} catch (final Exception e) {
+					log.error("Error in component reactor", e);
+				}
+			}
+			try {
+				selector.close();
+			} catch (final IOException e) {
+				// Do nothing
+			}
+		}
+
+		private void registerPending() {
+			ChannelReader reader;
+			while ((reader = pending.poll()) != null) {
+				try {
+					reader.registered(reader.getChannel().register(selector, SelectionKey.OP_READ, reader));
+				} catch (final ClosedChannelException e) {
+					// The connection was closed before it could be registered
+					continue;
+				}
+				// Process any data that was already buffered while connecting
+				reader.read();
+			}
+		}
+
+		private void resumePending() {
+			ChannelReader reader;
+			while ((reader = resumed.poll()) != null) {
+				try {
+					reader.resume();
+				} catch (final CancelledKeyException e) {
+					// The connection was closed while it was paused
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+/**
+ * Listener of the connections of the components of an
+ * {@link ExternalComponentManager}. Listeners are notified by the thread that
+ * changed the connection so they should return quickly.
+ */
+public interface ConnectionListener {
+
+	/**
+	 * The connection of a component changed its state.
+	 * 
+	 * @param component
+	 *            the component whose connection changed.
+	 * @param previous
+	 *            the previous state of the connection.
+	 * @param state
+	 *            the new state of the connection.
+	 */
+	void connectionStateChanged(ExternalComponent component, ExternalComponentManager.ConnectionState previous,
+			ExternalComponentManager.ConnectionState state);
+
+	/**
+	 * An attempt to reconnect a component was scheduled.
+	 * 
+	 * @param component
+	 *            the component that will reconnect.
+	 * @param attempt
+	 *            the number of the attempt, starting with 1.
+	 * @param delay
+	 *            the number of milliseconds before the attempt.
+	 */
+	void reconnectScheduled(ExternalComponent component, int attempt, long delay);
+}
@@ -0,0 +1,189 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which server node the connections of a component try first. Nodes
+ * are tried in order of preference:
+ * <ol>
+ * <li>Nodes that are up and whose handshake latency is known, the fastest
+ * first. The latency is divided by the weight of the node so heavier nodes
+ * are preferred.</li>
+ * <li>Nodes that are up and were never connected to, the heavier first and
+ * then in the order they were added.</li>
+ * <li>Nodes that failed recently, the one that failed first at the head.</li>
+ * </ol>
+ * A node is considered down for the retry delay after a connection to it
+ * failed or was lost, so that reconnections go straight to another node
+ * instead of retrying a dead one. Down nodes are still tried once every
+ * other node failed.
+ * <p>
+ *
+ * Instances are thread safe.
+ */
+final class EndpointSelector {
+
+	private final ServerEndpoint[] endpoints;
+	private final long retryDelayNanos;
+	/**
+	 * Smoothed handshake latency of each node in nanoseconds, or 0 if it was
+	 * never connected to.
+	 */
+	private final long[] latencies;
+	/**
+	 * True for the nodes that are considered down.
+	 */
+	private final boolean[] down;
+	/**
+	 * Time (in nanoseconds) of the last failure of each node that is down.
+	 */
+	private final long[] failedAt;
+
+	/**
+	 * Creates a selector for a list of nodes.
+	 *
+	 * @param endpoints
+	 *            the nodes, in the order they are tried when nothing is known
+	 *            about them.
+	 * @param retryDelay
+	 *            the time in milliseconds a node is avoided after a failure.
+	 */
+	EndpointSelector(final List<ServerEndpoint> endpoints, final long retryDelay) {
+		if (endpoints.isEmpty())
+			throw new IllegalArgumentException("At least one server endpoint is required");
+		this.endpoints = endpoints.toArray(new ServerEndpoint[endpoints.size()]);
+		this.retryDelayNanos = TimeUnit.MILLISECONDS.toNanos(retryDelay);
+		latencies = new long[this.endpoints.length];
+		down = new boolean[this.endpoints.length];
+		failedAt = new long[this.endpoints.length];
+	}
+
+	/**
+	 * Returns the number of nodes.
+	 *
+	 * @return the number of nodes.
+	 */
+	int size() {
+		return endpoints.length;
+	}
+
+	/**
+	 * Returns all the nodes in the order they should be tried.
+	 *
+	 * @return the nodes, the preferred first.
+	 */
+	synchronized ServerEndpoint[] candidates() {
+		final long now = System.nanoTime();
+		final Integer[] order = new Integer[endpoints.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+			if (down[i] && now - failedAt[i] >= retryDelayNanos) {
+				down[i] = false;
+			}
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				final int rankA = rank(a);
+				final int rankB = rank(b);
+				if (rankA != rankB) {
+					return rankA - rankB;
+				}
+				switch (rankA) {
+				case 0:
+					return compareLong(latencies[a] / endpoints[a].getWeight(), latencies[b] / endpoints[b].getWeight());
+				case 1:
+					return endpoints[b].getWeight() - endpoints[a].getWeight();
+				default:
+					return compareLong(failedAt[a] - now, failedAt[b] - now);
+				}
+			}
+		});
+		final ServerEndpoint[] candidates = new ServerEndpoint[order.length];
+		for (int i = 0; i < order.length; i++) {
+			candidates[i] = endpoints[order[i]];
+		}
+		return candidates;
+	}
+
+	private int rank(final int index) {
+		if (down[index]) {
+			return 2;
+		}
+		return latencies[index] != 0 ? 0 : 1;
+	}
+
+	private static int compareLong(final long a, final long b) {
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+
+	/**
+	 * Notifies that a connection to a node was authenticated.
+	 *
+	 * @param endpoint
+	 *            the node.
+	 * @param latency
+	 *            the time in nanoseconds it took to connect and handshake.
+	 */
+	synchronized void connected(final ServerEndpoint endpoint, final long latency) {
+		final int index = indexOf(endpoint);
+		final long sample = Math.max(1, latency);
+		latencies[index] = latencies[index] == 0 ? sample : (latencies[index] * 3 + sample) / 4;
+		down[index] = false;
+	}
+
+	/**
+	 * Notifies that a connection to a node failed or was lost.
+	 *
+	 * @param endpoint
+	 *            the node.
+	 */
+	synchronized void failed(final ServerEndpoint endpoint) {
+		final int index = indexOf(endpoint);
+		down[index] = true;
+		failedAt[index] = System.nanoTime();
+	}
+
+	/**
+	 * Returns the smoothed handshake latency of a node.
+	 *
+	 * @param endpoint
+	 *            the node.
+	 * @return the latency in nanoseconds, or 0 if it is not known.
+	 */
+	synchronized long getLatency(final ServerEndpoint endpoint) {
+		return latencies[indexOf(endpoint)];
+	}
+
+	private int indexOf(final ServerEndpoint endpoint) {
+		for (int i = 0; i < endpoints.length; i++) {
+			if (endpoints[i] == endpoint) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown endpoint " + endpoint);
+	}
+}
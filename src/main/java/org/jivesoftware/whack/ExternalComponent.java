@@ -20,41 +20,36 @@
 
 package org.jivesoftware.whack;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.TimerTask;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.dom4j.DocumentException;
 import org.dom4j.Element;
-import org.dom4j.io.XMLWriter;
-import org.dom4j.io.XPPPacketReader;
-import org.jivesoftware.whack.util.StringUtils;
-import org.jivesoftware.whack.util.TaskEngine;
+import org.jivesoftware.whack.util.StripedExecutor;
+import org.jivesoftware.whack.util.TimingWheel;
+import org.jivesoftware.whack.util.VirtualThreadExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
 import org.xmpp.component.Component;
 import org.xmpp.component.ComponentException;
 import org.xmpp.component.ComponentManager;
 import org.xmpp.component.IQResultListener;
 import org.xmpp.packet.IQ;
 import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
-import org.xmpp.packet.StreamError;
 
 /**
  * ExternalComponents are responsible for connecting and authenticating with a
@@ -62,6 +57,11 @@ import org.xmpp.packet.StreamError;
  * ExternalComponent is a wrapper on a Component that provides remote connection
  * capabilities. The actual processing of the packets is done by the wrapped
  * Component.
+ * <p>
+ * 
+ * The component talks to the server through one or more
+ * {@link ComponentConnection}s, which share the processing of the received
+ * packets.
  * 
  * @author Gaston Dombiak
  */
@@ -70,38 +70,63 @@ public class ExternalComponent implements Component {
 	private static final Logger log = LoggerFactory.getLogger(ExternalComponent.class);
 
 	/**
-	 * The utf-8 charset for decoding and encoding XMPP packet streams.
+	 * Number of ordering stripes per thread of the pool.
+	 */
+	private static final int STRIPES_PER_THREAD = 16;
+	/**
+	 * Maximum number of ordering stripes, reached when packets are processed
+	 * by virtual threads.
+	 */
+	private static final int MAX_STRIPES = 4096;
+
+	/**
+	 * Number of buckets of the wheel tracking the IQ result timeouts.
+	 */
+	private static final int TIMEOUT_WHEEL_SIZE = 512;
+	/**
+	 * Number of threads of the lane that processes priority stanzas.
+	 */
+	private static final int PRIORITY_THREADS = 2;
+	/**
+	 * Priority of the stanzas processed by the priority lane.
 	 */
-	private static String CHARSET = "UTF-8";
+	private static final int HIGH_PRIORITY = 0;
+	private static final int NORMAL_PRIORITY = 1;
+	/**
+	 * Priority of the stanzas dropped while the inbound queue is overloaded.
+	 */
+	private static final int LOW_PRIORITY = 2;
 
 	private final Component component;
 	private final ExternalComponentManager manager;
 
-	private Socket socket;
-	private XMLWriter xmlSerializer;
-	private XmlPullParserFactory factory = null;
-	private XPPPacketReader reader = null;
-	private Writer writer = null;
+	/**
+	 * Connections with the server. Packets sent by the component are spread
+	 * over the connections by destination and packets are read from all of
+	 * them.
+	 */
+	private volatile ComponentConnection[] connections;
+	/**
+	 * Authenticated connection that takes over the traffic of a connection
+	 * that is lost, or <tt>null</tt> if the component has no standby
+	 * connection.
+	 */
+	private volatile ComponentConnection standby;
+	private final AtomicLong failoverCount = new AtomicLong();
+	/**
+	 * Server nodes the connections may be established with.
+	 */
+	private EndpointSelector endpoints;
 	private boolean shutdown = false;
-	private boolean reconnecting = false;
-
-	private KeepAliveTask keepAliveTask;
-	private TimeoutTask timeoutTask;
 	/**
-	 * Timestamp when the last stanza was sent to the server. This information
-	 * is used by the keep alive process to only send heartbeats when the
-	 * connection has been idle.
+	 * True once the component was started.
 	 */
-	private long lastActive = System.currentTimeMillis();
-
-	private String connectionID;
+	private boolean started = false;
 	/**
-	 * Hold the full domain of this component. The full domain is composed by
-	 * the subdomain plus the domain of the server. E.g.
-	 * conference.jivesoftware.com. The domain may change after a connection has
-	 * been established with the server.
+	 * True while the component is started and connected to the server.
 	 */
-	private String domain;
+	private boolean running = false;
+
 	/**
 	 * Holds the subdomain that is associated to this component. The subdomain
 	 * is the initial part of the domain. The subdomain cannot be affected after
@@ -109,23 +134,55 @@ public class ExternalComponent implements Component {
 	 */
 	private String subdomain;
 	/**
-	 * Holds the IP address or host name where the connection must be made.
+	 * Pool of threads that are available for processing the requests.
 	 */
-	private String host;
-	private int port;
-
+	private final ExecutorService threadPool;
 	/**
-	 * Pool of threads that are available for processing the requests.
+	 * Threads that process the stanzas that must not wait behind the other
+	 * received stanzas, like the answers awaited by IQ result listeners.
+	 */
+	private final ThreadPoolExecutor priorityLane;
+	private final AtomicLong priorityCount = new AtomicLong();
+	/**
+	 * Runs the processing of the received stanzas on the thread pool keeping
+	 * the stanzas that share an ordering key in order, or <tt>null</tt> if
+	 * stanzas are not ordered.
+	 */
+	private final StripedExecutor stanzaExecutor;
+	/**
+	 * Bounds the number of received stanzas waiting to be processed.
 	 */
-	private final ThreadPoolExecutor threadPool;
+	private final InboundLimiter inbound;
 	/**
-	 * Thread that will read the XML from the socket and ask this component to
-	 * process the read packets.
+	 * Drops low priority stanzas while the inbound queue is overloaded.
 	 */
-	private SocketReadThread readerThread;
+	private final OverloadController overload;
+	/**
+	 * Replaces queued presences by newer ones from the same sender, or
+	 * <tt>null</tt> if presences are not conflated.
+	 */
+	private final PresenceConflator conflator;
+	/**
+	 * Decides which received stanzas are processed in order.
+	 */
+	private final ExternalComponentManager.OrderingKey orderingKey;
+	/**
+	 * True if the received stanzas are parsed by the thread pool instead of
+	 * the thread reading the connection.
+	 */
+	private final boolean parseOffload;
+	/**
+	 * True if the content of the received stanzas is only parsed when the
+	 * component accesses it.
+	 */
+	private final boolean lazyParsing;
 
 	private final Map<String, IQResultListener> resultListeners = new ConcurrentHashMap<String, IQResultListener>();
-	private final Map<String, Long> resultTimeout = new ConcurrentHashMap<String, Long>();
+	private final Map<String, TimingWheel.Timeout<String>> resultTimeout = new ConcurrentHashMap<String, TimingWheel.Timeout<String>>();
+	/**
+	 * Tracks the timeouts of the IQ result listeners.
+	 */
+	private final TimingWheel<String> resultTimeouts;
 
 	public ExternalComponent(final Component component, final ExternalComponentManager manager) {
 		// Be default create a pool of 25 threads to process the received
@@ -134,14 +191,54 @@ public class ExternalComponent implements Component {
 	}
 
 	public ExternalComponent(final Component component, final ExternalComponentManager manager, final int maxThreads) {
+		this(component, manager, ExternalComponentManager.Execution.THREAD_POOL, maxThreads, 1, false);
+	}
+
+	ExternalComponent(final Component component, final ExternalComponentManager manager, final ExternalComponentManager.Execution execution,
+			final int maxConcurrency, final int connectionCount, final boolean hotStandby) {
 		this.component = component;
 		this.manager = manager;
 
-		// Create a pool of threads that will process requests received by this
-		// component. If more threads are required then the command will be
-		// executed on the SocketReadThread process
-		threadPool = new ThreadPoolExecutor(maxThreads, maxThreads, 15, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+		if (execution == ExternalComponentManager.Execution.VIRTUAL_THREADS && VirtualThreadExecutor.isSupported()) {
+			// Every packet is processed by its own virtual thread so handlers
+			// that block do not hold back the other packets
+			threadPool = new VirtualThreadExecutor("whack-component-", maxConcurrency);
+		} else {
+			if (execution == ExternalComponentManager.Execution.VIRTUAL_THREADS) {
+				log.warn("Virtual threads are not supported by this JVM, using a pool of " + maxConcurrency + " threads");
+			}
+			// Create a pool of threads that will process requests received by
+			// this component. The number of queued requests is bounded by the
+			// inbound limiter
+			threadPool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 15, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+		priorityLane = new ThreadPoolExecutor(PRIORITY_THREADS, PRIORITY_THREADS, 15, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
 				new ThreadPoolExecutor.CallerRunsPolicy());
+		priorityLane.allowCoreThreadTimeOut(true);
+		// Stanzas that share an ordering key are processed in order since they
+		// share a stripe. Offloaded parsing must not reorder the stanzas of a
+		// sender so they are ordered by full JID at least.
+		parseOffload = manager.isParseOffload();
+		if (parseOffload && manager.getOrderingKey() == ExternalComponentManager.OrderingKey.NONE) {
+			orderingKey = ExternalComponentManager.OrderingKey.FULL_JID;
+		} else {
+			orderingKey = manager.getOrderingKey();
+		}
+		stanzaExecutor = orderingKey != ExternalComponentManager.OrderingKey.NONE ? new StripedExecutor(threadPool, Math.min(
+				maxConcurrency * STRIPES_PER_THREAD, MAX_STRIPES)) : null;
+		inbound = new InboundLimiter(manager.getInboundQueueSize(), manager.getOverloadPolicy());
+		overload = new OverloadController(manager.getShedQueueDepth(), manager.getShedQueueLatency(), TimeUnit.MILLISECONDS,
+				manager.getShedStanzaTypes(), manager.getShedNamespaces());
+		conflator = manager.isPresenceConflation() ? new PresenceConflator() : null;
+		lazyParsing = manager.isLazyParsing();
+		resultTimeouts = new TimingWheel<String>(manager.getTimeoutResolution(), TimeUnit.MILLISECONDS, TIMEOUT_WHEEL_SIZE);
+
+		connections = new ComponentConnection[Math.max(1, connectionCount)];
+		for (int i = 0; i < connections.length; i++) {
+			connections[i] = new ComponentConnection(this, i);
+		}
+		standby = hotStandby ? new ComponentConnection(this, connections.length) : null;
 	}
 
 	/**
@@ -159,127 +256,129 @@ public class ExternalComponent implements Component {
 	 *             steps.
 	 */
 	public void connect(final String host, final int port, final String subdomain) throws ComponentException {
-		try {
-			// Open a socket to the server
-			socket = new Socket();
-			socket.connect(new InetSocketAddress(host, port), manager.getConnectTimeout());
-			if (manager.getServerName() != null) {
-				domain = subdomain + "." + manager.getServerName();
-			} else {
-				domain = subdomain;
+		this.subdomain = subdomain;
+		// The given server is tried first, followed by the other server
+		// nodes of the manager. A local Unix domain socket goes before them.
+		final List<ServerEndpoint> nodes = new ArrayList<ServerEndpoint>();
+		if (manager.getUnixSocketPath() != null && UnixDomainSocket.isSupported()) {
+			nodes.add(new ServerEndpoint(manager.getUnixSocketPath()));
+		}
+		final ServerEndpoint primary = new ServerEndpoint(host, port, 1);
+		nodes.add(primary);
+		for (final ServerEndpoint node : manager.getFailoverEndpoints()) {
+			if (!node.isSameAddress(primary)) {
+				nodes.add(node);
 			}
-			this.subdomain = subdomain;
-			// Keep these variables that will be used in case a reconnection is
-			// required
-			this.host = host;
-			this.port = port;
-
+		}
+		endpoints = new EndpointSelector(nodes, manager.getEndpointRetryDelay());
+		for (int i = 0; i < connections.length; i++) {
 			try {
-				factory = XmlPullParserFactory.newInstance();
-				reader = new XPPPacketReader();
-				reader.setXPPFactory(factory);
-
-				reader.getXPPParser().setInput(new InputStreamReader(socket.getInputStream(), CHARSET));
-
-				// Get a writer for sending the open stream tag
-				writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), CHARSET));
-				// Open the stream.
-				StringBuilder stream = new StringBuilder();
-				stream.append("<stream:stream");
-				stream.append(" xmlns=\"jabber:component:accept\"");
-				stream.append(" xmlns:stream=\"http://etherx.jabber.org/streams\"");
-				if (manager.isMultipleAllowed(subdomain)) {
-					stream.append(" allowMultiple=\"true\"");
-				}
-				stream.append(" to=\"").append(domain).append("\">");
-				writer.write(stream.toString());
-				writer.flush();
-				stream = null;
-
-				// Get the answer from the server
-				final XmlPullParser xpp = reader.getXPPParser();
-				for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;) {
-					eventType = xpp.next();
+				connections[i].connect();
+			} catch (final ComponentException e) {
+				// Close the connections that were already established and
+				// release the writer and the spool of the failed one
+				for (int j = 0; j <= i; j++) {
+					connections[j].shutdown();
+					connections[j].disconnect();
 				}
+				throw e;
+			}
+		}
+	}
 
-				// Set the streamID returned from the server
-				connectionID = xpp.getAttributeValue("", "id");
-				if (xpp.getAttributeValue("", "from") != null) {
-					domain = xpp.getAttributeValue("", "from");
-				}
-				xmlSerializer = new XMLWriter(writer);
-
-				// Handshake with the server
-				stream = new StringBuilder();
-				stream.append("<handshake>");
-				stream.append(StringUtils.hash(connectionID + manager.getSecretKey(subdomain)));
-				stream.append("</handshake>");
-				writer.write(stream.toString());
-				writer.flush();
-				stream = null;
-
-				// Get the answer from the server
-				try {
-					final Element doc = reader.parseDocument().getRootElement();
-					if ("error".equals(doc.getName())) {
-						final StreamError error = new StreamError(doc);
-						// Close the connection
-						socket.close();
-						socket = null;
-						// throw the exception with the wrapped error
-						throw new ComponentException(error);
-					}
-					// Everything went fine
-					// Start keep alive thread to send every 30 seconds of
-					// inactivity a heart beat
-					keepAliveTask = new KeepAliveTask();
-					TaskEngine.getInstance().scheduleAtFixedRate(keepAliveTask, 15000, 30000);
+	/**
+	 * Returns true if the stanzas are cut from the raw stream of the
+	 * connections, so that they can be parsed by other threads or on demand.
+	 */
+	boolean isFramed() {
+		return stanzaExecutor != null || lazyParsing;
+	}
 
-					timeoutTask = new TimeoutTask();
-					TaskEngine.getInstance().scheduleAtFixedRate(timeoutTask, 2000, 2000);
+	EndpointSelector getEndpoints() {
+		return endpoints;
+	}
 
-				} catch (final DocumentException e) {
-					try {
-						socket.close();
-					} catch (final IOException ioe) {
-						// Do nothing
-					}
-					throw new ComponentException(e);
-				} catch (final XmlPullParserException e) {
-					try {
-						socket.close();
-					} catch (final IOException ioe) {
-						// Do nothing
-					}
-					throw new ComponentException(e);
-				}
-			} catch (final XmlPullParserException e) {
-				try {
-					socket.close();
-				} catch (final IOException ioe) {
-					// Do nothing
-				}
-				throw new ComponentException(e);
-			}
-		} catch (final UnknownHostException uhe) {
-			try {
-				if (socket != null) {
-					socket.close();
-				}
-			} catch (final IOException e) {
-				// Do nothing
-			}
-			throw new ComponentException(uhe);
-		} catch (final IOException ioe) {
-			try {
-				if (socket != null) {
-					socket.close();
-				}
-			} catch (final IOException e) {
-				// Do nothing
+	/**
+	 * Returns the address of the server node that the first connection of this
+	 * component was last established with.
+	 * 
+	 * @return the address of the server node, or <tt>null</tt> if the
+	 *         component never connected or is connected through a Unix
+	 *         domain socket.
+	 */
+	public InetSocketAddress getServerAddress() {
+		final ServerEndpoint endpoint = connections[0].getEndpoint();
+		return endpoint != null ? endpoint.toAddress() : null;
+	}
+
+	/**
+	 * Returns the server node that a connection should avoid, which is the
+	 * node of the first connection for the standby connection.
+	 */
+	ServerEndpoint getAvoidedEndpoint(final ComponentConnection connection) {
+		return connection == standby ? connections[0].getEndpoint() : null;
+	}
+
+	/**
+	 * Returns the active connections followed by the standby connection.
+	 */
+	private ComponentConnection[] allConnections() {
+		final ComponentConnection[] connections = this.connections;
+		final ComponentConnection standby = this.standby;
+		if (standby == null) {
+			return connections;
+		}
+		final ComponentConnection[] all = Arrays.copyOf(connections, connections.length + 1);
+		all[connections.length] = standby;
+		return all;
+	}
+
+	/**
+	 * Returns true if the component opens more than one connection with the
+	 * server.
+	 */
+	boolean hasMultipleConnections() {
+		return connections.length > 1 || standby != null;
+	}
+
+	/**
+	 * Returns the number of connections of this component with the server,
+	 * not counting the standby connection.
+	 * 
+	 * @return the number of connections.
+	 */
+	public int getConnectionCount() {
+		return connections.length;
+	}
+
+	/**
+	 * Returns true if the connections with the server are compressed.
+	 * 
+	 * @return true if the connections are compressed.
+	 */
+	public boolean isCompressed() {
+		for (final ComponentConnection connection : connections) {
+			if (!connection.isCompressed()) {
+				return false;
 			}
-			throw new ComponentException(ioe);
 		}
+		return true;
+	}
+
+	/**
+	 * Returns the ratio between the size of the data exchanged with the
+	 * server on the current connections and its compressed size, averaged
+	 * over the connections.
+	 * 
+	 * @return the compression ratio, or 1 if the connections are not
+	 *         compressed.
+	 */
+	public double getCompressionRatio() {
+		double ratio = 0;
+		for (final ComponentConnection connection : connections) {
+			ratio += connection.getCompressionRatio();
+		}
+		return ratio / connections.length;
 	}
 
 	public Component getComponent() {
@@ -305,7 +404,7 @@ public class ExternalComponent implements Component {
 	 * @return the domain provided by this component in the connected server.
 	 */
 	public String getDomain() {
-		return domain;
+		return connections[0].getDomain();
 	}
 
 	/**
@@ -329,48 +428,599 @@ public class ExternalComponent implements Component {
 
 	@Override
 	public void processPacket(final Packet packet) {
-		threadPool.execute(new Runnable() {
+		processPacket(orderingKey(packet), classify(packet), packet);
+	}
+
+	/**
+	 * Hands a packet to the thread pool after the packets previously received
+	 * with the same ordering key, or to the priority lane.
+	 */
+	private void processPacket(final Object key, final int priority, final Packet packet) {
+		final String conflationKey = conflator != null ? PresenceConflator.keyFor(packet) : null;
+		submit(key, priority, !(packet instanceof IQ), conflationKey, new Runnable() {
+			@Override
+			public void run() {
+				dispatch(packet);
+			}
+		});
+	}
+
+	/**
+	 * Runs priority stanzas on the priority lane, drops low priority stanzas
+	 * if the inbound queue is overloaded, conflates presences and queues the
+	 * rest.
+	 * 
+	 * @param key
+	 *            the ordering key of the stanza.
+	 * @param priority
+	 *            the priority of the stanza.
+	 * @param sheddable
+	 *            true if the stanza may be dropped when the queue is full.
+	 * @param conflationKey
+	 *            the key of the presences the stanza may replace, or
+	 *            <tt>null</tt>.
+	 * @param task
+	 *            the task processing the stanza.
+	 */
+	private void submit(final Object key, final int priority, final boolean sheddable, final String conflationKey, final Runnable task) {
+		if (priority == HIGH_PRIORITY) {
+			priorityCount.incrementAndGet();
+			priorityLane.execute(task);
+			return;
+		}
+		if (priority == LOW_PRIORITY) {
+			final ExternalComponentManager.ShedReason reason = overload.shed(inbound.getQueueSize());
+			if (reason != null) {
+				if (log.isDebugEnabled()) {
+					log.debug("Inbound queue is overloaded (" + reason + "), dropping stanza");
+				}
+				return;
+			}
+		}
+		if (conflationKey != null) {
+			final Runnable slot = conflator.conflate(conflationKey, task);
+			if (slot != null && !enqueue(key, sheddable, slot)) {
+				conflator.discard(conflationKey, slot);
+			}
+			return;
+		}
+		enqueue(key, sheddable, task);
+	}
+
+	/**
+	 * Queues the processing of a received stanza. If too many stanzas are
+	 * already waiting the overload policy decides whether the calling thread
+	 * waits, drops the stanza or processes it itself. Reactor threads never
+	 * wait nor process the stanza since they read other connections too; the
+	 * stanza is queued and their connection is paused instead.
+	 * 
+	 * @param key
+	 *            the ordering key of the stanza.
+	 * @param sheddable
+	 *            true if the stanza may be dropped.
+	 * @param task
+	 *            the task processing the stanza.
+	 * @return false if the stanza was dropped.
+	 */
+	private boolean enqueue(final Object key, final boolean sheddable, final Runnable task) {
+		final boolean ordered = stanzaExecutor != null;
+		switch (inbound.admit(sheddable, ordered, !ComponentReactor.isReactorThread())) {
+		case InboundLimiter.DROP:
+			log.debug("Inbound queue is full, dropping stanza");
+			return false;
+		case InboundLimiter.RUN:
+			task.run();
+			return true;
+		default:
+			break;
+		}
+		final long queuedAt = System.nanoTime();
+		final Runnable queued = new Runnable() {
 			@Override
 			public void run() {
-				if (packet instanceof IQ) {
-					final IQ iq = (IQ) packet;
-					final IQ.Type iqType = iq.getType();
-					if (IQ.Type.result == iqType || IQ.Type.error == iqType) {
-						// The server got an answer to an IQ packet that was
-						// sent from the component
-						final IQResultListener iqResultListener = resultListeners.remove(iq.getID());
-						resultTimeout.remove(iq.getID());
-						if (iqResultListener != null) {
-							try {
-								iqResultListener.receivedAnswer(iq);
-							} catch (final Exception e) {
-								log.error("Error processing answer of remote entity", e);
-							}
-							return;
-						}
+				inbound.release();
+				overload.started(queuedAt);
+				task.run();
+			}
+		};
+		if (ordered) {
+			stanzaExecutor.execute(key, queued);
+		} else {
+			threadPool.execute(queued);
+		}
+		return true;
+	}
+
+	/**
+	 * Notification that a thread starts waiting for the answer to an IQ
+	 * packet sent on behalf of this component.
+	 */
+	void queryStarted() {
+		inbound.queryStarted();
+	}
+
+	/**
+	 * Notification that a thread stopped waiting for the answer to an IQ
+	 * packet sent on behalf of this component.
+	 */
+	void queryEnded() {
+		inbound.queryEnded();
+	}
+
+	/**
+	 * Returns true if the inbound queue is full, in which case a reactor
+	 * thread stops reading the connection that received the last stanza.
+	 */
+	boolean isInboundFull() {
+		return inbound.isFull();
+	}
+
+	/**
+	 * Runs a task once the inbound queue has room again.
+	 * 
+	 * @param resume
+	 *            the task that resumes the reading of a paused connection.
+	 */
+	void whenInboundAvailable(final Runnable resume) {
+		inbound.whenAvailable(resume);
+	}
+
+	/**
+	 * Processes a stanza that was cut from the stream by a framer. When
+	 * parsing is offloaded the raw stanza is copied and parsed by the thread
+	 * pool, keeping the stanzas that share an ordering key in order.
+	 * Otherwise the stanza is parsed by the calling thread. With lazy parsing
+	 * only the start tag of the stanza is parsed until the component needs
+	 * the rest. Priority stanzas are recognized from the raw stanza and skip
+	 * the queue.
+	 * 
+	 * @param framer
+	 *            the framer whose current frame is the stanza.
+	 */
+	void processFrame(final StanzaFramer framer) throws DocumentException, IOException, XmlPullParserException {
+		if (!parseOffload && !lazyParsing) {
+			processPacket(StanzaParser.getInstance().parse(framer.array(), framer.frameOffset(), framer.frameLength()));
+			return;
+		}
+		final int offset = framer.frameOffset();
+		final byte[] data = Arrays.copyOfRange(framer.array(), offset, offset + framer.frameLength());
+		if (!parseOffload) {
+			final Packet packet = StanzaParser.createLazyPacket(data, 0, data.length);
+			if (packet != null) {
+				// Take the key from the frame so the content of the packet
+				// is not parsed by this thread
+				processPacket(orderingKey(framer), classify(framer), packet);
+			} else {
+				processPacket(StanzaParser.getInstance().parse(data, 0, data.length));
+			}
+			return;
+		}
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				Packet packet = lazyParsing ? StanzaParser.createLazyPacket(data, 0, data.length) : null;
+				if (packet == null) {
+					try {
+						packet = StanzaParser.getInstance().parse(data, 0, data.length);
+					} catch (final Exception e) {
+						log.error("Error parsing packet from the server", e);
+						return;
 					}
 				}
-				component.processPacket(packet);
+				dispatch(packet);
 			}
-		});
+		};
+		final String conflationKey = conflator != null ? PresenceConflator.keyFor(framer) : null;
+		submit(orderingKey(framer), classify(framer), !framer.isElement("iq"), conflationKey, task);
+	}
+
+	/**
+	 * Returns the priority of a received packet.
+	 */
+	private int classify(final Packet packet) {
+		if (isPriority(packet)) {
+			return HIGH_PRIORITY;
+		}
+		return overload.isEnabled() && overload.isLowPriority(packet) ? LOW_PRIORITY : NORMAL_PRIORITY;
+	}
+
+	/**
+	 * Returns the priority of the stanza of a framer.
+	 */
+	private int classify(final StanzaFramer framer) {
+		if (isPriority(framer)) {
+			return HIGH_PRIORITY;
+		}
+		return overload.isEnabled() && overload.isLowPriority(framer) ? LOW_PRIORITY : NORMAL_PRIORITY;
+	}
+
+	/**
+	 * Returns true if a received packet must skip the queue: answers awaited
+	 * by an IQ result listener and stanzas with a child in one of the
+	 * priority namespaces of the manager.
+	 */
+	private boolean isPriority(final Packet packet) {
+		if (packet instanceof IQ) {
+			final IQ.Type type = ((IQ) packet).getType();
+			if ((type == IQ.Type.result || type == IQ.Type.error) && packet.getID() != null && resultListeners.containsKey(packet.getID())) {
+				return true;
+			}
+		}
+		final Set<String> namespaces = manager.getPriorityNamespaces();
+		if (!namespaces.isEmpty()) {
+			for (final Object child : packet.getElement().elements()) {
+				if (namespaces.contains(((Element) child).getNamespaceURI())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the stanza of a framer must skip the queue, looking at
+	 * the raw stanza only.
+	 */
+	private boolean isPriority(final StanzaFramer framer) {
+		if (framer.isElement("iq")) {
+			final String type = framer.attribute("type");
+			if ("result".equals(type) || "error".equals(type)) {
+				final String id = framer.attribute("id");
+				if (id != null && resultListeners.containsKey(id)) {
+					return true;
+				}
+			}
+		}
+		for (final String namespace : manager.getPriorityNamespaces()) {
+			if (framer.declaresNamespace(namespace)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the ordering key of a received packet, or <tt>null</tt> if
+	 * packets are not ordered.
+	 */
+	private Object orderingKey(final Packet packet) {
+		if (orderingKey == ExternalComponentManager.OrderingKey.NONE) {
+			return null;
+		}
+		if (orderingKey == ExternalComponentManager.OrderingKey.THREAD && packet instanceof Message) {
+			final String thread = ((Message) packet).getThread();
+			if (thread != null) {
+				return thread;
+			}
+		}
+		final JID from = packet.getFrom();
+		if (from == null) {
+			return null;
+		}
+		return orderingKey == ExternalComponentManager.OrderingKey.BARE_JID ? from.toBareJID() : from.toString();
+	}
+
+	/**
+	 * Returns the ordering key of the stanza of a framer without parsing it,
+	 * or <tt>null</tt> if stanzas are not ordered.
+	 */
+	private Object orderingKey(final StanzaFramer framer) {
+		if (orderingKey == ExternalComponentManager.OrderingKey.NONE) {
+			return null;
+		}
+		if (orderingKey == ExternalComponentManager.OrderingKey.THREAD && framer.isElement("message")) {
+			final String thread = framer.childText("thread");
+			if (thread != null) {
+				return thread;
+			}
+		}
+		final String from = framer.attribute("from");
+		if (from != null && orderingKey == ExternalComponentManager.OrderingKey.BARE_JID) {
+			final int slash = from.indexOf('/');
+			return slash >= 0 ? from.substring(0, slash) : from;
+		}
+		return from;
+	}
+
+	/**
+	 * Hands a received packet to the listener waiting for it or to the
+	 * component.
+	 */
+	private void dispatch(final Packet packet) {
+		if (packet instanceof IQ) {
+			final IQ iq = (IQ) packet;
+			final IQ.Type iqType = iq.getType();
+			if (IQ.Type.result == iqType || IQ.Type.error == iqType) {
+				// The server got an answer to an IQ packet that was
+				// sent from the component
+				final IQResultListener iqResultListener = resultListeners.remove(iq.getID());
+				final TimingWheel.Timeout<String> timeout = resultTimeout.remove(iq.getID());
+				if (timeout != null) {
+					timeout.cancel();
+				}
+				if (iqResultListener != null) {
+					try {
+						iqResultListener.receivedAnswer(iq);
+					} catch (final Exception e) {
+						log.error("Error processing answer of remote entity", e);
+					}
+					return;
+				}
+			}
+		}
+		component.processPacket(packet);
 	}
 
+	/**
+	 * Queues a packet for being sent to the server. The packet is written by
+	 * the writer thread of a connection of this component so this method only
+	 * blocks if the send queue is full, and never longer than the write
+	 * timeout of the manager. Packets with the same bare destination always go
+	 * through the same connection so they reach the server in order.
+	 * 
+	 * @param packet
+	 *            the packet to send.
+	 */
 	public void send(final Packet packet) {
-		synchronized (writer) {
-			try {
-				xmlSerializer.write(packet.getElement());
-				xmlSerializer.flush();
-				// Keep track of the last time a stanza was sent to the server
-				lastActive = System.currentTimeMillis();
-			} catch (final IOException e) {
-				// Log the exception
-				log.error("Error sending packet", e);
-				if (!shutdown) {
-					// Connection was lost so try to reconnect
-					connectionLost();
+		connectionFor(packet).send(packet);
+	}
+
+	/**
+	 * Returns the connection that sends the packets to the destination of a
+	 * packet.
+	 */
+	private ComponentConnection connectionFor(final Packet packet) {
+		final ComponentConnection[] connections = this.connections;
+		if (connections.length == 1) {
+			return connections[0];
+		}
+		// Hash the bare JID without parsing the address
+		final String to = packet.getElement().attributeValue("to");
+		int h = 0;
+		if (to != null) {
+			for (int i = 0; i < to.length(); i++) {
+				final char c = to.charAt(i);
+				if (c == '/') {
+					break;
 				}
+				h = 31 * h + c;
 			}
 		}
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return connections[(h & Integer.MAX_VALUE) % connections.length];
+	}
+
+	/**
+	 * Returns the number of packets waiting to be sent to the server.
+	 * 
+	 * @return the number of packets waiting to be sent to the server.
+	 */
+	public int getSendQueueSize() {
+		int count = 0;
+		for (final ComponentConnection connection : allConnections()) {
+			count += connection.getPacketWriter().getQueueSize();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of packets that were written to the server.
+	 * 
+	 * @return the number of packets that were written to the server.
+	 */
+	public long getSentPackets() {
+		long count = 0;
+		for (final ComponentConnection connection : allConnections()) {
+			count += connection.getPacketWriter().getWrittenPackets();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of packets that were rejected because the send queue
+	 * remained full for longer than the write timeout.
+	 * 
+	 * @return the number of rejected packets.
+	 */
+	public long getRejectedPackets() {
+		long count = 0;
+		for (final ComponentConnection connection : allConnections()) {
+			count += connection.getPacketWriter().getRejectedPackets();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of packets that were discarded because there was no
+	 * connection with the server when they were about to be written, and they
+	 * did not fit in the buffer or stayed there for too long.
+	 * 
+	 * @return the number of discarded packets.
+	 */
+	public long getDroppedPackets() {
+		long count = 0;
+		for (final ComponentConnection connection : allConnections()) {
+			count += connection.getPacketWriter().getDroppedPackets();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of packets that are buffered until the component
+	 * reconnects with the server.
+	 * 
+	 * @return the number of buffered packets.
+	 */
+	public int getBufferedPackets() {
+		int count = 0;
+		for (final ComponentConnection connection : allConnections()) {
+			count += connection.getPacketWriter().getBufferedPackets();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of packets that wait in the spool on disk.
+	 * 
+	 * @return the number of spooled packets.
+	 */
+	public int getSpooledPackets() {
+		int count = 0;
+		for (final ComponentConnection connection : allConnections()) {
+			count += connection.getPacketWriter().getSpooledPackets();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of packets that were read back from the spool and
+	 * sent to the server.
+	 * 
+	 * @return the number of packets sent from the spool.
+	 */
+	public long getUnspooledPackets() {
+		long count = 0;
+		for (final ComponentConnection connection : allConnections()) {
+			count += connection.getPacketWriter().getUnspooledPackets();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of buffered packets that were sent once the component
+	 * reconnected with the server.
+	 * 
+	 * @return the number of replayed packets.
+	 */
+	public long getReplayedPackets() {
+		long count = 0;
+		for (final ComponentConnection connection : allConnections()) {
+			count += connection.getPacketWriter().getReplayedPackets();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of received packets waiting to be processed.
+	 * 
+	 * @return the depth of the inbound queue.
+	 */
+	public int getInboundQueueSize() {
+		return inbound.getQueueSize();
+	}
+
+	/**
+	 * Returns the number of times the thread reading the connection had to
+	 * wait because the inbound queue was full.
+	 * 
+	 * @return the number of blocked packets.
+	 */
+	public long getInboundBlockedCount() {
+		return inbound.getBlockedCount();
+	}
+
+	/**
+	 * Returns the number of received packets that were dropped because the
+	 * inbound queue was full.
+	 * 
+	 * @return the number of shed packets.
+	 */
+	public long getInboundShedCount() {
+		return inbound.getShedCount();
+	}
+
+	/**
+	 * Returns the number of received packets that were processed by the
+	 * thread reading the connection because the inbound queue was full.
+	 * 
+	 * @return the number of packets run by the reading thread.
+	 */
+	public long getInboundCallerRunsCount() {
+		return inbound.getCallerRunsCount();
+	}
+
+	/**
+	 * Returns the number of received packets that were dropped for a reason.
+	 * 
+	 * @param reason
+	 *            the reason for dropping the packets.
+	 * @return the number of shed packets.
+	 */
+	public long getShedCount(final ExternalComponentManager.ShedReason reason) {
+		if (reason == ExternalComponentManager.ShedReason.QUEUE_FULL) {
+			return inbound.getShedCount();
+		}
+		return overload.getShedCount(reason);
+	}
+
+	/**
+	 * Returns the number of received presences that were replaced by a newer
+	 * presence from the same sender before being processed.
+	 * 
+	 * @return the number of conflated presences.
+	 */
+	public long getConflatedPresenceCount() {
+		return conflator != null ? conflator.getConflatedCount() : 0;
+	}
+
+	/**
+	 * Returns the time (in milliseconds) the last received packet that started
+	 * being processed waited in the inbound queue.
+	 * 
+	 * @return the latency of the inbound queue in milliseconds.
+	 */
+	public long getInboundQueueLatency() {
+		return TimeUnit.NANOSECONDS.toMillis(overload.getLatency());
+	}
+
+	/**
+	 * Returns the number of received packets that skipped the inbound queue
+	 * and were processed by the priority lane.
+	 * 
+	 * @return the number of priority packets.
+	 */
+	public long getPriorityCount() {
+		return priorityCount.get();
+	}
+
+	/**
+	 * Returns the number of times the written packets were flushed to the
+	 * server.
+	 * 
+	 * @return the number of flushes.
+	 */
+	public long getFlushCount() {
+		long count = 0;
+		for (final ComponentConnection connection : allConnections()) {
+			count += connection.getPacketWriter().getFlushes();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the average number of packets sent to the server with each
+	 * flush. Values close to 1 mean that packets are hardly ever coalesced.
+	 * 
+	 * @return the average number of packets per flush.
+	 */
+	public double getAverageStanzasPerFlush() {
+		final long flushes = getFlushCount();
+		return flushes == 0 ? 0 : (double) getSentPackets() / flushes;
+	}
+
+	/**
+	 * Returns the largest number of packets that were sent to the server with
+	 * a single flush.
+	 * 
+	 * @return the maximum number of packets per flush.
+	 */
+	public int getMaxStanzasPerFlush() {
+		int max = 0;
+		for (final ComponentConnection connection : allConnections()) {
+			max = Math.max(max, connection.getPacketWriter().getMaxStanzasPerFlush());
+		}
+		return max;
 	}
 
 	@Override
@@ -381,96 +1031,184 @@ public class ExternalComponent implements Component {
 	@Override
 	public void start() {
 		// Everything went fine so start reading packets from the server
-		readerThread = new SocketReadThread(this, reader);
-		readerThread.setDaemon(true);
-		readerThread.start();
-		// Notify the component that it will be notified of new received packets
-		component.start();
+		for (final ComponentConnection connection : connections) {
+			connection.startReading();
+		}
+		if (standby != null) {
+			standby.connectInBackground();
+		}
+		synchronized (this) {
+			started = true;
+			running = true;
+			// Notify the component that it will be notified of new received
+			// packets
+			component.start();
+		}
 	}
 
 	@Override
 	public void shutdown() {
-		shutdown = true;
+		synchronized (this) {
+			shutdown = true;
+			running = false;
+		}
+		for (final ComponentConnection connection : allConnections()) {
+			connection.shutdown();
+		}
 		// Notify the component to shutdown
 		component.shutdown();
-		disconnect();
+		for (final ComponentConnection connection : allConnections()) {
+			connection.disconnect();
+		}
+		threadPool.shutdown();
+		priorityLane.shutdown();
+		failPendingQueries("Component was shut down");
 	}
 
-	private void disconnect() {
-		if (readerThread != null) {
-			readerThread.shutdown();
+	/**
+	 * Notification message that the connection with the server was lost
+	 * unexpectedly. Every connection of this component is reestablished after
+	 * a delay that grows with every failed attempt, so this method returns
+	 * quickly and senders are never held up by a reconnection. Packets sent
+	 * while disconnected are buffered and sent after the reconnection.
+	 */
+	public void connectionLost() {
+		for (final ComponentConnection connection : allConnections()) {
+			connection.connectionLost();
 		}
-		threadPool.shutdown();
-		TaskEngine.getInstance().cancelScheduledTask(keepAliveTask);
-		TaskEngine.getInstance().cancelScheduledTask(timeoutTask);
-		if (socket != null && !socket.isClosed()) {
-			try {
-				synchronized (writer) {
-					try {
-						writer.write("</stream:stream>");
-						xmlSerializer.flush();
-					} catch (final IOException e) {
-						// Do nothing
-					}
-				}
-			} catch (final Exception e) {
-				// Do nothing
-			}
-			try {
-				socket.close();
-			} catch (final Exception e) {
-				log.error(e.getMessage());
+	}
+
+	/**
+	 * Notification from a connection that was lost. If the standby connection
+	 * is connected it takes over the traffic of the lost connection at once,
+	 * and the lost connection becomes the standby connection once it
+	 * reconnected. Once no connection is left the component is notified so it
+	 * needs to shutdown. The component is still registered in the local
+	 * component manager but just not connected to the server.
+	 * 
+	 * @param lost
+	 *            the connection that was lost.
+	 */
+	synchronized void connectionDown(final ComponentConnection lost) {
+		if (lost == standby || promoteStandby(lost)) {
+			return;
+		}
+		if (!running || isConnected()) {
+			return;
+		}
+		running = false;
+		failPendingQueries("Connection to the server was lost");
+		component.shutdown();
+	}
+
+	/**
+	 * Notification from a connection that was reestablished. The component is
+	 * started again if it was shut down when its last connection was lost.
+	 */
+	synchronized void connectionUp() {
+		if (!started || running || shutdown) {
+			return;
+		}
+		running = true;
+		component.start();
+	}
+
+	/**
+	 * Replaces a lost connection with the standby connection, without
+	 * restarting the component.
+	 * 
+	 * @return true if the standby connection took over.
+	 */
+	private boolean promoteStandby(final ComponentConnection lost) {
+		final ComponentConnection standby = this.standby;
+		if (standby == null || shutdown) {
+			return false;
+		}
+		final int index = Arrays.asList(connections).indexOf(lost);
+		if (index < 0 || !standby.takeOver(lost)) {
+			return false;
+		}
+		final ComponentConnection[] promoted = connections.clone();
+		promoted[index] = standby;
+		connections = promoted;
+		this.standby = lost;
+		failoverCount.incrementAndGet();
+		log.info("Standby connection of " + subdomain + " took over a lost connection");
+		return true;
+	}
+
+	/**
+	 * Returns the state of the standby connection.
+	 * 
+	 * @return the state of the standby connection, or <tt>null</tt> if the
+	 *         component has no standby connection.
+	 */
+	public ExternalComponentManager.ConnectionState getStandbyState() {
+		final ComponentConnection standby = this.standby;
+		return standby != null ? standby.getState() : null;
+	}
+
+	/**
+	 * Returns the number of times the standby connection took over the
+	 * traffic of a lost connection.
+	 * 
+	 * @return the number of failovers to the standby connection.
+	 */
+	public long getFailoverCount() {
+		return failoverCount.get();
+	}
+
+	private boolean isConnected() {
+		for (final ComponentConnection connection : connections) {
+			if (connection.getState() == ExternalComponentManager.ConnectionState.CONNECTED) {
+				return true;
 			}
 		}
+		return false;
 	}
 
 	/**
-	 * Notification message that the connection with the server was lost
-	 * unexpectedly. We will try to reestablish the connection for ever until
-	 * the connection has been reestablished or this thread has been stopped.
+	 * Returns the state of the connection with the server. When the component
+	 * has several connections, it is connected as long as one of them is.
+	 * 
+	 * @return the state of the connection.
 	 */
-	public void connectionLost() {
-		// Ensure that only one thread will try to reconnect.
-		synchronized (this) {
-			if (reconnecting)
-				return;
-			reconnecting = true;
-		}
-		readerThread = null;
-		boolean isConnected = false;
-		if (!shutdown) {
-			// Notify the component that connection was lost so it needs to
-			// shutdown. The component is
-			// still registered in the local component manager but just not
-			// connected to the server
-			component.shutdown();
-		}
-		while (!isConnected && !shutdown) {
-			try {
-				connect(host, port, subdomain);
-				isConnected = true;
-				// It may be possible that while a new connection was being
-				// established the
-				// component was required to shutdown so in this case we need to
-				// close the new
-				// connection
-				if (shutdown) {
-					disconnect();
-				} else {
-					// Component is back again working so start it up again
-					start();
-				}
-			} catch (final ComponentException e) {
-				log.error("Error trying to reconnect with the server", e);
-				// Wait for 5 seconds until the next retry
-				try {
-					Thread.sleep(5000);
-				} catch (final InterruptedException e1) {
-					// Do nothing
-				}
+	public ExternalComponentManager.ConnectionState getConnectionState() {
+		boolean connecting = false;
+		boolean disconnected = false;
+		for (final ComponentConnection connection : connections) {
+			switch (connection.getState()) {
+			case CONNECTED:
+				return ExternalComponentManager.ConnectionState.CONNECTED;
+			case CONNECTING:
+				connecting = true;
+				break;
+			case DISCONNECTED:
+				disconnected = true;
+				break;
+			default:
+				break;
 			}
 		}
-		reconnecting = false;
+		if (connecting) {
+			return ExternalComponentManager.ConnectionState.CONNECTING;
+		}
+		return disconnected ? ExternalComponentManager.ConnectionState.DISCONNECTED : ExternalComponentManager.ConnectionState.SHUTDOWN;
+	}
+
+	/**
+	 * Returns the number of attempts to reconnect since the connection was
+	 * lost, or 0 while connected. When the component has several connections,
+	 * this is the largest number of attempts of a connection.
+	 * 
+	 * @return the number of attempts to reconnect.
+	 */
+	public int getReconnectAttempts() {
+		int attempts = 0;
+		for (final ComponentConnection connection : connections) {
+			attempts = Math.max(attempts, connection.getReconnectAttempts());
+		}
+		return attempts;
 	}
 
 	/**
@@ -498,84 +1236,99 @@ public class ExternalComponent implements Component {
 		// will let listeners
 		// react and be removed from the collection
 		resultListeners.put(id, listener);
-		resultTimeout.put(id, System.currentTimeMillis() + timeoutmillis);
+		final TimingWheel.Timeout<String> previous = resultTimeout.put(id, resultTimeouts.schedule(id, timeoutmillis, TimeUnit.MILLISECONDS));
+		if (previous != null) {
+			previous.cancel();
+		}
 	}
 
 	/**
-	 * A TimerTask that keeps connections to the server alive by sending a space
-	 * character on an interval.
+	 * Removes the listener waiting for the answer to an IQ, if it is still
+	 * the registered one.
+	 * 
+	 * @param id
+	 *            the id of the IQ packet.
+	 * @param listener
+	 *            the listener to remove.
 	 */
-	private class KeepAliveTask extends TimerTask {
-
-		@Override
-		public void run() {
-			synchronized (writer) {
-				// Send heartbeat if no packet has been sent to the server for a
-				// given time
-				if (System.currentTimeMillis() - lastActive >= 30000) {
-					try {
-						writer.write(" ");
-						writer.flush();
-					} catch (final IOException e) {
-						// Log the exception
-						log.error(e.getMessage());
-						if (!shutdown) {
-							// Connection was lost so try to reconnect
-							connectionLost();
-						}
-					} catch (final Exception e) {
-						// Do nothing
-					}
-				}
+	void removeIQResultListener(final String id, final IQResultListener listener) {
+		if (resultListeners.remove(id, listener)) {
+			final TimingWheel.Timeout<String> timeout = resultTimeout.remove(id);
+			if (timeout != null) {
+				timeout.cancel();
 			}
 		}
 	}
 
 	/**
-	 * Timer task that will remove Listeners that wait for results to IQ stanzas
-	 * that have timed out. Time out values can be set to each listener
-	 * individually by adjusting the timeout value in the third parameter of
-	 * {@link ExternalComponent#addIQResultListener(String, IQResultListener, long)}
-	 * .
-	 * 
-	 * @author Guus der Kinderen, guus@nimbuzz.com
-	 */
-	private class TimeoutTask extends TimerTask {
-
-		/**
-		 * Iterates over and removes all timed out results.
-		 * <p>
-		 * 
-		 * The map that keeps track of timeout values is ordered by timeout
-		 * date. This way, iteration can be stopped as soon as the first value
-		 * has been found that didn't timeout yet.
-		 */
-		@Override
-		public void run() {
-			// Use an Iterator to allow changes to the Map that is backing
-			// the Iterator.
-			final Iterator<Map.Entry<String, Long>> it = resultTimeout.entrySet().iterator();
-
-			while (it.hasNext()) {
-				final Map.Entry<String, Long> pointer = it.next();
-
-				if (System.currentTimeMillis() < pointer.getValue()) {
-					// This entry has not expired yet. Ignore it.
-					continue;
-				}
+	 * Completes exceptionally the asynchronous queries waiting for an answer,
+	 * which will never arrive over a closed connection. Regular listeners
+	 * are left to time out.
+	 * 
+	 * @param reason
+	 *            why the answers will not arrive.
+	 */
+	private void failPendingQueries(final String reason) {
+		for (final Map.Entry<String, IQResultListener> entry : resultListeners.entrySet()) {
+			if (entry.getValue() instanceof IQResultFuture) {
+				final IQResultFuture future = (IQResultFuture) entry.getValue();
+				removeIQResultListener(entry.getKey(), future);
+				future.completeExceptionally(new ComponentException(reason));
+			}
+		}
+	}
 
-				final String packetId = pointer.getKey();
+	/**
+	 * Returns the number of IQ result listeners waiting for an answer.
+	 * 
+	 * @return the number of pending IQ result listeners.
+	 */
+	public int getPendingResultListeners() {
+		return resultTimeouts.size();
+	}
 
-				// remove this listener from the list
-				final IQResultListener listener = resultListeners.remove(packetId);
-				if (listener != null) {
-					// notify listener of the timeout.
+	/**
+	 * Performs the periodic work of the component. Called by the sweep of the
+	 * manager, which covers all its components with a single task.
+	 * <p>
+	 * 
+	 * Keeps the connection to the server alive by sending a heartbeat if no
+	 * packet was sent for a while, drops the connections whose write has been
+	 * blocked for longer than the write timeout, and removes the IQ result
+	 * listeners whose timeout expired. Time out values can be set to each
+	 * listener individually by adjusting the timeout value in the third
+	 * parameter of
+	 * {@link ExternalComponent#addIQResultListener(String, IQResultListener, long)}
+	 * . The timeouts are kept in a timing wheel so only the listeners that
+	 * expired since the last sweep are looked at, no matter how many
+	 * listeners are waiting.
+	 * 
+	 * @param now
+	 *            the current time in milliseconds.
+	 * @param keepAliveInterval
+	 *            the number of milliseconds without sending packets after
+	 *            which a heartbeat is sent.
+	 */
+	void sweep(final long now, final long keepAliveInterval) {
+		if (shutdown) {
+			return;
+		}
+		// Send heartbeat if no packet has been sent to the server for a given
+		// time
+		for (final ComponentConnection connection : allConnections()) {
+			connection.keepAlive(now, keepAliveInterval);
+		}
+		for (final String packetId : resultTimeouts.advance()) {
+			resultTimeout.remove(packetId);
+			// remove this listener from the list
+			final IQResultListener listener = resultListeners.remove(packetId);
+			if (listener != null) {
+				// notify listener of the timeout.
+				try {
 					listener.answerTimeout(packetId);
+				} catch (final RuntimeException e) {
+					log.error("Error notifying the timeout of " + packetId, e);
 				}
-
-				// remove the packet from the list that's used to track
-				// timeouts
-				it.remove();
 			}
 		}
 	}
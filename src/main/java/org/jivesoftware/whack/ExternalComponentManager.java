@@ -20,12 +20,29 @@
 
 package org.jivesoftware.whack;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
 import java.util.prefs.Preferences;
+import java.util.zip.Deflater;
 
+import org.jivesoftware.whack.util.TaskEngine;
+import org.jivesoftware.whack.util.VirtualThreadExecutor;
 import org.xmpp.component.Component;
 import org.xmpp.component.ComponentException;
 import org.xmpp.component.ComponentManager;
@@ -43,6 +60,178 @@ import org.xmpp.packet.Packet;
  */
 public class ExternalComponentManager implements ComponentManager {
 
+	/**
+	 * The ways in which the connections of the components can be read.
+	 */
+	public enum Transport {
+		/**
+		 * Each component reads its connection with a dedicated thread that
+		 * blocks on the socket.
+		 */
+		BLOCKING,
+		/**
+		 * The connections of all components are read by a small, shared pool
+		 * of threads using non-blocking sockets.
+		 */
+		REACTOR
+	}
+
+	/**
+	 * What a component does with the packets it receives while too many
+	 * packets are already waiting to be processed.
+	 */
+	public enum OverloadPolicy {
+		/**
+		 * The connection is not read until a packet was processed, which
+		 * lets TCP push back on the server. With the
+		 * {@link Transport#REACTOR} transport the reactor thread does not
+		 * wait: it stops reading the connection until the queue has room
+		 * again and keeps reading the other connections.
+		 * <p>
+		 * 
+		 * While threads of the component wait in
+		 * {@link ExternalComponentManager#query(Component, IQ, long)} for an
+		 * answer, the connection is only left unread as long as the queue
+		 * keeps draining, since the answer may be behind the packets that
+		 * were not read yet. Threads waiting on the future returned by
+		 * {@link ExternalComponentManager#queryAsync(Component, IQ, long)}
+		 * are not known to the component, so handlers must not block on it.
+		 */
+		BLOCK,
+		/**
+		 * Messages and presences are dropped. IQ packets are never dropped
+		 * since their sender waits for an answer, so the connection is not
+		 * read until they can be queued.
+		 */
+		SHED,
+		/**
+		 * The packet is processed by the thread reading the connection.
+		 * Packets that must stay in order behind the queued packets block
+		 * the connection instead. Reactor threads never process packets, so
+		 * with the {@link Transport#REACTOR} transport this policy behaves
+		 * like {@link #BLOCK}.
+		 */
+		CALLER_RUNS
+	}
+
+	/**
+	 * The reasons for which a component drops the packets it receives.
+	 */
+	public enum ShedReason {
+		/**
+		 * The inbound queue was full and the overload policy is
+		 * {@link OverloadPolicy#SHED}.
+		 */
+		QUEUE_FULL,
+		/**
+		 * The inbound queue held more packets than the shedding
+		 * threshold.
+		 */
+		QUEUE_DEPTH,
+		/**
+		 * Packets waited in the inbound queue longer than the shedding
+		 * threshold.
+		 */
+		QUEUE_LATENCY
+	}
+
+	/**
+	 * The ways in which the packets received by a component are processed.
+	 */
+	public enum Execution {
+		/**
+		 * Packets are processed by a fixed pool of threads.
+		 */
+		THREAD_POOL,
+		/**
+		 * Every packet is processed by its own virtual thread. Requires a JVM
+		 * that supports virtual threads, otherwise a thread pool is used.
+		 */
+		VIRTUAL_THREADS
+	}
+
+	/**
+	 * The keys that decide which received packets are processed in order.
+	 * Packets with the same key are handed to the component one after the
+	 * other while packets with different keys are processed in parallel.
+	 */
+	public enum OrderingKey {
+		/**
+		 * Packets are processed in parallel without any ordering guarantee.
+		 */
+		NONE,
+		/**
+		 * Packets sent by the same user are processed in order, whatever
+		 * resource sent them.
+		 */
+		BARE_JID,
+		/**
+		 * Packets sent by the same resource are processed in order.
+		 */
+		FULL_JID,
+		/**
+		 * Messages of the same conversation thread are processed in order.
+		 * Packets without a thread are ordered by their full JID.
+		 */
+		THREAD
+	}
+
+	/**
+	 * Which packets are discarded when the buffer of a disconnected component
+	 * is full.
+	 */
+	public enum BufferOverflowPolicy {
+		/**
+		 * The oldest buffered packets make room for the new packet.
+		 */
+		DROP_OLDEST,
+		/**
+		 * The new packet is discarded.
+		 */
+		DROP_NEWEST
+	}
+
+	/**
+	 * How the compressed output of a component is flushed.
+	 */
+	public enum CompressionFlush {
+		/**
+		 * The compression dictionary is kept across flushes, which gives the
+		 * best compression.
+		 */
+		SYNC_FLUSH,
+		/**
+		 * The compression dictionary is reset on every flush, which costs
+		 * compression but keeps every batch of packets independent.
+		 */
+		FULL_FLUSH
+	}
+
+	/**
+	 * The states of the connection of a component with the server.
+	 */
+	public enum ConnectionState {
+		/**
+		 * The connection is being established and authenticated.
+		 */
+		CONNECTING,
+		/**
+		 * The connection is authenticated and packets flow in both
+		 * directions.
+		 */
+		CONNECTED,
+		/**
+		 * The connection was lost and a new attempt to connect is scheduled.
+		 * Packets sent in this state are buffered, within the limits of the
+		 * reconnect buffer, until the component is connected again.
+		 */
+		DISCONNECTED,
+		/**
+		 * The component was shut down and will not connect again.
+		 */
+		SHUTDOWN
+	}
+
 	/**
 	 * Keeps the IP address or hostname of the server. This value will be used
 	 * only for creating connections.
@@ -62,6 +251,172 @@ public class ExternalComponentManager implements ComponentManager {
 	 * Timeout to use when trying to connect to the server.
 	 */
 	private int connectTimeout = 2000;
+	/**
+	 * Maximum number of packets of a component waiting to be sent to the
+	 * server.
+	 */
+	private int sendQueueSize = 10000;
+	/**
+	 * Time (in milliseconds) a sender waits for room in a full send queue, and
+	 * a write to the server may take before the connection is considered dead.
+	 */
+	private long writeTimeout = 10000;
+	/**
+	 * Maximum number of packets a component buffers while it is not connected.
+	 */
+	private int reconnectBufferSize = 10000;
+	/**
+	 * Maximum size in bytes of the packets a component buffers while it is not
+	 * connected.
+	 */
+	private long reconnectBufferBytes = 4 * 1024 * 1024;
+	/**
+	 * Time (in milliseconds) a packet may stay in the buffer of a disconnected
+	 * component.
+	 */
+	private long reconnectBufferTtl = 30000;
+	/**
+	 * Decides which packets are discarded when the buffer of a disconnected
+	 * component is full.
+	 */
+	private BufferOverflowPolicy bufferOverflowPolicy = BufferOverflowPolicy.DROP_OLDEST;
+	/**
+	 * True if the components ask the server to compress their connections.
+	 */
+	private boolean compression = false;
+	/**
+	 * Zlib compression level of the connections.
+	 */
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	/**
+	 * How the compressed output of the components is flushed.
+	 */
+	private CompressionFlush compressionFlush = CompressionFlush.SYNC_FLUSH;
+	/**
+	 * Directory of the spools of the components, or <tt>null</tt> if packets
+	 * are not spooled to disk.
+	 */
+	private File spoolDirectory;
+	/**
+	 * Size in bytes of the segment files of a spool.
+	 */
+	private int spoolSegmentSize = 16 * 1024 * 1024;
+	/**
+	 * Maximum size in bytes of the spool of a component.
+	 */
+	private long maxSpoolSize = 1024L * 1024 * 1024;
+	/**
+	 * Number of bytes read from the connection of a component at once.
+	 */
+	private int readBufferSize = 16384;
+	/**
+	 * Maximum size in bytes of a stanza read from a framed connection.
+	 */
+	private int maxStanzaSize = 1024 * 1024;
+	/**
+	 * True if the connections are read into direct buffers.
+	 */
+	private boolean directReadBuffer = false;
+	/**
+	 * True if the stanzas are parsed by the thread pool of the components
+	 * instead of the thread reading the connection.
+	 */
+	private boolean parseOffload = false;
+	/**
+	 * True if the content of the received stanzas is parsed on demand.
+	 */
+	private boolean lazyParsing = false;
+	/**
+	 * Decides when the packets written by the components are flushed.
+	 */
+	private FlushPolicy flushPolicy = FlushPolicy.coalescing(0, TimeUnit.MICROSECONDS, 65536);
+	/**
+	 * Precision (in milliseconds) of the timeouts of the IQ result listeners.
+	 */
+	private long timeoutResolution = 100;
+	/**
+	 * Number of milliseconds without sending packets after which a component
+	 * sends a heartbeat to the server.
+	 */
+	private long keepAliveInterval = 30000;
+	/**
+	 * Time (in milliseconds) waited before the first attempt to reconnect.
+	 */
+	private long reconnectDelay = 1000;
+	/**
+	 * Maximum time (in milliseconds) waited between two attempts to
+	 * reconnect.
+	 */
+	private long maxReconnectDelay = 60000;
+	/**
+	 * Fraction of the reconnect delay that is randomized.
+	 */
+	private double reconnectJitter = 0.5;
+	/**
+	 * Maximum number of packets received by a component that wait to be
+	 * processed.
+	 */
+	private int inboundQueueSize = 10000;
+	/**
+	 * Decides what to do with the packets received while the inbound queue
+	 * of a component is full.
+	 */
+	private OverloadPolicy overloadPolicy = OverloadPolicy.BLOCK;
+	/**
+	 * True if queued presences are replaced by newer ones from the same
+	 * sender.
+	 */
+	private boolean presenceConflation = false;
+	/**
+	 * Number of queued packets from which low priority packets are dropped, or
+	 * 0 if the depth of the queue is ignored.
+	 */
+	private int shedQueueDepth = 0;
+	/**
+	 * Time (in milliseconds) in the queue from which low priority packets are
+	 * dropped, or 0 if the latency of the queue is ignored.
+	 */
+	private long shedQueueLatency = 0;
+	/**
+	 * Names of the low priority stanzas.
+	 */
+	private final Set<String> shedStanzaTypes = new CopyOnWriteArraySet<String>(Collections.singleton("presence"));
+	/**
+	 * Namespaces of the children of low priority stanzas.
+	 */
+	private final Set<String> shedNamespaces = new CopyOnWriteArraySet<String>();
+	/**
+	 * Namespaces of the stanzas that are processed before the other received
+	 * stanzas.
+	 */
+	private final Set<String> priorityNamespaces = new CopyOnWriteArraySet<String>();
+	/**
+	 * Listeners notified of the changes of the connections of the components.
+	 */
+	private final List<ConnectionListener> connectionListeners = new CopyOnWriteArrayList<ConnectionListener>();
+	/**
+	 * Decides which received packets are processed in order.
+	 */
+	private OrderingKey orderingKey = OrderingKey.NONE;
+	/**
+	 * Transport used for reading the connections of the components.
+	 */
+	private Transport transport = Transport.BLOCKING;
+	/**
+	 * Number of threads that will read the connections when using the
+	 * {@link Transport#REACTOR} transport.
+	 */
+	private int reactorThreads = 2;
+	/**
+	 * Reactor shared by all components, created when the first component
+	 * connects using the {@link Transport#REACTOR} transport.
+	 */
+	private ComponentReactor reactor;
+	/**
+	 * Task that sends the heartbeats and expires the IQ result listeners of
+	 * all components, running while components are registered.
+	 */
+	private TimerTask sweepTask;
 	/**
 	 * This is a global secret key that will be used during the handshake with
 	 * the server. If a secret key was not defined for the specific component
@@ -81,6 +436,40 @@ public class ExternalComponentManager implements ComponentManager {
 	 * servers should ignore this setting.
 	 */
 	private final Map<String, Boolean> allowMultiple = new Hashtable<String, Boolean>();
+	/**
+	 * Keeps the way in which each subdomain processes the received packets.
+	 * Subdomains that are not found use a thread pool.
+	 */
+	private final Map<String, Execution> executions = new Hashtable<String, Execution>();
+	/**
+	 * Keeps the maximum number of packets that each subdomain processes at the
+	 * same time.
+	 */
+	private final Map<String, Integer> maxConcurrency = new Hashtable<String, Integer>();
+	/**
+	 * Keeps the number of connections that each subdomain opens with the
+	 * server. Subdomains that are not found use a single connection.
+	 */
+	private final Map<String, Integer> connectionCounts = new Hashtable<String, Integer>();
+	/**
+	 * Holds the subdomains whose components keep a standby connection.
+	 */
+	private final Set<String> hotStandby = new CopyOnWriteArraySet<String>();
+	/**
+	 * Other nodes of the server that components connect to when the main
+	 * host cannot be reached.
+	 */
+	private final List<ServerEndpoint> failoverEndpoints = new CopyOnWriteArrayList<ServerEndpoint>();
+	/**
+	 * Time in milliseconds a server node is avoided after a connection to it
+	 * failed or was lost.
+	 */
+	private long endpointRetryDelay = 30000;
+	/**
+	 * Path of the Unix domain socket of a server running on the same host, or
+	 * <tt>null</tt> if components only connect through TCP.
+	 */
+	private String unixSocketPath;
 
 	Preferences preferences = Preferences.userRoot();
 	private String preferencesPrefix;
@@ -128,6 +517,125 @@ public class ExternalComponentManager implements ComponentManager {
 		ComponentManagerFactory.setComponentManager(this);
 	}
 
+	/**
+	 * Adds a node of the server that components connect to when the nodes
+	 * added before cannot be reached. See
+	 * {@link #addServerEndpoint(String, int, int)}.
+	 * 
+	 * @param host
+	 *            the IP address or name of the server node.
+	 * @param port
+	 *            the port to connect on.
+	 */
+	public void addServerEndpoint(final String host, final int port) {
+		addServerEndpoint(host, port, 1);
+	}
+
+	/**
+	 * Adds a node of the server that components may connect to. The host
+	 * given to the constructor is tried first, followed by the added nodes.
+	 * On each connection and reconnection, nodes that failed recently are
+	 * skipped and the node that answered the handshake the fastest is
+	 * preferred, so a component fails over to a healthy node right away
+	 * instead of retrying a dead one. The weight makes a node preferred over
+	 * lighter nodes with a similar latency. The value applies to components
+	 * added after this call.
+	 * 
+	 * @param host
+	 *            the IP address or name of the server node.
+	 * @param port
+	 *            the port to connect on.
+	 * @param weight
+	 *            the weight of the node, 1 for the main host.
+	 */
+	public void addServerEndpoint(final String host, final int port, final int weight) {
+		failoverEndpoints.add(new ServerEndpoint(host, port, weight));
+	}
+
+	/**
+	 * Returns the addresses of the nodes of the server, starting with the
+	 * host given to the constructor.
+	 * 
+	 * @return the addresses of the server nodes.
+	 */
+	public List<InetSocketAddress> getServerEndpoints() {
+		final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		addresses.add(InetSocketAddress.createUnresolved(host, port));
+		for (final ServerEndpoint endpoint : failoverEndpoints) {
+			addresses.add(endpoint.toAddress());
+		}
+		return addresses;
+	}
+
+	List<ServerEndpoint> getFailoverEndpoints() {
+		return failoverEndpoints;
+	}
+
+	/**
+	 * Returns the time in milliseconds a server node is avoided after a
+	 * connection to it failed or was lost. The default value is 30 seconds.
+	 * 
+	 * @return the retry delay of the server nodes.
+	 */
+	public long getEndpointRetryDelay() {
+		return endpointRetryDelay;
+	}
+
+	/**
+	 * Sets the time in milliseconds a server node is avoided after a
+	 * connection to it failed or was lost. Nodes that are avoided are still
+	 * tried when no other node can be reached. The value applies to
+	 * components added after this call.
+	 * 
+	 * @param endpointRetryDelay
+	 *            the retry delay of the server nodes.
+	 */
+	public void setEndpointRetryDelay(final long endpointRetryDelay) {
+		if (endpointRetryDelay < 0)
+			throw new IllegalArgumentException("Retry delay cannot be negative");
+		this.endpointRetryDelay = endpointRetryDelay;
+	}
+
+	/**
+	 * Returns the path of the Unix domain socket that components connect to
+	 * before trying the TCP nodes of the server.
+	 * 
+	 * @return the path of the socket, or <tt>null</tt> if components only
+	 *         connect through TCP.
+	 */
+	public String getUnixSocketPath() {
+		return unixSocketPath;
+	}
+
+	/**
+	 * Sets the path of the Unix domain socket of a server running on the same
+	 * host. Components connect to the socket before trying the host given to
+	 * the constructor and the other nodes, which skips the TCP stack of the
+	 * loopback interface. The TCP nodes are still used when the socket cannot
+	 * be connected. The value applies to components added after this call.
+	 * <p>
+	 *
+	 * Unix domain sockets require Java 16 or later. On older JVMs components
+	 * connect through TCP.
+	 * 
+	 * @param unixSocketPath
+	 *            the path of the socket, or <tt>null</tt> to only connect
+	 *            through TCP.
+	 */
+	public void setUnixSocketPath(final String unixSocketPath) {
+		this.unixSocketPath = unixSocketPath;
+	}
+
+	/**
+	 * Returns true if the JVM can connect to a server through a Unix domain
+	 * socket.
+	 * 
+	 * @return true if Unix domain sockets are supported.
+	 */
+	public static boolean isUnixSocketSupported() {
+		return UnixDomainSocket.isSupported();
+	}
+
 	/**
 	 * Sets a secret key for a sub-domain, for future use by a component
 	 * connecting to the server. Keys are used as an authentication mechanism
@@ -204,6 +712,151 @@ public class ExternalComponentManager implements ComponentManager {
 		this.allowMultiple.put(subdomain, allowMultiple);
 	}
 
+	/**
+	 * Returns the way in which the component of a subdomain processes the
+	 * packets it receives. The default value is {@link Execution#THREAD_POOL}.
+	 * 
+	 * @param subdomain
+	 *            the sub-domain.
+	 * @return the execution mode of the sub-domain.
+	 */
+	public Execution getExecution(final String subdomain) {
+		final Execution execution = executions.get(subdomain);
+		return execution != null ? execution : Execution.THREAD_POOL;
+	}
+
+	/**
+	 * Sets the way in which the component of a subdomain processes the
+	 * packets it receives. Components whose handlers block, for instance on a
+	 * database or on {@link #query(Component, IQ, long)}, scale to many
+	 * packets in flight with {@link Execution#VIRTUAL_THREADS} without tuning
+	 * the size of a thread pool. The value applies to components added after
+	 * this call.
+	 * 
+	 * @param subdomain
+	 *            the sub-domain.
+	 * @param execution
+	 *            the execution mode of the sub-domain.
+	 */
+	public void setExecution(final String subdomain, final Execution execution) {
+		if (execution == null)
+			throw new IllegalArgumentException("Execution cannot be null");
+		executions.put(subdomain, execution);
+	}
+
+	/**
+	 * Returns the maximum number of packets that the component of a subdomain
+	 * processes at the same time. This is the number of threads of the pool,
+	 * 25 by default, or the number of virtual threads that may run at once,
+	 * 10000 by default. The default of the thread pool also applies when
+	 * virtual threads are not supported by the JVM.
+	 * 
+	 * @param subdomain
+	 *            the sub-domain.
+	 * @return the maximum number of packets processed at the same time.
+	 */
+	public int getMaxConcurrency(final String subdomain) {
+		final Integer max = maxConcurrency.get(subdomain);
+		if (max != null) {
+			return max;
+		}
+		if (getExecution(subdomain) == Execution.VIRTUAL_THREADS && VirtualThreadExecutor.isSupported()) {
+			return 10000;
+		}
+		return 25;
+	}
+
+	/**
+	 * Sets the maximum number of packets that the component of a subdomain
+	 * processes at the same time. With virtual threads the packets beyond the
+	 * limit wait for their turn without holding back the thread reading the
+	 * connection. The value applies to components added after this call.
+	 * 
+	 * @param subdomain
+	 *            the sub-domain.
+	 * @param maxConcurrency
+	 *            the maximum number of packets processed at the same time.
+	 */
+	public void setMaxConcurrency(final String subdomain, final int maxConcurrency) {
+		if (maxConcurrency < 1)
+			throw new IllegalArgumentException("Maximum concurrency must be positive");
+		this.maxConcurrency.put(subdomain, maxConcurrency);
+	}
+
+	/**
+	 * Returns the number of connections that the component of a subdomain
+	 * opens with the server. The default value is 1.
+	 * 
+	 * @param subdomain
+	 *            the sub-domain.
+	 * @return the number of connections of the sub-domain.
+	 */
+	public int getConnectionCount(final String subdomain) {
+		final Integer count = connectionCounts.get(subdomain);
+		return count != null ? count : 1;
+	}
+
+	/**
+	 * Sets the number of connections that the component of a subdomain opens
+	 * with the server. Packets sent by the component are spread over the
+	 * connections, always sending the packets addressed to the same bare JID
+	 * through the same connection so that they stay in order, and packets are
+	 * read from all of them. More connections lift the throughput limit of a
+	 * single TCP stream. The server must accept multiple connections for the
+	 * same subdomain, which components with several connections ask for like
+	 * {@link #setMultipleAllowed(String, boolean)} does. The value applies to
+	 * components added after this call.
+	 * 
+	 * @param subdomain
+	 *            the sub-domain.
+	 * @param connections
+	 *            the number of connections of the sub-domain.
+	 */
+	public void setConnectionCount(final String subdomain, final int connections) {
+		if (connections < 1)
+			throw new IllegalArgumentException("Number of connections must be positive");
+		connectionCounts.put(subdomain, connections);
+	}
+
+	/**
+	 * Returns true if the component of a subdomain keeps a standby connection
+	 * with the server.
+	 * 
+	 * @param subdomain
+	 *            the sub-domain.
+	 * @return true if the sub-domain has a standby connection.
+	 */
+	public boolean isHotStandby(final String subdomain) {
+		return hotStandby.contains(subdomain);
+	}
+
+	/**
+	 * Sets whether the component of a subdomain keeps an extra connection
+	 * that is authenticated in advance and takes over at once when a
+	 * connection is lost. The packets waiting to be sent through the lost
+	 * connection are sent through the standby connection and the component
+	 * is not restarted, while the lost connection reconnects in the
+	 * background and becomes the new standby connection. The server must
+	 * accept multiple connections for the same subdomain, which components
+	 * with a standby connection ask for like
+	 * {@link #setMultipleAllowed(String, boolean)} does. When the server has
+	 * several nodes, the standby connection prefers another node than the
+	 * first connection. The value applies to components added after this
+	 * call.
+	 * 
+	 * @param subdomain
+	 *            the sub-domain.
+	 * @param standby
+	 *            true to keep a standby connection.
+	 */
+	public void setHotStandby(final String subdomain, final boolean standby) {
+		if (standby) {
+			hotStandby.add(subdomain);
+		} else {
+			hotStandby.remove(subdomain);
+		}
+	}
+
 	@Override
 	public void addComponent(final String subdomain, final Component component) throws ComponentException {
 		addComponent(subdomain, component, port);
@@ -217,7 +870,8 @@ public class ExternalComponentManager implements ComponentManager {
 			throw new IllegalArgumentException("Subdomain already in use by another component");
 		}
 		// Create a wrapping ExternalComponent on the component
-		final ExternalComponent externalComponent = new ExternalComponent(component, this);
+		final ExternalComponent externalComponent = new ExternalComponent(component, this, getExecution(subdomain), getMaxConcurrency(subdomain),
+				getConnectionCount(subdomain), isHotStandby(subdomain));
 		try {
 			// Register the new component
 			componentsByDomain.put(subdomain, externalComponent);
@@ -236,6 +890,7 @@ public class ExternalComponentManager implements ComponentManager {
 		}
 		// Ask the external component to start processing incoming packets
 		externalComponent.start();
+		startSweep();
 	}
 
 	@Override
@@ -245,6 +900,28 @@ public class ExternalComponentManager implements ComponentManager {
 			components.remove(externalComponent.getComponent());
 			externalComponent.shutdown();
 		}
+		synchronized (this) {
+			if (reactor != null && components.isEmpty()) {
+				reactor.shutdown();
+				reactor = null;
+			}
+			if (sweepTask != null && components.isEmpty()) {
+				TaskEngine.getInstance().cancelScheduledTask(sweepTask);
+				sweepTask = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the ExternalComponent that is handling the specified subdomain or
+	 * <tt>null</tt> if no component was added for the subdomain.
+	 * 
+	 * @param subdomain
+	 *            the subdomain of the component.
+	 * @return the ExternalComponent handling the subdomain or null.
+	 */
+	public ExternalComponent getExternalComponent(final String subdomain) {
+		return componentsByDomain.get(subdomain);
 	}
 
 	@Override
@@ -272,14 +949,60 @@ public class ExternalComponentManager implements ComponentManager {
 		}, timeout);
 		sendPacket(component, packet);
 		IQ reply = null;
+		// The connection must keep being read even if the threads of the
+		// component are all waiting for answers
+		externalComponent.queryStarted();
 		try {
 			reply = answer.poll(timeout, TimeUnit.MILLISECONDS);
 		} catch (final InterruptedException e) {
 			// Ignore
+		} finally {
+			externalComponent.queryEnded();
 		}
 		return reply;
 	}
 
+	/**
+	 * Sends an IQ packet on behalf of a component without waiting for the
+	 * answer. The returned future completes with the result or error IQ sent
+	 * back, or exceptionally with a {@link TimeoutException} if no answer
+	 * arrives in time and with a {@link ComponentException} if the component
+	 * is not connected or gets disconnected while waiting. Cancelling the
+	 * future stops waiting for the answer.
+	 * <p>
+	 * 
+	 * Dependent stages that are not async run on the thread delivering the
+	 * answer, which is a thread of the component, so they should not block.
+	 * 
+	 * @param component
+	 *            the component sending the packet.
+	 * @param packet
+	 *            the IQ packet to send.
+	 * @param timeout
+	 *            the number of milliseconds to wait for the answer.
+	 * @return the future of the answer.
+	 */
+	public CompletableFuture<IQ> queryAsync(final Component component, final IQ packet, final long timeout) {
+		final ExternalComponent externalComponent = components.get(component);
+		if (externalComponent == null) {
+			return failedQuery(new ComponentException("Component is not registered: " + component.getName()));
+		}
+		if (externalComponent.getConnectionState() != ExternalComponentManager.ConnectionState.CONNECTED) {
+			// Fail right away rather than once the timeout elapsed
+			return failedQuery(new ComponentException("Component is not connected: " + component.getName()));
+		}
+		final IQResultFuture future = new IQResultFuture(externalComponent, packet.getID());
+		externalComponent.addIQResultListener(packet.getID(), future, timeout);
+		externalComponent.send(packet);
+		return future;
+	}
+
+	private static CompletableFuture<IQ> failedQuery(final ComponentException exception) {
+		final CompletableFuture<IQ> failed = new CompletableFuture<IQ>();
+		failed.completeExceptionally(exception);
+		return failed;
+	}
+
 	@Override
 	public void query(final Component component, final IQ packet, final IQResultListener listener) throws ComponentException {
 		final ExternalComponent externalComponent = components.get(component);
@@ -353,6 +1076,998 @@ public class ExternalComponentManager implements ComponentManager {
 		this.connectTimeout = connectTimeout;
 	}
 
+	/**
+	 * Returns the maximum number of packets of a component that may be waiting
+	 * to be sent to the server. The default value is 10000.
+	 * 
+	 * @return the maximum size of the send queue of a component.
+	 */
+	public int getSendQueueSize() {
+		return sendQueueSize;
+	}
+
+	/**
+	 * Sets the maximum number of packets of a component that may be waiting to
+	 * be sent to the server. The value applies to components added after this
+	 * call.
+	 * 
+	 * @param sendQueueSize
+	 *            the maximum size of the send queue of a component.
+	 */
+	public void setSendQueueSize(final int sendQueueSize) {
+		if (sendQueueSize < 1)
+			throw new IllegalArgumentException("Send queue size must be positive");
+		this.sendQueueSize = sendQueueSize;
+	}
+
+	/**
+	 * Returns the time (in milliseconds) a sender waits for room in a full
+	 * send queue before the packet is rejected. A write to the server that
+	 * takes longer than this time makes the component reconnect. The default
+	 * value is 10 seconds.
+	 * 
+	 * @return the write timeout in milliseconds.
+	 */
+	public long getWriteTimeout() {
+		return writeTimeout;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) a sender waits for room in a full send
+	 * queue before the packet is rejected. A write to the server that takes
+	 * longer than this time makes the component reconnect. Stalled writes are
+	 * detected with the precision of the
+	 * {@link #setTimeoutResolution(long) timeout resolution}. The value
+	 * applies to components added after this call.
+	 * 
+	 * @param writeTimeout
+	 *            the write timeout in milliseconds.
+	 */
+	public void setWriteTimeout(final long writeTimeout) {
+		this.writeTimeout = writeTimeout;
+	}
+
+	/**
+	 * Returns the maximum number of packets a component buffers while it is
+	 * not connected to the server. The default value is 10000.
+	 * 
+	 * @return the maximum number of buffered packets of a component.
+	 */
+	public int getReconnectBufferSize() {
+		return reconnectBufferSize;
+	}
+
+	/**
+	 * Sets the maximum number of packets a component buffers while it is not
+	 * connected to the server. Buffered packets are sent once the component
+	 * reconnected, before the packets sent afterwards. A size of 0 disables
+	 * the buffer so packets sent while disconnected are lost. The value
+	 * applies to components added after this call.
+	 * 
+	 * @param reconnectBufferSize
+	 *            the maximum number of buffered packets of a component.
+	 */
+	public void setReconnectBufferSize(final int reconnectBufferSize) {
+		if (reconnectBufferSize < 0)
+			throw new IllegalArgumentException("Reconnect buffer size cannot be negative");
+		this.reconnectBufferSize = reconnectBufferSize;
+	}
+
+	/**
+	 * Returns the maximum size in bytes of the packets a component buffers
+	 * while it is not connected to the server. The default value is 4 MB.
+	 * 
+	 * @return the maximum size of the buffer of a component in bytes.
+	 */
+	public long getReconnectBufferBytes() {
+		return reconnectBufferBytes;
+	}
+
+	/**
+	 * Sets the maximum size in bytes of the packets a component buffers while
+	 * it is not connected to the server, measured on the serialized packets.
+	 * The value applies to components added after this call.
+	 * 
+	 * @param reconnectBufferBytes
+	 *            the maximum size of the buffer of a component in bytes.
+	 */
+	public void setReconnectBufferBytes(final long reconnectBufferBytes) {
+		if (reconnectBufferBytes < 0)
+			throw new IllegalArgumentException("Reconnect buffer size cannot be negative");
+		this.reconnectBufferBytes = reconnectBufferBytes;
+	}
+
+	/**
+	 * Returns the time (in milliseconds) a packet may stay in the buffer of a
+	 * disconnected component. The default value is 30 seconds.
+	 * 
+	 * @return the time to live of the buffered packets in milliseconds.
+	 */
+	public long getReconnectBufferTtl() {
+		return reconnectBufferTtl;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) a packet may stay in the buffer of a
+	 * disconnected component. Packets buffered for longer are discarded
+	 * instead of being sent, since their recipients are unlikely to still
+	 * care about them. Components that spool their packets to disk do not use
+	 * the buffer. The value applies to components added after this call.
+	 * 
+	 * @param reconnectBufferTtl
+	 *            the time to live of the buffered packets in milliseconds.
+	 */
+	public void setReconnectBufferTtl(final long reconnectBufferTtl) {
+		if (reconnectBufferTtl < 1)
+			throw new IllegalArgumentException("Reconnect buffer time to live must be positive");
+		this.reconnectBufferTtl = reconnectBufferTtl;
+	}
+
+	/**
+	 * Returns which packets are discarded when the buffer of a disconnected
+	 * component is full. The default value is
+	 * {@link BufferOverflowPolicy#DROP_OLDEST}.
+	 * 
+	 * @return the overflow policy of the buffer.
+	 */
+	public BufferOverflowPolicy getBufferOverflowPolicy() {
+		return bufferOverflowPolicy;
+	}
+
+	/**
+	 * Sets which packets are discarded when the buffer of a disconnected
+	 * component is full. The value applies to components added after this
+	 * call.
+	 * 
+	 * @param bufferOverflowPolicy
+	 *            the overflow policy of the buffer.
+	 */
+	public void setBufferOverflowPolicy(final BufferOverflowPolicy bufferOverflowPolicy) {
+		if (bufferOverflowPolicy == null)
+			throw new IllegalArgumentException("Buffer overflow policy cannot be null");
+		this.bufferOverflowPolicy = bufferOverflowPolicy;
+	}
+
+	/**
+	 * Returns true if the components ask the server to compress their
+	 * connections. Connections are not compressed by default.
+	 * 
+	 * @return true if the connections are compressed.
+	 */
+	public boolean isCompression() {
+		return compression;
+	}
+
+	/**
+	 * Sets if the components ask the server to compress their connections
+	 * with zlib, as defined in XEP-0138. The compression is requested right
+	 * after the handshake and the connection goes on uncompressed if the
+	 * server declines. Since component connections do not advertise stream
+	 * features, this should only be enabled with servers known to accept the
+	 * compression of component connections. The value applies to connections
+	 * established after this call.
+	 * 
+	 * @param compression
+	 *            true to compress the connections.
+	 */
+	public void setCompression(final boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Returns the zlib compression level of the connections. The default
+	 * value is {@link Deflater#DEFAULT_COMPRESSION}.
+	 * 
+	 * @return the compression level.
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Sets the zlib compression level of the connections, from 1 (fastest)
+	 * to 9 (smallest). The value applies to connections established after
+	 * this call.
+	 * 
+	 * @param compressionLevel
+	 *            the compression level, or
+	 *            {@link Deflater#DEFAULT_COMPRESSION}.
+	 */
+	public void setCompressionLevel(final int compressionLevel) {
+		if ((compressionLevel < 0 || compressionLevel > 9) && compressionLevel != Deflater.DEFAULT_COMPRESSION)
+			throw new IllegalArgumentException("Compression level must be between 0 and 9");
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Returns how the compressed output of the components is flushed. The
+	 * default value is {@link CompressionFlush#SYNC_FLUSH}.
+	 * 
+	 * @return the flush mode of the compressed output.
+	 */
+	public CompressionFlush getCompressionFlush() {
+		return compressionFlush;
+	}
+
+	/**
+	 * Sets how the compressed output of the components is flushed. The output
+	 * is flushed once per batch of packets, as decided by the
+	 * {@link #setFlushPolicy(FlushPolicy) flush policy}, so larger batches
+	 * compress better. The value applies to connections established after
+	 * this call.
+	 * 
+	 * @param compressionFlush
+	 *            the flush mode of the compressed output.
+	 */
+	public void setCompressionFlush(final CompressionFlush compressionFlush) {
+		if (compressionFlush == null)
+			throw new IllegalArgumentException("Compression flush cannot be null");
+		this.compressionFlush = compressionFlush;
+	}
+
+	/**
+	 * Returns the directory where the components spool the packets that do
+	 * not fit in memory, or <tt>null</tt> if packets are not spooled. Packets
+	 * are not spooled by default.
+	 * 
+	 * @return the spool directory or null.
+	 */
+	public File getSpoolDirectory() {
+		return spoolDirectory;
+	}
+
+	/**
+	 * Sets the directory where the components spool the packets that do not
+	 * fit in memory. Once set, a component whose send queue is full appends
+	 * the packets it sends to a journal in this directory instead of making
+	 * the senders wait, and a disconnected component appends them to the
+	 * journal instead of its reconnect buffer, so that they do not expire
+	 * however long the outage lasts. The spooled packets are sent in order as
+	 * soon as possible, and packets spooled before a restart are sent once the
+	 * component connected again, although packets that were still held in
+	 * memory when the component was shut down are lost. Every component uses
+	 * its own files, named after its subdomain. The value applies to
+	 * components connecting after this call.
+	 * 
+	 * @param spoolDirectory
+	 *            the spool directory, or <tt>null</tt> to not spool packets.
+	 */
+	public void setSpoolDirectory(final File spoolDirectory) {
+		this.spoolDirectory = spoolDirectory;
+	}
+
+	/**
+	 * Returns the size in bytes of the files the spool of a component is made
+	 * of. The default value is 16 MB.
+	 * 
+	 * @return the size of a spool segment in bytes.
+	 */
+	public int getSpoolSegmentSize() {
+		return spoolSegmentSize;
+	}
+
+	/**
+	 * Sets the size in bytes of the files the spool of a component is made of.
+	 * The files are mapped in memory and deleted once all their packets were
+	 * sent. A packet larger than a segment cannot be spooled. The value
+	 * applies to components connecting after this call.
+	 * 
+	 * @param spoolSegmentSize
+	 *            the size of a spool segment in bytes.
+	 */
+	public void setSpoolSegmentSize(final int spoolSegmentSize) {
+		if (spoolSegmentSize < 4096)
+			throw new IllegalArgumentException("Spool segment size must be at least 4096 bytes");
+		this.spoolSegmentSize = spoolSegmentSize;
+	}
+
+	/**
+	 * Returns the maximum size in bytes of the spool of a component. The
+	 * default value is 1 GB.
+	 * 
+	 * @return the maximum size of the spool of a component in bytes.
+	 */
+	public long getMaxSpoolSize() {
+		return maxSpoolSize;
+	}
+
+	/**
+	 * Sets the maximum size in bytes of the spool of a component. Packets sent
+	 * while the spool is full are rejected. The value applies to components
+	 * connecting after this call.
+	 * 
+	 * @param maxSpoolSize
+	 *            the maximum size of the spool of a component in bytes.
+	 */
+	public void setMaxSpoolSize(final long maxSpoolSize) {
+		if (maxSpoolSize < 1)
+			throw new IllegalArgumentException("Maximum spool size must be positive");
+		this.maxSpoolSize = maxSpoolSize;
+	}
+
+	/**
+	 * Returns the number of bytes read from the connection of a component at
+	 * once. The default value is 16384.
+	 * 
+	 * @return the size of the read buffer of a component.
+	 */
+	public int getReadBufferSize() {
+		return readBufferSize;
+	}
+
+	/**
+	 * Sets the number of bytes read from the connection of a component at
+	 * once. Larger buffers mean fewer reads from the socket when many stanzas
+	 * are received. The value applies to connections established after this
+	 * call.
+	 * 
+	 * @param readBufferSize
+	 *            the size of the read buffer of a component.
+	 */
+	public void setReadBufferSize(final int readBufferSize) {
+		if (readBufferSize < 1)
+			throw new IllegalArgumentException("Read buffer size must be positive");
+		this.readBufferSize = readBufferSize;
+	}
+
+	/**
+	 * Returns the maximum size in bytes of a stanza received by a component.
+	 * The default value is 1048576 (1 MB).
+	 * 
+	 * @return the maximum size of a received stanza.
+	 */
+	public int getMaxStanzaSize() {
+		return maxStanzaSize;
+	}
+
+	/**
+	 * Sets the maximum size in bytes of a stanza received by a component. The
+	 * limit applies to the connections whose stanzas are cut from the raw
+	 * stream: the {@link Transport#REACTOR} transport, parse offload and lazy
+	 * parsing. Unlike the XML parser of the other connections, which accepts
+	 * stanzas of any size, these connections are closed when a larger stanza
+	 * is received. The size of the rejected stanza is logged and the
+	 * connection is reestablished as after any other failure, so the limit
+	 * must be higher than the largest stanza the server may route to the
+	 * component. The value applies to connections established after this
+	 * call.
+	 * 
+	 * @param maxStanzaSize
+	 *            the maximum size of a received stanza.
+	 */
+	public void setMaxStanzaSize(final int maxStanzaSize) {
+		if (maxStanzaSize < 1)
+			throw new IllegalArgumentException("Maximum stanza size must be positive");
+		this.maxStanzaSize = maxStanzaSize;
+	}
+
+	/**
+	 * Returns true if the connections of the {@link Transport#BLOCKING}
+	 * transport are read into direct buffers. The default value is false.
+	 * 
+	 * @return true if the connections are read into direct buffers.
+	 */
+	public boolean isDirectReadBuffer() {
+		return directReadBuffer;
+	}
+
+	/**
+	 * Sets if the connections of the {@link Transport#BLOCKING} transport are
+	 * read into direct buffers, which saves copying the data read from the
+	 * socket at the cost of memory outside of the heap. The value applies to
+	 * connections established after this call.
+	 * 
+	 * @param directReadBuffer
+	 *            true to read the connections into direct buffers.
+	 */
+	public void setDirectReadBuffer(final boolean directReadBuffer) {
+		this.directReadBuffer = directReadBuffer;
+	}
+
+	/**
+	 * Returns true if the stanzas received by a component are parsed by its
+	 * thread pool instead of the thread reading the connection. The default
+	 * value is false.
+	 * 
+	 * @return true if parsing is offloaded to the thread pool.
+	 */
+	public boolean isParseOffload() {
+		return parseOffload;
+	}
+
+	/**
+	 * Sets if the stanzas received by a component are parsed by its thread
+	 * pool. The thread reading the connection then only finds where each
+	 * stanza ends so a single busy connection can use all the threads of the
+	 * pool. The stanzas of a sender are still processed in the order they
+	 * were received unless another {@link OrderingKey} is set. The value
+	 * applies to components added after this call.
+	 * 
+	 * @param parseOffload
+	 *            true to parse the stanzas on the thread pool.
+	 */
+	public void setParseOffload(final boolean parseOffload) {
+		this.parseOffload = parseOffload;
+	}
+
+	/**
+	 * Returns true if the content of the stanzas received by a component is
+	 * only parsed when the component accesses it. The default value is false.
+	 * 
+	 * @return true if stanzas are parsed on demand.
+	 */
+	public boolean isLazyParsing() {
+		return lazyParsing;
+	}
+
+	/**
+	 * Sets if the content of the stanzas received by a component is only
+	 * parsed when the component accesses it. The attributes of the stanzas
+	 * are always available, so components that route or filter packets by
+	 * their sender, recipient, type or ID avoid building the XML tree of
+	 * every stanza. Packets forwarded before their content was accessed are
+	 * written back as they were received. The value applies to components
+	 * added after this call.
+	 * 
+	 * @param lazyParsing
+	 *            true to parse stanzas on demand.
+	 */
+	public void setLazyParsing(final boolean lazyParsing) {
+		this.lazyParsing = lazyParsing;
+	}
+
+	/**
+	 * Returns the maximum number of packets received by a component that wait
+	 * to be processed. The default value is 10000.
+	 * 
+	 * @return the capacity of the inbound queue of the components.
+	 */
+	public int getInboundQueueSize() {
+		return inboundQueueSize;
+	}
+
+	/**
+	 * Sets the maximum number of packets received by a component that wait
+	 * to be processed. Once the queue is full the overload policy applies, so
+	 * a slow component can not fill the heap with queued packets. The value
+	 * applies to components added after this call.
+	 * 
+	 * @param inboundQueueSize
+	 *            the capacity of the inbound queue of the components.
+	 */
+	public void setInboundQueueSize(final int inboundQueueSize) {
+		if (inboundQueueSize < 1)
+			throw new IllegalArgumentException("Inbound queue size must be positive");
+		this.inboundQueueSize = inboundQueueSize;
+	}
+
+	/**
+	 * Returns what a component does with the packets it receives while its
+	 * inbound queue is full. The default value is {@link OverloadPolicy#BLOCK}.
+	 * 
+	 * @return the overload policy of the components.
+	 */
+	public OverloadPolicy getOverloadPolicy() {
+		return overloadPolicy;
+	}
+
+	/**
+	 * Sets what a component does with the packets it receives while its
+	 * inbound queue is full. The value applies to components added after this
+	 * call.
+	 * 
+	 * @param overloadPolicy
+	 *            the overload policy of the components.
+	 */
+	public void setOverloadPolicy(final OverloadPolicy overloadPolicy) {
+		if (overloadPolicy == null)
+			throw new IllegalArgumentException("Overload policy cannot be null");
+		this.overloadPolicy = overloadPolicy;
+	}
+
+	/**
+	 * Returns true if a presence received by a component replaces a queued
+	 * presence from the same sender to the same recipient. The default value
+	 * is false.
+	 * 
+	 * @return true if presences are conflated.
+	 */
+	public boolean isPresenceConflation() {
+		return presenceConflation;
+	}
+
+	/**
+	 * Sets if a presence received by a component replaces a queued presence
+	 * from the same sender to the same recipient, so that only the latest
+	 * status is processed during a storm of status changes. Only
+	 * availability changes are conflated; messages, IQs and presences about
+	 * subscriptions are always processed. The newer presence takes the place
+	 * of the older one in the queue. The value applies to components added
+	 * after this call.
+	 * 
+	 * @param presenceConflation
+	 *            true to conflate presences.
+	 */
+	public void setPresenceConflation(final boolean presenceConflation) {
+		this.presenceConflation = presenceConflation;
+	}
+
+	/**
+	 * Returns the number of packets in the inbound queue of a component from
+	 * which low priority packets are dropped. The default value is 0, which
+	 * disables the threshold.
+	 * 
+	 * @return the queue depth from which packets are shed.
+	 */
+	public int getShedQueueDepth() {
+		return shedQueueDepth;
+	}
+
+	/**
+	 * Sets the number of packets in the inbound queue of a component from
+	 * which low priority packets are dropped. The threshold is usually well
+	 * below the capacity of the queue so messages and IQs keep flowing while
+	 * a flood of presences is shed. The value applies to components added
+	 * after this call.
+	 * 
+	 * @param shedQueueDepth
+	 *            the queue depth from which packets are shed, or 0 to
+	 *            disable the threshold.
+	 */
+	public void setShedQueueDepth(final int shedQueueDepth) {
+		if (shedQueueDepth < 0)
+			throw new IllegalArgumentException("Queue depth cannot be negative");
+		this.shedQueueDepth = shedQueueDepth;
+	}
+
+	/**
+	 * Returns the time (in milliseconds) that packets wait in the inbound
+	 * queue of a component from which low priority packets are dropped. The
+	 * default value is 0, which disables the threshold.
+	 * 
+	 * @return the queue latency from which packets are shed.
+	 */
+	public long getShedQueueLatency() {
+		return shedQueueLatency;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) that packets wait in the inbound queue
+	 * of a component from which low priority packets are dropped. The latency
+	 * is the time the last packet that started being processed spent in the
+	 * queue, so this threshold reacts to sustained overload while a sudden
+	 * burst is better caught by the depth threshold. The value applies to
+	 * components added after this call.
+	 * 
+	 * @param shedQueueLatency
+	 *            the queue latency from which packets are shed, or 0 to
+	 *            disable the threshold.
+	 */
+	public void setShedQueueLatency(final long shedQueueLatency) {
+		if (shedQueueLatency < 0)
+			throw new IllegalArgumentException("Queue latency cannot be negative");
+		this.shedQueueLatency = shedQueueLatency;
+	}
+
+	/**
+	 * Returns the names of the stanzas that are dropped when the inbound queue
+	 * of a component is overloaded. By default only presences are dropped.
+	 * 
+	 * @return the names of the low priority stanzas.
+	 */
+	public Set<String> getShedStanzaTypes() {
+		return Collections.unmodifiableSet(shedStanzaTypes);
+	}
+
+	/**
+	 * Sets the names of the stanzas that are dropped when the inbound queue of
+	 * a component is overloaded. Only <tt>presence</tt> and <tt>message</tt>
+	 * are allowed since IQs are never dropped. Presences that change a
+	 * subscription or expect an answer are never dropped either.
+	 * 
+	 * @param stanzaTypes
+	 *            the names of the low priority stanzas.
+	 */
+	public void setShedStanzaTypes(final String... stanzaTypes) {
+		for (final String stanzaType : stanzaTypes) {
+			if (!"presence".equals(stanzaType) && !"message".equals(stanzaType))
+				throw new IllegalArgumentException("Stanzas of type " + stanzaType + " cannot be shed");
+		}
+		shedStanzaTypes.clear();
+		shedStanzaTypes.addAll(Arrays.asList(stanzaTypes));
+	}
+
+	/**
+	 * Returns the namespaces of the stanzas that are dropped when the inbound
+	 * queue of a component is overloaded.
+	 * 
+	 * @return the namespaces of the low priority stanzas.
+	 */
+	public Set<String> getShedNamespaces() {
+		return Collections.unmodifiableSet(shedNamespaces);
+	}
+
+	/**
+	 * Adds a namespace of stanzas that are dropped when the inbound queue of a
+	 * component is overloaded. Messages and presences with a child element in
+	 * the namespace, like chat state notifications, are low priority
+	 * whatever their type.
+	 * 
+	 * @param namespace
+	 *            the namespace URI.
+	 */
+	public void addShedNamespace(final String namespace) {
+		shedNamespaces.add(namespace);
+	}
+
+	/**
+	 * Removes a namespace of stanzas that are dropped when the inbound queue
+	 * of a component is overloaded.
+	 * 
+	 * @param namespace
+	 *            the namespace URI.
+	 */
+	public void removeShedNamespace(final String namespace) {
+		shedNamespaces.remove(namespace);
+	}
+
+	/**
+	 * Returns the namespaces of the stanzas that components process before
+	 * the other received stanzas.
+	 * 
+	 * @return the priority namespaces.
+	 */
+	public Set<String> getPriorityNamespaces() {
+		return Collections.unmodifiableSet(priorityNamespaces);
+	}
+
+	/**
+	 * Adds a namespace of stanzas that components process before the other
+	 * received stanzas. Received stanzas with a child element in the
+	 * namespace skip the inbound queue and are processed by a separate lane
+	 * of threads, out of order with the rest of the stanzas. The answers
+	 * awaited by IQ result listeners always take this lane, so
+	 * {@link #query(Component, IQ, long)} does not time out while other
+	 * stanzas back up.
+	 * 
+	 * @param namespace
+	 *            the namespace URI.
+	 */
+	public void addPriorityNamespace(final String namespace) {
+		priorityNamespaces.add(namespace);
+	}
+
+	/**
+	 * Removes a namespace of stanzas that components process before the other
+	 * received stanzas.
+	 * 
+	 * @param namespace
+	 *            the namespace URI.
+	 */
+	public void removePriorityNamespace(final String namespace) {
+		priorityNamespaces.remove(namespace);
+	}
+
+	/**
+	 * Returns the key that decides which packets received by a component are
+	 * processed in order. The default value is {@link OrderingKey#NONE}.
+	 * 
+	 * @return the ordering key of the received packets.
+	 */
+	public OrderingKey getOrderingKey() {
+		return orderingKey;
+	}
+
+	/**
+	 * Sets the key that decides which packets received by a component are
+	 * processed in order. Packets are hashed by their key onto serial lanes
+	 * that share the thread pool of the component, so components keeping
+	 * state per user or per conversation do not need to lock it while still
+	 * processing unrelated packets in parallel. When parsing is offloaded
+	 * packets are ordered at least by their full JID. The value applies to
+	 * components added after this call.
+	 * 
+	 * @param orderingKey
+	 *            the ordering key of the received packets.
+	 */
+	public void setOrderingKey(final OrderingKey orderingKey) {
+		if (orderingKey == null)
+			throw new IllegalArgumentException("Ordering key cannot be null");
+		this.orderingKey = orderingKey;
+	}
+
+	/**
+	 * Returns the policy that decides when the packets written by a component
+	 * are flushed to the server. By default all packets that are already
+	 * queued are flushed together, without waiting for more packets.
+	 * 
+	 * @return the flush policy of the components.
+	 */
+	public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+
+	/**
+	 * Sets the policy that decides when the packets written by a component are
+	 * flushed to the server. Use {@link FlushPolicy#immediate()} for the
+	 * lowest latency or a coalescing policy with a small delay to reduce the
+	 * number of writes under heavy load. The value applies to components added
+	 * after this call.
+	 * 
+	 * @param flushPolicy
+	 *            the flush policy of the components.
+	 */
+	public void setFlushPolicy(final FlushPolicy flushPolicy) {
+		if (flushPolicy == null)
+			throw new IllegalArgumentException("Flush policy cannot be null");
+		this.flushPolicy = flushPolicy;
+	}
+
+	/**
+	 * Returns the precision (in milliseconds) of the timeouts of the IQ result
+	 * listeners. Listeners are notified of a timeout at most this time late.
+	 * The default value is 100 milliseconds.
+	 * 
+	 * @return the resolution of the IQ result timeouts in milliseconds.
+	 */
+	public long getTimeoutResolution() {
+		return timeoutResolution;
+	}
+
+	/**
+	 * Sets the precision (in milliseconds) of the timeouts of the IQ result
+	 * listeners. A smaller value makes timeouts more precise at the cost of
+	 * checking for expired listeners more often. This is also the interval of
+	 * the sweep that checks all components for expired listeners and idle
+	 * connections. The precision of the timeouts applies to components added
+	 * after this call.
+	 * 
+	 * @param timeoutResolution
+	 *            the resolution of the IQ result timeouts in milliseconds.
+	 */
+	public void setTimeoutResolution(final long timeoutResolution) {
+		if (timeoutResolution < 1)
+			throw new IllegalArgumentException("Timeout resolution must be positive");
+		synchronized (this) {
+			this.timeoutResolution = timeoutResolution;
+			if (sweepTask != null) {
+				// Reschedule the sweep with the new interval
+				TaskEngine.getInstance().cancelScheduledTask(sweepTask);
+				sweepTask = null;
+				startSweep();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of milliseconds without sending packets after which
+	 * a component sends a heartbeat to keep its connection alive. The default
+	 * value is 30000 milliseconds.
+	 * 
+	 * @return the keep alive interval in milliseconds.
+	 */
+	public long getKeepAliveInterval() {
+		return keepAliveInterval;
+	}
+
+	/**
+	 * Sets the number of milliseconds without sending packets after which a
+	 * component sends a heartbeat to keep its connection alive. Connections
+	 * that sent packets recently are left alone, so busy components never
+	 * send heartbeats. Idle connections are detected with the precision of
+	 * the {@link #setTimeoutResolution(long) timeout resolution}.
+	 * 
+	 * @param keepAliveInterval
+	 *            the keep alive interval in milliseconds.
+	 */
+	public void setKeepAliveInterval(final long keepAliveInterval) {
+		if (keepAliveInterval < 1)
+			throw new IllegalArgumentException("Keep alive interval must be positive");
+		this.keepAliveInterval = keepAliveInterval;
+	}
+
+	/**
+	 * Returns the time (in milliseconds) waited before the first attempt to
+	 * reconnect a component that lost its connection. The default value is
+	 * 1000 milliseconds.
+	 * 
+	 * @return the initial reconnect delay in milliseconds.
+	 */
+	public long getReconnectDelay() {
+		return reconnectDelay;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) waited before the first attempt to
+	 * reconnect a component that lost its connection. The delay doubles after
+	 * every failed attempt up to the maximum reconnect delay.
+	 * 
+	 * @param reconnectDelay
+	 *            the initial reconnect delay in milliseconds.
+	 */
+	public void setReconnectDelay(final long reconnectDelay) {
+		if (reconnectDelay < 1)
+			throw new IllegalArgumentException("Reconnect delay must be positive");
+		this.reconnectDelay = reconnectDelay;
+	}
+
+	/**
+	 * Returns the maximum time (in milliseconds) waited between two attempts
+	 * to reconnect. The default value is 60000 milliseconds.
+	 * 
+	 * @return the maximum reconnect delay in milliseconds.
+	 */
+	public long getMaxReconnectDelay() {
+		return maxReconnectDelay;
+	}
+
+	/**
+	 * Sets the maximum time (in milliseconds) waited between two attempts to
+	 * reconnect.
+	 * 
+	 * @param maxReconnectDelay
+	 *            the maximum reconnect delay in milliseconds.
+	 */
+	public void setMaxReconnectDelay(final long maxReconnectDelay) {
+		if (maxReconnectDelay < 1)
+			throw new IllegalArgumentException("Maximum reconnect delay must be positive");
+		this.maxReconnectDelay = maxReconnectDelay;
+	}
+
+	/**
+	 * Returns the fraction of the reconnect delay that is randomized. The
+	 * default value is 0.5.
+	 * 
+	 * @return the reconnect jitter, between 0 and 1.
+	 */
+	public double getReconnectJitter() {
+		return reconnectJitter;
+	}
+
+	/**
+	 * Sets the fraction of the reconnect delay that is randomized. With a
+	 * jitter of 0.5 components wait between half and all of the computed
+	 * delay, so that components that lost their connections at the same time,
+	 * like when the server restarts, do not all reconnect at once.
+	 * 
+	 * @param reconnectJitter
+	 *            the reconnect jitter, between 0 (no randomization) and 1.
+	 */
+	public void setReconnectJitter(final double reconnectJitter) {
+		if (reconnectJitter < 0 || reconnectJitter > 1)
+			throw new IllegalArgumentException("Reconnect jitter must be between 0 and 1");
+		this.reconnectJitter = reconnectJitter;
+	}
+
+	/**
+	 * Returns the time to wait before an attempt to reconnect.
+	 * 
+	 * @param attempt
+	 *            the number of attempts that already failed.
+	 * @return the delay in milliseconds.
+	 */
+	long getReconnectDelay(final int attempt) {
+		long delay = reconnectDelay;
+		for (int i = 0; i < attempt && delay < maxReconnectDelay; i++) {
+			delay <<= 1;
+		}
+		delay = Math.min(delay, maxReconnectDelay);
+		return Math.max(1, delay - (long) (delay * reconnectJitter * ThreadLocalRandom.current().nextDouble()));
+	}
+
+	/**
+	 * Adds a listener that is notified when the connection of a component
+	 * changes its state.
+	 * 
+	 * @param listener
+	 *            the listener to add.
+	 */
+	public void addConnectionListener(final ConnectionListener listener) {
+		connectionListeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener of the connections of the components.
+	 * 
+	 * @param listener
+	 *            the listener to remove.
+	 */
+	public void removeConnectionListener(final ConnectionListener listener) {
+		connectionListeners.remove(listener);
+	}
+
+	List<ConnectionListener> getConnectionListeners() {
+		return connectionListeners;
+	}
+
+	/**
+	 * Starts the sweep over all components if it is not running yet. A single
+	 * task serves all the components of the manager, however many there are.
+	 */
+	private synchronized void startSweep() {
+		if (sweepTask != null) {
+			return;
+		}
+		sweepTask = new TimerTask() {
+			@Override
+			public void run() {
+				final ExternalComponent[] snapshot;
+				synchronized (componentsByDomain) {
+					snapshot = componentsByDomain.values().toArray(new ExternalComponent[componentsByDomain.size()]);
+				}
+				final long now = System.currentTimeMillis();
+				for (final ExternalComponent component : snapshot) {
+					component.sweep(now, keepAliveInterval);
+				}
+			}
+		};
+		TaskEngine.getInstance().scheduleAtFixedRate(sweepTask, timeoutResolution, timeoutResolution);
+	}
+
+	/**
+	 * Returns the transport used for reading the connections of the
+	 * components. The default value is {@link Transport#BLOCKING}.
+	 * 
+	 * @return the transport used for reading the connections.
+	 */
+	public Transport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Sets the transport used for reading the connections of the components.
+	 * The new transport will be used by the connections established after this
+	 * call.
+	 * 
+	 * @param transport
+	 *            the transport used for reading the connections.
+	 */
+	public void setTransport(final Transport transport) {
+		if (transport == null)
+			throw new IllegalArgumentException("Transport cannot be null");
+		this.transport = transport;
+	}
+
+	/**
+	 * Returns the number of threads that read the connections of all
+	 * components when using the {@link Transport#REACTOR} transport. The
+	 * default value is 2.
+	 * 
+	 * @return the number of reactor threads.
+	 */
+	public int getReactorThreads() {
+		return reactorThreads;
+	}
+
+	/**
+	 * Sets the number of threads that read the connections of all components
+	 * when using the {@link Transport#REACTOR} transport. The value must be
+	 * set before the first component is added.
+	 * 
+	 * @param reactorThreads
+	 *            the number of reactor threads.
+	 */
+	public void setReactorThreads(final int reactorThreads) {
+		if (reactorThreads < 1)
+			throw new IllegalArgumentException("At least one reactor thread is required");
+		this.reactorThreads = reactorThreads;
+	}
+
+	/**
+	 * Returns the reactor that reads the connections of the components,
+	 * creating it if needed.
+	 * 
+	 * @return the reactor shared by all components.
+	 * @throws IOException
+	 *             if the reactor could not be created.
+	 */
+	synchronized ComponentReactor getReactor() throws IOException {
+		if (reactor == null) {
+			reactor = new ComponentReactor(reactorThreads);
+		}
+		return reactor;
+	}
+
 	@Override
 	public boolean isExternalMode() {
 		return true;
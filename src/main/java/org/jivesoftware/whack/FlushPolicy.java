@@ -0,0 +1,122 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the packets written by a component are flushed to the socket.
+ * Every flush results in at least one write to the socket and usually in one
+ * TCP segment, so coalescing several stanzas into a single flush saves a lot
+ * of CPU when many packets are sent in bursts.
+ * <p>
+ *
+ * An <i>immediate</i> policy flushes after every stanza, which gives the
+ * lowest latency. A <i>coalescing</i> policy keeps writing queued stanzas
+ * into the same batch until either the batch reaches the maximum number of
+ * bytes or the maximum delay since the first stanza of the batch elapsed.
+ * With a maximum delay of zero the writer never waits for more stanzas but
+ * still flushes everything that was already queued at once.
+ */
+public final class FlushPolicy {
+
+	/**
+	 * Size of the batch used by immediate policies. It only affects the size
+	 * of the write buffer.
+	 */
+	private static final int DEFAULT_BATCH_BYTES = 8192;
+
+	private final boolean immediate;
+	private final long maxDelayNanos;
+	private final int maxBatchBytes;
+
+	private FlushPolicy(final boolean immediate, final long maxDelayNanos, final int maxBatchBytes) {
+		this.immediate = immediate;
+		this.maxDelayNanos = maxDelayNanos;
+		this.maxBatchBytes = maxBatchBytes;
+	}
+
+	/**
+	 * Returns a policy that flushes after every stanza.
+	 *
+	 * @return a policy that flushes after every stanza.
+	 */
+	public static FlushPolicy immediate() {
+		return new FlushPolicy(true, 0, DEFAULT_BATCH_BYTES);
+	}
+
+	/**
+	 * Returns a policy that coalesces several stanzas into a single flush.
+	 *
+	 * @param maxDelay
+	 *            the maximum time to wait for more stanzas once the first
+	 *            stanza of a batch was written. Typical values are between
+	 *            200 microseconds and 2 milliseconds.
+	 * @param unit
+	 *            the unit of the maximum delay.
+	 * @param maxBatchBytes
+	 *            the number of bytes after which a batch is flushed without
+	 *            waiting any longer.
+	 * @return a policy that coalesces several stanzas into a single flush.
+	 */
+	public static FlushPolicy coalescing(final long maxDelay, final TimeUnit unit, final int maxBatchBytes) {
+		if (maxDelay < 0)
+			throw new IllegalArgumentException("Maximum delay cannot be negative");
+		if (maxBatchBytes < 1)
+			throw new IllegalArgumentException("Maximum batch size must be positive");
+		return new FlushPolicy(false, unit.toNanos(maxDelay), maxBatchBytes);
+	}
+
+	/**
+	 * Returns true if every stanza is flushed as soon as it was written.
+	 *
+	 * @return true if every stanza is flushed as soon as it was written.
+	 */
+	public boolean isImmediate() {
+		return immediate;
+	}
+
+	/**
+	 * Returns the maximum time (in nanoseconds) to wait for more stanzas once
+	 * the first stanza of a batch was written.
+	 *
+	 * @return the maximum delay of a batch in nanoseconds.
+	 */
+	public long getMaxDelayNanos() {
+		return maxDelayNanos;
+	}
+
+	/**
+	 * Returns the number of bytes after which a batch is flushed.
+	 *
+	 * @return the maximum size of a batch.
+	 */
+	public int getMaxBatchBytes() {
+		return maxBatchBytes;
+	}
+
+	@Override
+	public String toString() {
+		if (immediate)
+			return "immediate";
+		return "coalescing (" + TimeUnit.NANOSECONDS.toMicros(maxDelayNanos) + " us, " + maxBatchBytes + " bytes)";
+	}
+}
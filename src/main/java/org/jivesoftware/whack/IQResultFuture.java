@@ -0,0 +1,63 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+import org.xmpp.component.IQResultListener;
+import org.xmpp.packet.IQ;
+
+/**
+ * Future of the answer to an IQ sent by a component. The future is registered
+ * as a regular IQ result listener and completes with the result or error IQ
+ * sent back, or exceptionally when the answer times out or the connection is
+ * lost. Cancelling the future stops waiting for the answer.
+ */
+final class IQResultFuture extends CompletableFuture<IQ> implements IQResultListener {
+
+	private final ExternalComponent component;
+	private final String packetId;
+
+	IQResultFuture(final ExternalComponent component, final String packetId) {
+		this.component = component;
+		this.packetId = packetId;
+	}
+
+	@Override
+	public void receivedAnswer(final IQ packet) {
+		complete(packet);
+	}
+
+	@Override
+	public void answerTimeout(final String packetId) {
+		completeExceptionally(new TimeoutException("No answer received to IQ " + packetId));
+	}
+
+	@Override
+	public boolean cancel(final boolean mayInterruptIfRunning) {
+		final boolean cancelled = super.cancel(mayInterruptIfRunning);
+		if (cancelled) {
+			component.removeIQResultListener(packetId, this);
+		}
+		return cancelled;
+	}
+}
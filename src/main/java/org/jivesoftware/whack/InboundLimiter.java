@@ -0,0 +1,284 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.whack;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the number of packets received by a component that wait to be
+ * processed. Every packet takes a slot when it is queued and gives it back
+ * when a thread starts processing it. When all the slots are taken the
+ * overload policy of the manager decides whether the reading thread waits for
+ * a slot, which stops reading the connection and lets TCP push back on the
+ * server, drops the packet or processes it itself.
+ * <p>
+ *
+ * Threads that must never wait, like the threads of a
+ * {@link ComponentReactor}, queue the packet beyond the capacity instead and
+ * stop reading their connection until enough slots were given back.
+ * <p>
+ *
+ * A thread of the component that waits for the answer to an IQ packet does
+ * not process packets until the answer was read, and the answer may be
+ * behind the packet the reading thread holds. So while such threads wait, a
+ * reading thread waits only as long as the queue keeps draining, after which
+ * the packet is queued beyond the capacity too.
+ */
+final class InboundLimiter {
+
+	/**
+	 * The packet took a slot and must be queued.
+	 */
+	static final int QUEUE = 0;
+	/**
+	 * The packet must be processed by the calling thread without a slot.
+	 */
+	static final int RUN = 1;
+	/**
+	 * The packet must be dropped.
+	 */
+	static final int DROP = 2;
+
+	/**
+	 * Time (in milliseconds) without a slot being given back after which the
+	 * queue is considered stuck while threads wait for IQ answers.
+	 */
+	private static final long DRAIN_CHECK_INTERVAL = 50;
+
+	private final int capacity;
+	private final ExternalComponentManager.OverloadPolicy policy;
+	private final Semaphore slots;
+	/**
+	 * Number of packets queued beyond the capacity, whose slots are not given
+	 * back when they are processed.
+	 */
+	private final AtomicInteger excess = new AtomicInteger();
+	/**
+	 * Number of free slots needed before the paused connections are read
+	 * again, so that they are not paused again right away.
+	 */
+	private final int resumeThreshold;
+	/**
+	 * Tasks that resume the connections paused while the queue was full.
+	 */
+	private final Queue<Runnable> paused = new ConcurrentLinkedQueue<Runnable>();
+	/**
+	 * Number of threads of the component waiting for the answer to an IQ
+	 * packet.
+	 */
+	private final AtomicInteger queries = new AtomicInteger();
+	private final AtomicLong blocked = new AtomicLong();
+	private final AtomicLong shed = new AtomicLong();
+	private final AtomicLong callerRuns = new AtomicLong();
+
+	/**
+	 * Creates a new limiter.
+	 *
+	 * @param capacity
+	 *            the maximum number of packets waiting to be processed.
+	 * @param policy
+	 *            what to do with packets received while the queue is full.
+	 */
+	InboundLimiter(final int capacity, final ExternalComponentManager.OverloadPolicy policy) {
+		this.capacity = capacity;
+		this.policy = policy;
+		this.slots = new Semaphore(capacity);
+		this.resumeThreshold = Math.max(1, capacity / 4);
+	}
+
+	/**
+	 * Takes a slot for a received packet, applying the overload policy if the
+	 * queue is full. IQ packets are never dropped since their sender waits
+	 * for an answer, and packets that must stay in order behind the queued
+	 * packets are never run by the caller. A caller that cannot wait neither
+	 * waits nor runs the packet: the packet is queued beyond the capacity and
+	 * the caller must stop reading until {@link #whenAvailable(Runnable)}
+	 * resumes it.
+	 *
+	 * @param sheddable
+	 *            true if the packet may be dropped.
+	 * @param ordered
+	 *            true if the packet must be processed after the packets
+	 *            already queued.
+	 * @param mayWait
+	 *            false if the calling thread must never wait nor process the
+	 *            packet itself.
+	 * @return {@link #QUEUE}, {@link #RUN} or {@link #DROP}.
+	 */
+	int admit(final boolean sheddable, final boolean ordered, final boolean mayWait) {
+		if (slots.tryAcquire()) {
+			return QUEUE;
+		}
+		if (policy == ExternalComponentManager.OverloadPolicy.SHED && sheddable) {
+			shed.incrementAndGet();
+			return DROP;
+		}
+		if (!mayWait) {
+			blocked.incrementAndGet();
+			excess.incrementAndGet();
+			return QUEUE;
+		}
+		if (policy == ExternalComponentManager.OverloadPolicy.CALLER_RUNS && !ordered) {
+			callerRuns.incrementAndGet();
+			return RUN;
+		}
+		blocked.incrementAndGet();
+		if (queries.get() > 0 && excess.get() > 0) {
+			// The queue was found stuck already, keep reading until the
+			// answers arrived
+			excess.incrementAndGet();
+			return QUEUE;
+		}
+		try {
+			while (!slots.tryAcquire(DRAIN_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+				if (queries.get() > 0) {
+					// The threads may all be waiting for answers that are
+					// not read yet
+					excess.incrementAndGet();
+					return QUEUE;
+				}
+			}
+		} catch (final InterruptedException e) {
+			// The reading thread is being stopped
+			Thread.currentThread().interrupt();
+			return DROP;
+		}
+		return QUEUE;
+	}
+
+	/**
+	 * Notification that a thread of the component starts waiting for the
+	 * answer to an IQ packet.
+	 */
+	void queryStarted() {
+		queries.incrementAndGet();
+	}
+
+	/**
+	 * Notification that a thread of the component stopped waiting for the
+	 * answer to an IQ packet.
+	 */
+	void queryEnded() {
+		queries.decrementAndGet();
+	}
+
+	/**
+	 * Gives back the slot of a packet that is about to be processed.
+	 */
+	void release() {
+		// Packets queued beyond the capacity took no slot
+		int count;
+		do {
+			count = excess.get();
+		} while (count > 0 && !excess.compareAndSet(count, count - 1));
+		if (count == 0) {
+			slots.release();
+		}
+		if (!paused.isEmpty() && slots.availablePermits() >= resumeThreshold) {
+			resumePaused();
+		}
+	}
+
+	/**
+	 * Returns true if a packet received now would not get a slot.
+	 *
+	 * @return true if the queue is full.
+	 */
+	boolean isFull() {
+		return slots.availablePermits() == 0;
+	}
+
+	/**
+	 * Runs a task once enough slots are free, or right away if they already
+	 * are. Used to resume the reading of a connection that was paused since
+	 * the queue was full.
+	 *
+	 * @param resume
+	 *            the task that resumes the reading of the connection.
+	 */
+	void whenAvailable(final Runnable resume) {
+		paused.add(resume);
+		// The slots may have been given back before the task was added
+		if (slots.availablePermits() >= resumeThreshold) {
+			resumePaused();
+		}
+	}
+
+	private void resumePaused() {
+		Runnable resume;
+		while ((resume = paused.poll()) != null) {
+			resume.run();
+		}
+	}
+
+	/**
+	 * Returns the maximum number of packets waiting to be processed.
+	 *
+	 * @return the capacity of the queue.
+	 */
+	int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of packets waiting to be processed.
+	 *
+	 * @return the depth of the queue.
+	 */
+	int getQueueSize() {
+		return capacity - slots.availablePermits() + excess.get();
+	}
+
+	/**
+	 * Returns the number of times the reading thread waited for a slot or
+	 * paused its connection.
+	 *
+	 * @return the number of blocked packets.
+	 */
+	long getBlockedCount() {
+		return blocked.get();
+	}
+
+	/**
+	 * Returns the number of packets dropped because the queue was full.
+	 *
+	 * @return the number of shed packets.
+	 */
+	long getShedCount() {
+		return shed.get();
+	}
+
+	/**
+	 * Returns the number of packets processed by the reading thread because
+	 * the queue was full.
+	 *
+	 * @return the number of packets run by the caller.
+	 */
+	long getCallerRunsCount() {
+		return callerRuns.get();
+	}
+}
@@ -0,0 +1,161 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dom4j.Attribute;
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Raw content of a stanza whose packet was built from the start tag only. The
+ * content is parsed into the element of the packet the first time it is
+ * needed, and until then it can be written back to the server without being
+ * parsed at all.
+ */
+final class LazyContent {
+
+	private static final Logger log = LoggerFactory.getLogger(LazyContent.class);
+
+	private final byte[] data;
+	private final int offset;
+	private final int length;
+	private final int contentStart;
+	private final int contentEnd;
+
+	/**
+	 * Creates the content of a stanza.
+	 *
+	 * @param data
+	 *            the buffer holding the stanza. It must not be modified
+	 *            afterwards.
+	 * @param offset
+	 *            the offset of the stanza in the buffer.
+	 * @param length
+	 *            the number of bytes of the stanza.
+	 * @param contentStart
+	 *            the offset of the first byte after the start tag.
+	 */
+	LazyContent(final byte[] data, final int offset, final int length, final int contentStart) {
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+		this.contentStart = contentStart;
+		int end = offset + length - 1;
+		while (end > contentStart && data[end] != '<') {
+			end--;
+		}
+		this.contentEnd = end;
+	}
+
+	/**
+	 * Parses the content of the stanza and adds it to the element of the
+	 * packet. The attributes of the element are left untouched since they may
+	 * have been modified already.
+	 *
+	 * @param root
+	 *            the element of the packet.
+	 */
+	void moveTo(final Element root) {
+		final Element parsed;
+		try {
+			parsed = StanzaParser.getInstance().parseElement(data, offset, length);
+		} catch (final Exception e) {
+			log.error("Error parsing packet from the server", e);
+			return;
+		}
+		// Copy the nodes first since detaching them modifies the raw content
+		// list of the parsed element
+		final List<Node> nodes = new ArrayList<Node>();
+		for (final Object node : parsed.content()) {
+			nodes.add((Node) node);
+		}
+		for (final Node node : nodes) {
+			node.detach();
+			root.add(node);
+		}
+	}
+
+	/**
+	 * Writes the stanza with the current attributes of the element of the
+	 * packet and the raw content.
+	 *
+	 * @param root
+	 *            the element of the packet.
+	 * @param writer
+	 *            the writer to write to.
+	 */
+	void writeTo(final Element root, final Writer writer) throws IOException {
+		writer.write('<');
+		writer.write(root.getQualifiedName());
+		for (final Object item : root.attributes()) {
+			final Attribute attribute = (Attribute) item;
+			writer.write(' ');
+			writer.write(attribute.getQualifiedName());
+			writer.write("=\"");
+			writeEscaped(attribute.getValue(), writer);
+			writer.write('"');
+		}
+		writer.write('>');
+		try {
+			writer.write(new String(data, contentStart, contentEnd - contentStart, "UTF-8"));
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+		writer.write("</");
+		writer.write(root.getQualifiedName());
+		writer.write('>');
+	}
+
+	private static void writeEscaped(final String value, final Writer writer) throws IOException {
+		int last = 0;
+		for (int i = 0; i < value.length(); i++) {
+			final String entity;
+			switch (value.charAt(i)) {
+			case '&':
+				entity = "&amp;";
+				break;
+			case '<':
+				entity = "&lt;";
+				break;
+			case '>':
+				entity = "&gt;";
+				break;
+			case '"':
+				entity = "&quot;";
+				break;
+			default:
+				continue;
+			}
+			writer.write(value, last, i - last);
+			writer.write(entity);
+			last = i + 1;
+		}
+		writer.write(value, last, value.length() - last);
+	}
+}
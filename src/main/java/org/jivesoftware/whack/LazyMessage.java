@@ -0,0 +1,172 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.dom4j.Element;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.PacketError;
+import org.xmpp.packet.PacketExtension;
+
+/**
+ * Message whose content is only parsed when it is accessed. The attributes of
+ * the stanza are available right away, so routing on the sender, recipient,
+ * type or ID of the message never builds the rest of the XML tree.
+ */
+class LazyMessage extends Message implements LazyPacket {
+
+	/**
+	 * The unparsed content, or <tt>null</tt> once it was parsed.
+	 */
+	private LazyContent content;
+
+	LazyMessage(final Element element, final LazyContent content) {
+		super(element);
+		this.content = content;
+	}
+
+	private synchronized void materialize() {
+		if (content != null) {
+			final LazyContent parsed = content;
+			content = null;
+			parsed.moveTo(element);
+		}
+	}
+
+	@Override
+	public synchronized boolean writeUnparsed(final Writer writer) throws IOException {
+		if (content == null) {
+			return false;
+		}
+		content.writeTo(element, writer);
+		return true;
+	}
+
+	@Override
+	public String getSubject() {
+		materialize();
+		return super.getSubject();
+	}
+
+	@Override
+	public void setSubject(final String subject) {
+		materialize();
+		super.setSubject(subject);
+	}
+
+	@Override
+	public String getBody() {
+		materialize();
+		return super.getBody();
+	}
+
+	@Override
+	public void setBody(final String body) {
+		materialize();
+		super.setBody(body);
+	}
+
+	@Override
+	public String getThread() {
+		materialize();
+		return super.getThread();
+	}
+
+	@Override
+	public void setThread(final String thread) {
+		materialize();
+		super.setThread(thread);
+	}
+
+	@Override
+	public Element getChildElement(final String name, final String namespace) {
+		materialize();
+		return super.getChildElement(name, namespace);
+	}
+
+	@Override
+	public Element addChildElement(final String name, final String namespace) {
+		materialize();
+		return super.addChildElement(name, namespace);
+	}
+
+	@Override
+	public Message createCopy() {
+		materialize();
+		return super.createCopy();
+	}
+
+	@Override
+	public void addExtension(final PacketExtension extension) {
+		materialize();
+		super.addExtension(extension);
+	}
+
+	@Override
+	public PacketExtension getExtension(final String name, final String namespace) {
+		materialize();
+		return super.getExtension(name, namespace);
+	}
+
+	@Override
+	public boolean deleteExtension(final String name, final String namespace) {
+		materialize();
+		return super.deleteExtension(name, namespace);
+	}
+
+	@Override
+	public PacketError getError() {
+		materialize();
+		return super.getError();
+	}
+
+	@Override
+	public void setError(final PacketError error) {
+		materialize();
+		super.setError(error);
+	}
+
+	@Override
+	public void setError(final PacketError.Condition condition) {
+		materialize();
+		super.setError(condition);
+	}
+
+	@Override
+	public Element getElement() {
+		materialize();
+		return super.getElement();
+	}
+
+	@Override
+	public String toXML() {
+		materialize();
+		return super.toXML();
+	}
+
+	@Override
+	public String toString() {
+		materialize();
+		return super.toString();
+	}
+}
@@ -0,0 +1,42 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Packet built from the start tag of a stanza whose content is parsed on
+ * demand. See {@link StanzaParser#createLazyPacket(byte[], int, int)}.
+ */
+interface LazyPacket {
+
+	/**
+	 * Writes the packet without parsing its content, if it was not parsed
+	 * yet.
+	 *
+	 * @param writer
+	 *            the writer to write to.
+	 * @return true if the packet was written or false if its content was
+	 *         already parsed and the element must be serialized instead.
+	 */
+	boolean writeUnparsed(Writer writer) throws IOException;
+}
@@ -0,0 +1,209 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the stanzas sent by a component while it has no connection with the
+ * server, so that they can be written once the component reconnected. The
+ * stanzas are kept serialized, which also makes later changes to the sent
+ * packets harmless.
+ * <p>
+ *
+ * The buffer is bounded by a number of stanzas and by their total size in
+ * bytes, and stanzas that were buffered for longer than their time to live
+ * are discarded instead of being written. When the buffer is full the
+ * overflow policy decides whether the oldest stanzas or the new stanza are
+ * discarded.
+ * <p>
+ *
+ * Only the writer thread adds and removes stanzas. The counters may be read
+ * by any thread.
+ */
+final class OutboundBuffer {
+
+	private final int maxPackets;
+	private final long maxBytes;
+	private final long ttlNanos;
+	private final ExternalComponentManager.BufferOverflowPolicy overflowPolicy;
+	private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+	private long bytes = 0;
+	private volatile int size = 0;
+
+	private final AtomicLong buffered = new AtomicLong();
+	private final AtomicLong overflowed = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+
+	/**
+	 * Creates a new buffer.
+	 *
+	 * @param maxPackets
+	 *            the maximum number of buffered stanzas, or 0 to buffer none.
+	 * @param maxBytes
+	 *            the maximum total size of the buffered stanzas in bytes.
+	 * @param ttl
+	 *            the time in milliseconds a stanza may stay in the buffer.
+	 * @param overflowPolicy
+	 *            decides which stanzas are discarded when the buffer is full.
+	 */
+	OutboundBuffer(final int maxPackets, final long maxBytes, final long ttl, final ExternalComponentManager.BufferOverflowPolicy overflowPolicy) {
+		this.maxPackets = maxPackets;
+		this.maxBytes = maxBytes;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Returns true if stanzas are buffered at all.
+	 *
+	 * @return true if the buffer may hold stanzas.
+	 */
+	boolean isEnabled() {
+		return maxPackets > 0 && maxBytes > 0;
+	}
+
+	/**
+	 * Returns true if a stanza can be added without discarding another one.
+	 *
+	 * @return true if the buffer is not full.
+	 */
+	boolean hasRoom() {
+		return entries.size() < maxPackets && bytes < maxBytes;
+	}
+
+	/**
+	 * Adds a stanza to the buffer, discarding stanzas if the buffer is full.
+	 *
+	 * @param xml
+	 *            the serialized stanza.
+	 * @return true if the stanza was buffered or false if it was discarded.
+	 */
+	boolean add(final String xml) {
+		final long now = System.nanoTime();
+		expire(now);
+		final int length = utf8Length(xml);
+		if (length > maxBytes) {
+			overflowed.incrementAndGet();
+			return false;
+		}
+		while (entries.size() >= maxPackets || bytes + length > maxBytes) {
+			if (overflowPolicy == ExternalComponentManager.BufferOverflowPolicy.DROP_NEWEST) {
+				overflowed.incrementAndGet();
+				return false;
+			}
+			remove();
+			overflowed.incrementAndGet();
+		}
+		entries.addLast(new Entry(xml, length, now));
+		bytes += length;
+		size = entries.size();
+		buffered.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Removes the oldest stanza that did not expire.
+	 *
+	 * @return the serialized stanza or <tt>null</tt> if the buffer is empty.
+	 */
+	String poll() {
+		if (entries.isEmpty()) {
+			return null;
+		}
+		expire(System.nanoTime());
+		final Entry entry = remove();
+		return entry != null ? entry.xml : null;
+	}
+
+	/**
+	 * Returns the number of buffered stanzas.
+	 *
+	 * @return the number of buffered stanzas.
+	 */
+	int size() {
+		return size;
+	}
+
+	long getBufferedCount() {
+		return buffered.get();
+	}
+
+	long getOverflowedCount() {
+		return overflowed.get();
+	}
+
+	long getExpiredCount() {
+		return expired.get();
+	}
+
+	private void expire(final long now) {
+		Entry entry;
+		while ((entry = entries.peekFirst()) != null && now - entry.bufferedAt > ttlNanos) {
+			remove();
+			expired.incrementAndGet();
+		}
+	}
+
+	private Entry remove() {
+		final Entry entry = entries.pollFirst();
+		if (entry != null) {
+			bytes -= entry.length;
+			size = entries.size();
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the number of bytes of a string encoded in UTF-8.
+	 */
+	private static int utf8Length(final String s) {
+		int length = s.length();
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if (c >= 0x800) {
+				// Surrogate pairs take four bytes, two per char
+				length += Character.isSurrogate(c) ? 1 : 2;
+			} else if (c >= 0x80) {
+				length++;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * A buffered stanza.
+	 */
+	private static final class Entry {
+
+		final String xml;
+		final int length;
+		final long bufferedAt;
+
+		Entry(final String xml, final int length, final long bufferedAt) {
+			this.xml = xml;
+			this.length = length;
+			this.bufferedAt = bufferedAt;
+		}
+	}
+}
@@ -0,0 +1,548 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dom4j.io.XMLWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.Packet;
+
+/**
+ * Journal on the local disk that holds the packets a component cannot keep in
+ * memory, either because it is disconnected for long or because its send
+ * queue is full. Packets are appended serialized in UTF-8 to memory-mapped
+ * segment files of a fixed size and read back in the same order. A new
+ * segment is started when the last one is full and segments are deleted once
+ * all their packets were sent. A packet is only removed from the spool once it
+ * was written to the connection, so packets read before the connection failed
+ * are read again.
+ * <p>
+ *
+ * Each segment starts with the position of the next record to read followed
+ * by the records, each made of its length and its bytes. A record of length 0
+ * marks the end of the written data. Since the read position is kept in the
+ * segment too, packets spooled by a previous run are found again when the
+ * spool is opened. The segments are not forced to the disk, so packets
+ * survive the crash of the process but not the crash of the system.
+ * <p>
+ *
+ * Only the head segment, which is being read, and the tail segment, which is
+ * being written, are mapped. Packets are serialized and decoded with buffers
+ * that are reused from one packet to the next. All methods are thread safe.
+ * <p>
+ *
+ * A spool must be closed once its component is done with it, which unmaps its
+ * segments. Only one spool of a given name may be open in a directory at a
+ * time.
+ */
+final class OutboundSpool {
+
+	private static final Logger log = LoggerFactory.getLogger(OutboundSpool.class);
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final String SUFFIX = ".spool";
+	/**
+	 * Size of the header of a segment, which holds the read position.
+	 */
+	private static final int HEADER_SIZE = 4;
+	/**
+	 * Size of the length that precedes every record.
+	 */
+	private static final int LENGTH_SIZE = 4;
+
+	/**
+	 * Files of the spools that are open, without the sequence number.
+	 */
+	private static final Set<File> openSpools = new HashSet<File>();
+
+	/**
+	 * Unmaps a buffer without waiting for it to be garbage collected. The JDK
+	 * has no public API for it so the internal one of the running JVM is
+	 * looked up, which may fail in which case buffers are unmapped by the
+	 * garbage collector.
+	 */
+	private static final Object unsafe;
+	private static final Method invokeCleaner;
+
+	static {
+		Object theUnsafe;
+		Method method;
+		try {
+			// Java 9 and later
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			theUnsafe = field.get(null);
+			method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (final Exception e) {
+			theUnsafe = null;
+			method = null;
+		}
+		unsafe = theUnsafe;
+		invokeCleaner = method;
+	}
+
+	private final File directory;
+	private final String name;
+	private final int segmentSize;
+	private final int maxSegments;
+	/**
+	 * Key of the spool in {@link #openSpools}.
+	 */
+	private final File key;
+	/**
+	 * Sequence numbers of the segments between the head and the tail.
+	 */
+	private final ArrayDeque<Long> pending = new ArrayDeque<Long>();
+	private Segment head;
+	private Segment tail;
+	private long nextSequence = 0;
+	private int segments = 0;
+	private volatile int size = 0;
+	/**
+	 * Number of records read from the head segment that were not committed
+	 * yet.
+	 */
+	private int uncommitted = 0;
+	/**
+	 * Position in the head segment of the record following the last one
+	 * read, while records are uncommitted.
+	 */
+	private int readPosition;
+	private boolean closed = false;
+	private final AtomicLong spooled = new AtomicLong();
+
+	private final StringWriter stringWriter = new StringWriter();
+	private final XMLWriter serializer = new XMLWriter(stringWriter);
+	private final CharsetEncoder encoder = CHARSET.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(
+			CodingErrorAction.REPLACE);
+	private final CharsetDecoder decoder = CHARSET.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(
+			CodingErrorAction.REPLACE);
+	private CharBuffer chars = CharBuffer.allocate(4096);
+
+	/**
+	 * Opens the spool of a component, recovering the packets spooled by a
+	 * previous run.
+	 *
+	 * @param directory
+	 *            the directory holding the segment files.
+	 * @param name
+	 *            the name of the spool, used as the prefix of the segment
+	 *            files.
+	 * @param segmentSize
+	 *            the size in bytes of a segment file.
+	 * @param maxSize
+	 *            the maximum size in bytes of all segment files.
+	 * @throws IOException
+	 *             if the directory or the segments could not be read, or if
+	 *             a spool of the same name is already open in the directory.
+	 */
+	OutboundSpool(final File directory, final String name, final int segmentSize, final long maxSize) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create spool directory " + directory);
+		this.directory = directory;
+		this.name = name;
+		this.segmentSize = segmentSize;
+		this.maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxSize / segmentSize));
+		key = new File(directory.getCanonicalFile(), name);
+		synchronized (openSpools) {
+			if (!openSpools.add(key))
+				throw new IOException("Spool " + name + " is already open in " + directory);
+		}
+		try {
+			recover();
+		} catch (final IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns true if the spool holds no packet. Packets that are sent while
+	 * the spool is not empty must be spooled too to stay in order.
+	 *
+	 * @return true if the spool is empty.
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns the number of packets in the spool.
+	 *
+	 * @return the number of spooled packets.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of packets that were appended to the spool.
+	 *
+	 * @return the number of spooled packets since the spool was opened.
+	 */
+	long getSpooledCount() {
+		return spooled.get();
+	}
+
+	/**
+	 * Appends a packet to the spool.
+	 *
+	 * @param packet
+	 *            the packet to append.
+	 * @return true if the packet was spooled or false if the spool is full.
+	 */
+	synchronized boolean append(final Packet packet) {
+		if (closed) {
+			return false;
+		}
+		stringWriter.getBuffer().setLength(0);
+		try {
+			if (!(packet instanceof LazyPacket) || !((LazyPacket) packet).writeUnparsed(stringWriter)) {
+				serializer.write(packet.getElement());
+			}
+			serializer.flush();
+		} catch (final IOException e) {
+			// Writing to a string does not fail
+			return false;
+		}
+		final CharBuffer in = CharBuffer.wrap(stringWriter.getBuffer());
+		try {
+			if (tail == null && !rotate()) {
+				return false;
+			}
+			while (true) {
+				final ByteBuffer buffer = tail.buffer;
+				final int start = tail.writePosition;
+				if (start + LENGTH_SIZE < segmentSize) {
+					buffer.limit(segmentSize);
+					buffer.position(start + LENGTH_SIZE);
+					encoder.reset();
+					CoderResult result = encoder.encode(in, buffer, true);
+					if (!result.isOverflow()) {
+						result = encoder.flush(buffer);
+					}
+					if (!result.isOverflow()) {
+						final int end = buffer.position();
+						if (end + LENGTH_SIZE <= segmentSize) {
+							buffer.putInt(end, 0);
+						}
+						// The length is written last so the record is only
+						// seen once complete
+						buffer.putInt(start, end - start - LENGTH_SIZE);
+						tail.writePosition = end;
+						size++;
+						spooled.incrementAndGet();
+						return true;
+					}
+					if (start == HEADER_SIZE) {
+						log.warn("Packet too large for the spool of " + name);
+						return false;
+					}
+					in.rewind();
+				}
+				// The segment is full so the record goes to a new one
+				if (!rotate()) {
+					return false;
+				}
+			}
+		} catch (final IOException e) {
+			log.error("Error writing to the spool of " + name, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the oldest packet that was not read yet, without removing it from
+	 * the spool. The packets read are removed by {@link #commit()} once they
+	 * were sent, or read again after {@link #rewind()}. The packets of a
+	 * segment must be committed before the next segment is read.
+	 *
+	 * @return the serialized packet, or <tt>null</tt> if there is no packet to
+	 *         read until the next commit. The buffer is reused by the next
+	 *         call.
+	 */
+	synchronized CharBuffer peek() {
+		while (head != null && !closed) {
+			final MappedByteBuffer buffer = head.buffer;
+			final int position = uncommitted > 0 ? readPosition : buffer.getInt(0);
+			final int length = position + LENGTH_SIZE <= segmentSize ? buffer.getInt(position) : 0;
+			if (length > 0) {
+				final int start = position + LENGTH_SIZE;
+				buffer.limit(start + length);
+				buffer.position(start);
+				decode(buffer);
+				buffer.clear();
+				readPosition = start + length;
+				uncommitted++;
+				return chars;
+			}
+			if (uncommitted > 0) {
+				// The head segment is kept until its packets were committed
+				return null;
+			}
+			// All the records of the head segment were read
+			if (head == tail) {
+				head.unmap();
+				head.delete();
+				head = null;
+				tail = null;
+				segments = 0;
+				return null;
+			}
+			head.unmap();
+			head.delete();
+			segments--;
+			try {
+				head = pending.isEmpty() ? tail : open(pending.poll(), false);
+			} catch (final IOException e) {
+				log.error("Error reading the spool of " + name, e);
+				head = tail;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the packets read since the last commit from the spool.
+	 */
+	synchronized void commit() {
+		if (uncommitted == 0 || closed) {
+			return;
+		}
+		head.buffer.putInt(0, readPosition);
+		size -= uncommitted;
+		uncommitted = 0;
+	}
+
+	/**
+	 * Forgets the packets read since the last commit, so that they are read
+	 * again.
+	 */
+	synchronized void rewind() {
+		uncommitted = 0;
+	}
+
+	/**
+	 * Closes the spool, unmapping its segments. The packets left in the spool,
+	 * including the ones read but not committed, are found again when a spool
+	 * of the same name is opened. Does nothing if the spool is already closed.
+	 */
+	synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		uncommitted = 0;
+		if (head != null) {
+			head.unmap();
+		}
+		if (tail != null && tail != head) {
+			tail.unmap();
+		}
+		head = null;
+		tail = null;
+		pending.clear();
+		synchronized (openSpools) {
+			openSpools.remove(key);
+		}
+	}
+
+	private void decode(final ByteBuffer buffer) {
+		// UTF-8 never decodes to more chars than bytes
+		if (chars.capacity() < buffer.remaining()) {
+			chars = CharBuffer.allocate(Math.max(buffer.remaining(), chars.capacity() * 2));
+		}
+		chars.clear();
+		decoder.reset();
+		decoder.decode(buffer, chars, true);
+		decoder.flush(chars);
+		chars.flip();
+	}
+
+	/**
+	 * Starts a new tail segment.
+	 *
+	 * @return false if the spool reached its maximum size.
+	 */
+	private boolean rotate() throws IOException {
+		if (segments >= maxSegments) {
+			return false;
+		}
+		final Segment segment = open(nextSequence++, true);
+		segments++;
+		if (head == null) {
+			head = segment;
+		} else if (tail != head) {
+			// Only the head and the tail stay mapped
+			pending.add(tail.sequence);
+			tail.unmap();
+		}
+		tail = segment;
+		return true;
+	}
+
+	private Segment open(final long sequence, final boolean create) throws IOException {
+		final File file = new File(directory, name + "-" + sequence + SUFFIX);
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			if (create) {
+				buffer.putInt(0, HEADER_SIZE);
+				buffer.putInt(HEADER_SIZE, 0);
+			}
+			return new Segment(sequence, file, buffer);
+		} finally {
+			// The mapping stays valid once the file is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Finds the segments left by a previous run and counts their unread
+	 * records.
+	 */
+	private void recover() throws IOException {
+		final String prefix = name + "-";
+		final File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(final File file) {
+				final String fileName = file.getName();
+				return fileName.startsWith(prefix) && fileName.endsWith(SUFFIX)
+						&& fileName.substring(prefix.length(), fileName.length() - SUFFIX.length()).matches("\\d+");
+			}
+		});
+		if (files == null) {
+			return;
+		}
+		final long[] sequences = new long[files.length];
+		for (int i = 0; i < files.length; i++) {
+			final String fileName = files[i].getName();
+			sequences[i] = Long.parseLong(fileName.substring(prefix.length(), fileName.length() - SUFFIX.length()));
+		}
+		Arrays.sort(sequences);
+		for (final long sequence : sequences) {
+			// Never reuse the name of an existing file
+			nextSequence = sequence + 1;
+			final File file = new File(directory, prefix + sequence + SUFFIX);
+			if (file.length() != segmentSize) {
+				log.warn("Ignoring spool segment of a different size " + file);
+				continue;
+			}
+			final Segment segment = open(sequence, false);
+			int position = segment.buffer.getInt(0);
+			if (position < HEADER_SIZE || position > segmentSize) {
+				log.warn("Ignoring invalid spool segment " + file);
+				segment.unmap();
+				continue;
+			}
+			while (position + LENGTH_SIZE <= segmentSize) {
+				final int length = segment.buffer.getInt(position);
+				if (length <= 0 || position + LENGTH_SIZE + length > segmentSize) {
+					break;
+				}
+				size++;
+				position += LENGTH_SIZE + length;
+			}
+			segment.writePosition = position;
+			segments++;
+			if (head == null) {
+				head = segment;
+			} else if (tail != head) {
+				// Only the head and the tail stay mapped
+				pending.add(tail.sequence);
+				tail.unmap();
+			}
+			tail = segment;
+		}
+		if (size > 0) {
+			log.info("Recovered " + size + " spooled packets of " + name);
+		}
+		// Records are only appended to new segments, whose end is known
+		if (tail != null) {
+			tail.writePosition = segmentSize;
+		}
+	}
+
+	/**
+	 * A segment file of the spool.
+	 */
+	private static final class Segment {
+
+		final long sequence;
+		final File file;
+		MappedByteBuffer buffer;
+		/**
+		 * Position where the next record is written.
+		 */
+		int writePosition = HEADER_SIZE;
+
+		Segment(final long sequence, final File file, final MappedByteBuffer buffer) {
+			this.sequence = sequence;
+			this.file = file;
+			this.buffer = buffer;
+		}
+
+		/**
+		 * Unmaps the segment. The segment must not be used afterwards.
+		 */
+		void unmap() {
+			final MappedByteBuffer mapped = buffer;
+			buffer = null;
+			if (mapped == null || invokeCleaner == null) {
+				return;
+			}
+			try {
+				invokeCleaner.invoke(unsafe, mapped);
+			} catch (final Exception e) {
+				// The buffer is unmapped once garbage collected
+			}
+		}
+
+		void delete() {
+			if (!file.delete()) {
+				log.warn("Could not delete spool segment " + file);
+			}
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.whack;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dom4j.Element;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Drops low priority stanzas received by a component while its inbound queue
+ * is overloaded, so that floods of presences do not delay the messages and
+ * IQs queued behind them. The queue is overloaded when it holds too many
+ * stanzas or when the stanzas that start being processed waited too long.
+ * <p>
+ *
+ * Which stanzas are low priority is decided by the manager: stanzas of the
+ * configured types and stanzas with a child element in one of the configured
+ * namespaces. IQs are never dropped since their sender waits for an answer,
+ * and neither are presences that change a subscription or expect an answer.
+ */
+final class OverloadController {
+
+	private final int maxDepth;
+	private final long maxLatencyNanos;
+	private final Set<String> stanzaTypes;
+	private final Set<String> namespaces;
+	/**
+	 * Time the last stanza that started being processed spent in the queue.
+	 */
+	private volatile long latencyNanos = 0;
+	private final AtomicLong depthShed = new AtomicLong();
+	private final AtomicLong latencyShed = new AtomicLong();
+
+	/**
+	 * Creates a new overload controller.
+	 *
+	 * @param maxDepth
+	 *            the number of queued stanzas from which low priority stanzas
+	 *            are dropped, or 0 to ignore the depth of the queue.
+	 * @param maxLatency
+	 *            the time in the queue from which low priority stanzas are
+	 *            dropped, or 0 to ignore the latency of the queue.
+	 * @param unit
+	 *            the unit of the maximum latency.
+	 * @param stanzaTypes
+	 *            the names of the low priority stanzas.
+	 * @param namespaces
+	 *            the namespaces of the children of low priority stanzas.
+	 */
+	OverloadController(final int maxDepth, final long maxLatency, final TimeUnit unit, final Set<String> stanzaTypes, final Set<String> namespaces) {
+		this.maxDepth = maxDepth;
+		this.maxLatencyNanos = unit.toNanos(maxLatency);
+		this.stanzaTypes = stanzaTypes;
+		this.namespaces = namespaces;
+	}
+
+	/**
+	 * Returns true if stanzas may be dropped at all.
+	 *
+	 * @return true if a threshold is set.
+	 */
+	boolean isEnabled() {
+		return maxDepth > 0 || maxLatencyNanos > 0;
+	}
+
+	/**
+	 * Returns true if a parsed packet is low priority.
+	 *
+	 * @param packet
+	 *            the received packet.
+	 * @return true if the packet may be dropped under overload.
+	 */
+	boolean isLowPriority(final Packet packet) {
+		if (packet instanceof Presence) {
+			if (!isSheddablePresence(packet.getElement().attributeValue("type"))) {
+				return false;
+			}
+			if (stanzaTypes.contains("presence")) {
+				return true;
+			}
+		} else if (packet instanceof Message) {
+			if (stanzaTypes.contains("message")) {
+				return true;
+			}
+		} else {
+			return false;
+		}
+		if (!namespaces.isEmpty()) {
+			for (final Object child : packet.getElement().elements()) {
+				if (namespaces.contains(((Element) child).getNamespaceURI())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the stanza of a framer is low priority, looking at the
+	 * raw stanza only.
+	 *
+	 * @param framer
+	 *            the framer whose current frame is the stanza.
+	 * @return true if the stanza may be dropped under overload.
+	 */
+	boolean isLowPriority(final StanzaFramer framer) {
+		if (framer.isElement("presence")) {
+			if (!isSheddablePresence(framer.attribute("type"))) {
+				return false;
+			}
+			if (stanzaTypes.contains("presence")) {
+				return true;
+			}
+		} else if (framer.isElement("message")) {
+			if (stanzaTypes.contains("message")) {
+				return true;
+			}
+		} else {
+			return false;
+		}
+		for (final String namespace : namespaces) {
+			if (framer.declaresNamespace(namespace)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Only availability changes may be dropped. They are superseded by the
+	 * next change while subscription requests and probes are not repeated.
+	 */
+	private static boolean isSheddablePresence(final String type) {
+		return type == null || "unavailable".equals(type);
+	}
+
+	/**
+	 * Decides if a low priority stanza must be dropped and counts it.
+	 *
+	 * @param depth
+	 *            the number of stanzas in the queue.
+	 * @return the reason for dropping the stanza or <tt>null</tt> to queue it.
+	 */
+	ExternalComponentManager.ShedReason shed(final int depth) {
+		if (maxDepth > 0 && depth >= maxDepth) {
+			depthShed.incrementAndGet();
+			return ExternalComponentManager.ShedReason.QUEUE_DEPTH;
+		}
+		// The latency of an empty queue is stale
+		if (maxLatencyNanos > 0 && depth > 0 && latencyNanos >= maxLatencyNanos) {
+			latencyShed.incrementAndGet();
+			return ExternalComponentManager.ShedReason.QUEUE_LATENCY;
+		}
+		return null;
+	}
+
+	/**
+	 * Records that a stanza starts being processed.
+	 *
+	 * @param queuedAt
+	 *            the value of {@link System#nanoTime()} when the stanza was
+	 *            queued.
+	 */
+	void started(final long queuedAt) {
+		latencyNanos = System.nanoTime() - queuedAt;
+	}
+
+	/**
+	 * Returns the time the last stanza that started being processed spent in
+	 * the queue.
+	 *
+	 * @return the latency of the queue in nanoseconds.
+	 */
+	long getLatency() {
+		return latencyNanos;
+	}
+
+	/**
+	 * Returns the number of stanzas dropped for a reason.
+	 *
+	 * @param reason
+	 *            the reason, either the depth or the latency of the queue.
+	 * @return the number of dropped stanzas.
+	 */
+	long getShedCount(final ExternalComponentManager.ShedReason reason) {
+		switch (reason) {
+		case QUEUE_DEPTH:
+			return depthShed.get();
+		case QUEUE_LATENCY:
+			return latencyShed.get();
+		default:
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,709 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.dom4j.io.XMLWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.Packet;
+
+/**
+ * Sends the packets of a connection to the server. Senders only add packets to
+ * a lock-free queue, which is drained by a single writer thread that
+ * serializes the packets and flushes them in batches. This way a slow socket
+ * stalls the writer thread only and never the threads producing the packets.
+ * <p>
+ *
+ * The queue is bounded. When it is full senders wait up to the write timeout
+ * for room to become available, after which the packet is rejected. If the
+ * connection has a spool the packet is appended to the spool instead, and so
+ * are the packets sent until the spool is empty again or while there is no
+ * connection. The queued packets are moved to the spool before a packet is
+ * appended, so that the spool keeps the packets in the order they were sent.
+ * A spooled packet is only removed from the spool once it was flushed. If a
+ * write to the socket has been in progress for longer than the write timeout
+ * the connection is considered dead and is asked to reconnect.
+ * <p>
+ *
+ * The writer thread is dedicated to the connection but terminates when the
+ * connection has nothing to send for a while.
+ */
+class PacketWriter {
+
+	private static final Logger log = LoggerFactory.getLogger(PacketWriter.class);
+
+	/**
+	 * Maximum time the writer thread parks at once while waiting for more
+	 * packets to coalesce.
+	 */
+	private static final long MAX_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	/**
+	 * Number of the last writer created, which tells the writer threads
+	 * apart.
+	 */
+	private static final AtomicInteger writerNumber = new AtomicInteger();
+
+	/**
+	 * Connection whose packets are sent. Changes when the writer is handed
+	 * over to another connection.
+	 */
+	private volatile ComponentConnection connection;
+	private final Queue<Packet> queue = new ConcurrentLinkedQueue<Packet>();
+	private final Semaphore capacity;
+	private final int maxQueueSize;
+	private final long writeTimeout;
+	private final FlushPolicy flushPolicy;
+	private final OutboundBuffer buffer;
+	/**
+	 * Spool on disk of the packets that do not fit in memory, or
+	 * <tt>null</tt> if packets are not spooled.
+	 */
+	private volatile OutboundSpool spool;
+	/**
+	 * Serializes the packets that are buffered while there is no connection.
+	 */
+	private final StringWriter bufferWriter = new StringWriter();
+	private final XMLWriter bufferSerializer = new XMLWriter(bufferWriter);
+	private final String threadName;
+	private final ThreadPoolExecutor executor;
+	/**
+	 * True while a drain of the queue is scheduled or running.
+	 */
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private final AtomicBoolean heartbeat = new AtomicBoolean(false);
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	private final AtomicReference<Output> output = new AtomicReference<Output>();
+	/**
+	 * Time (in nanoseconds) when the current write started, or 0 if the writer
+	 * is idle.
+	 */
+	private volatile long writeStarted = 0;
+	/**
+	 * Timestamp when the last stanza was sent to the server. This information
+	 * is used by the keep alive process to only send heartbeats when the
+	 * connection has been idle.
+	 */
+	private volatile long lastActive = System.currentTimeMillis();
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong replayed = new AtomicLong();
+	private final AtomicLong unspooled = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private volatile int maxStanzasPerFlush = 0;
+
+	/**
+	 * Creates a new writer for a connection.
+	 *
+	 * @param connection
+	 *            the connection whose packets will be sent.
+	 * @param maxQueueSize
+	 *            the maximum number of packets waiting to be sent.
+	 * @param writeTimeout
+	 *            the time in milliseconds a sender waits for room in the queue
+	 *            and a write may take before the connection is considered
+	 *            dead.
+	 * @param flushPolicy
+	 *            the policy that decides when written packets are flushed.
+	 * @param buffer
+	 *            the buffer of the packets sent while there is no connection.
+	 */
+	PacketWriter(final ComponentConnection connection, final int maxQueueSize, final long writeTimeout, final FlushPolicy flushPolicy,
+			final OutboundBuffer buffer) {
+		this.connection = connection;
+		this.maxQueueSize = maxQueueSize;
+		this.writeTimeout = writeTimeout;
+		this.flushPolicy = flushPolicy;
+		this.buffer = buffer;
+		this.capacity = new Semaphore(maxQueueSize);
+		// The writer may be handed over to another connection so its thread
+		// is named after the writer
+		threadName = "Component packet writer-" + writerNumber.incrementAndGet();
+		executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, threadName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Sets the writer of a newly authenticated connection. Packets queued from
+	 * now on will be written to the new connection.
+	 *
+	 * @param writer
+	 *            the writer of the connection.
+	 */
+	void setOutput(final Writer writer) {
+		output.set(new Output(writer));
+		schedule();
+	}
+
+	/**
+	 * Detaches the writer from a connection that was lost. Packets are
+	 * buffered until a new connection is set.
+	 */
+	void clearOutput() {
+		output.set(null);
+	}
+
+	/**
+	 * Detaches the writer from its connection and waits until the writer
+	 * thread no longer writes to it, so that the connection can be written by
+	 * another writer.
+	 */
+	void detachOutput() {
+		output.set(null);
+		final Future<?> future;
+		try {
+			// The writer thread runs one task at a time so it is done with
+			// the connection once this task ran
+			future = executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					// Nothing to do
+				}
+			});
+		} catch (final RuntimeException e) {
+			// The writer was shut down
+			return;
+		}
+		try {
+			future.get(writeTimeout, TimeUnit.MILLISECONDS);
+		} catch (final Exception e) {
+			// Do nothing
+		}
+	}
+
+	/**
+	 * Hands the writer over to another connection, together with the packets
+	 * it holds.
+	 *
+	 * @param connection
+	 *            the new connection of the writer.
+	 */
+	void setConnection(final ComponentConnection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Sets the spool that holds the packets that do not fit in memory.
+	 *
+	 * @param spool
+	 *            the spool of the connection.
+	 */
+	void setSpool(final OutboundSpool spool) {
+		this.spool = spool;
+		schedule();
+	}
+
+	boolean hasSpool() {
+		return spool != null;
+	}
+
+	/**
+	 * Queues a packet for being sent to the server. Blocks up to the write
+	 * timeout if the queue is full, unless packets are spooled in which case
+	 * the packet is appended to the spool. Packets are appended to the spool
+	 * as well while there is no connection or the spool is not empty.
+	 *
+	 * @param packet
+	 *            the packet to send.
+	 * @return true if the packet was queued or false if it was rejected.
+	 */
+	boolean send(final Packet packet) {
+		final OutboundSpool spool = this.spool;
+		if (spool != null) {
+			if (output.get() != null && spool.isEmpty() && capacity.tryAcquire()) {
+				queue.offer(packet);
+				schedule();
+				return true;
+			}
+			// The queue is full or there is no connection. Packets keep going
+			// to the spool until it is empty again, which keeps them in order
+			// since the writer only reads the spool once the queue is empty.
+			if (spoolInOrder(spool, packet)) {
+				schedule();
+				checkStalled();
+				return true;
+			}
+			rejected.incrementAndGet();
+			log.warn("Packet rejected since the spool of " + connection.getSubdomain() + " is full");
+			checkStalled();
+			return false;
+		}
+		if (!capacity.tryAcquire()) {
+			boolean acquired = false;
+			try {
+				acquired = capacity.tryAcquire(writeTimeout, TimeUnit.MILLISECONDS);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (!acquired) {
+				rejected.incrementAndGet();
+				log.warn("Packet rejected since the send queue of " + connection.getSubdomain() + " is full");
+				checkStalled();
+				return false;
+			}
+		}
+		queue.offer(packet);
+		schedule();
+		return true;
+	}
+
+	/**
+	 * Asks the writer to send a heartbeat to the server.
+	 */
+	void sendHeartbeat() {
+		heartbeat.set(true);
+		schedule();
+	}
+
+	/**
+	 * Writes the queued packets and closes the stream. Waits up to the write
+	 * timeout for the queued packets to be written.
+	 */
+	void closeStream() {
+		final Future<?> future;
+		try {
+			future = executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+					final Output out = output.getAndSet(null);
+					if (out != null) {
+						try {
+							out.writer.write("</stream:stream>");
+							out.writer.flush();
+						} catch (final IOException e) {
+							// Do nothing
+						}
+					}
+				}
+			});
+		} catch (final RuntimeException e) {
+			// The writer was already shut down
+			return;
+		}
+		try {
+			future.get(writeTimeout, TimeUnit.MILLISECONDS);
+		} catch (final Exception e) {
+			// Do nothing
+		}
+	}
+
+	/**
+	 * Stops the writer thread and closes the spool. Packets still in the
+	 * queue are discarded while the spooled packets are kept on disk.
+	 */
+	void shutdown() {
+		output.set(null);
+		executor.shutdownNow();
+		final OutboundSpool spool = this.spool;
+		if (spool != null) {
+			spool.close();
+		}
+	}
+
+	/**
+	 * Returns the number of packets waiting to be sent.
+	 *
+	 * @return the number of packets waiting to be sent.
+	 */
+	int getQueueSize() {
+		return maxQueueSize - capacity.availablePermits();
+	}
+
+	long getWrittenPackets() {
+		return written.get();
+	}
+
+	long getRejectedPackets() {
+		return rejected.get();
+	}
+
+	long getDroppedPackets() {
+		return dropped.get() + buffer.getOverflowedCount() + buffer.getExpiredCount();
+	}
+
+	long getReplayedPackets() {
+		return replayed.get();
+	}
+
+	int getBufferedPackets() {
+		return buffer.size();
+	}
+
+	int getSpooledPackets() {
+		final OutboundSpool spool = this.spool;
+		return spool != null ? spool.size() : 0;
+	}
+
+	long getUnspooledPackets() {
+		return unspooled.get();
+	}
+
+	long getFlushes() {
+		return flushes.get();
+	}
+
+	int getMaxStanzasPerFlush() {
+		return maxStanzasPerFlush;
+	}
+
+	long getLastActive() {
+		return lastActive;
+	}
+
+	/**
+	 * Returns the name of the writer thread, which is unique to this writer.
+	 *
+	 * @return the name of the writer thread.
+	 */
+	String getThreadName() {
+		return threadName;
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				executor.execute(drainTask);
+			} catch (final RuntimeException e) {
+				// The writer was shut down
+				scheduled.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Writes the queued packets until the queue is empty. Only executed by the
+	 * writer thread.
+	 */
+	private void drain() {
+		while (true) {
+			final Output out = output.get();
+			writeQueued(out);
+			scheduled.set(false);
+			// Keep draining if packets were added or the connection changed
+			// after the queue was found empty and nobody else scheduled a new
+			// drain
+			final OutboundSpool spool = this.spool;
+			if ((queue.isEmpty() && !heartbeat.get() && output.get() == out && (out == null || spool == null || spool.isEmpty()))
+					|| !scheduled.compareAndSet(false, true)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes the buffered and queued packets, then the spooled ones. Without
+	 * a connection the queued packets are moved to the spool or the buffer.
+	 */
+	private void writeQueued(final Output out) {
+		Packet packet;
+		boolean wrote = false;
+		int batch = 0;
+		long batchStarted = 0;
+		final OutboundSpool spool = this.spool;
+		try {
+			while (true) {
+				if (out == null && spool != null) {
+					// Keep the queued packets until the component
+					// reconnected. The spool keeps packets for as long as the
+					// outage lasts, unlike the buffer whose packets expire.
+					spoolInOrder(spool, null);
+					break;
+				}
+				// Packets buffered while there was no connection go first,
+				// then the queued packets and the spooled ones once the queue
+				// is empty
+				final String buffered = out != null ? buffer.poll() : null;
+				CharBuffer spooled = null;
+				packet = null;
+				if (buffered == null) {
+					packet = queue.poll();
+					if (packet == null && out != null && spool != null) {
+						spooled = spool.peek();
+					}
+					if (packet == null && spooled == null) {
+						if (batch > 0 && spool != null && !spool.isEmpty()) {
+							// The packets read from the head segment of the
+							// spool must be committed before the next one is
+							// read
+							flush(out, batch);
+							batch = 0;
+							continue;
+						}
+						if (batch > 0 && awaitMore(out, batchStarted)) {
+							continue;
+						}
+						break;
+					}
+					if (packet != null) {
+						capacity.release();
+						if (out == null) {
+							// Keep the packet until the component reconnected
+							bufferPacket(packet);
+							continue;
+						}
+					}
+				}
+				if (batch == 0) {
+					batchStarted = System.nanoTime();
+				}
+				writeStarted = System.nanoTime();
+				if (buffered != null) {
+					out.counter.write(buffered);
+					replayed.incrementAndGet();
+				} else if (spooled != null) {
+					out.counter.write(spooled.array(), spooled.arrayOffset() + spooled.position(), spooled.remaining());
+					unspooled.incrementAndGet();
+				} else if (!(packet instanceof LazyPacket) || !((LazyPacket) packet).writeUnparsed(out.counter)) {
+					out.serializer.write(packet.getElement());
+				}
+				writeStarted = 0;
+				written.incrementAndGet();
+				wrote = true;
+				batch++;
+				if (flushPolicy.isImmediate() || out.counter.getCount() >= flushPolicy.getMaxBatchBytes()) {
+					flush(out, batch);
+					batch = 0;
+				}
+			}
+			if (out == null) {
+				// A heartbeat is pointless without a connection. Leaving the
+				// request pending would keep the drain looping.
+				heartbeat.set(false);
+				return;
+			}
+			if (batch > 0) {
+				flush(out, batch);
+			}
+			if (heartbeat.getAndSet(false) && !wrote) {
+				writeStarted = System.nanoTime();
+				out.writer.write(" ");
+				out.writer.flush();
+				lastActive = System.currentTimeMillis();
+			}
+		} catch (final IOException e) {
+			// Log the exception
+			log.error("Error sending packet", e);
+			if (spool != null) {
+				// The spooled packets that were not flushed are sent again
+				spool.rewind();
+			}
+			failed(out);
+		} finally {
+			writeStarted = 0;
+		}
+	}
+
+	/**
+	 * Moves the queued packets to the spool, then appends a packet to it. The
+	 * queued packets were sent before the packets in the spool, so they must
+	 * be spooled before a packet is appended.
+	 *
+	 * @param packet
+	 *            the packet to append, or <tt>null</tt> to only move the
+	 *            queued packets.
+	 * @return false if the packet was not appended since the spool is full.
+	 */
+	private boolean spoolInOrder(final OutboundSpool spool, final Packet packet) {
+		synchronized (spool) {
+			Packet queued;
+			while ((queued = queue.poll()) != null) {
+				capacity.release();
+				spoolPacket(spool, queued);
+			}
+			return packet == null || spool.append(packet);
+		}
+	}
+
+	/**
+	 * Appends a queued packet to the spool, or discards it if the spool is
+	 * full.
+	 */
+	private void spoolPacket(final OutboundSpool spool, final Packet packet) {
+		if (!spool.append(packet)) {
+			dropped.incrementAndGet();
+			log.warn("Packet dropped since the spool of " + connection.getSubdomain() + " is full");
+		}
+	}
+
+	/**
+	 * Keeps a packet sent while there is no connection in the buffer, or
+	 * discards it if the buffer is disabled or full.
+	 */
+	private void bufferPacket(final Packet packet) {
+		if (!buffer.isEnabled() || executor.isShutdown()) {
+			dropped.incrementAndGet();
+			return;
+		}
+		bufferWriter.getBuffer().setLength(0);
+		try {
+			if (!(packet instanceof LazyPacket) || !((LazyPacket) packet).writeUnparsed(bufferWriter)) {
+				bufferSerializer.write(packet.getElement());
+			}
+			bufferSerializer.flush();
+		} catch (final IOException e) {
+			// Writing to a string does not fail
+			dropped.incrementAndGet();
+			return;
+		}
+		buffer.add(bufferWriter.toString());
+	}
+
+	/**
+	 * Waits a little for more packets to be queued, unless the batch is full
+	 * or its maximum delay elapsed.
+	 *
+	 * @return true if the batch may keep growing.
+	 */
+	private boolean awaitMore(final Output out, final long batchStarted) {
+		final long remaining = flushPolicy.getMaxDelayNanos() - (System.nanoTime() - batchStarted);
+		if (remaining <= 0 || out.counter.getCount() >= flushPolicy.getMaxBatchBytes()) {
+			return false;
+		}
+		LockSupport.parkNanos(Math.min(remaining, MAX_PARK_NANOS));
+		return true;
+	}
+
+	private void flush(final Output out, final int batch) throws IOException {
+		writeStarted = System.nanoTime();
+		out.serializer.flush();
+		writeStarted = 0;
+		final OutboundSpool spool = this.spool;
+		if (spool != null) {
+			// The spooled packets of the batch were sent
+			spool.commit();
+		}
+		out.counter.reset();
+		flushes.incrementAndGet();
+		if (batch > maxStanzasPerFlush) {
+			maxStanzasPerFlush = batch;
+		}
+		// Keep track of the last time a stanza was sent to the server
+		lastActive = System.currentTimeMillis();
+	}
+
+	/**
+	 * Checks if the current write has been blocked for longer than the write
+	 * timeout and if so drops the connection. Called when the queue is full
+	 * and periodically by the sweep of the manager.
+	 */
+	void checkStalled() {
+		final long started = writeStarted;
+		if (started != 0 && System.nanoTime() - started > TimeUnit.MILLISECONDS.toNanos(writeTimeout)) {
+			log.error("Write to the server has been blocked for more than " + writeTimeout + " ms");
+			failed(output.get());
+		}
+	}
+
+	private void failed(final Output out) {
+		if (out != null && output.compareAndSet(out, null)) {
+			connection.outputFailed();
+		}
+	}
+
+	/**
+	 * The streams of an authenticated connection.
+	 */
+	private static class Output {
+
+		final Writer writer;
+		final CountingWriter counter;
+		final XMLWriter serializer;
+
+		Output(final Writer writer) {
+			this.writer = writer;
+			this.counter = new CountingWriter(writer);
+			this.serializer = new XMLWriter(counter);
+		}
+	}
+
+	/**
+	 * Writer that counts the characters written since it was last reset. Used
+	 * to measure the size of a batch before it reaches the socket.
+	 */
+	private static class CountingWriter extends FilterWriter {
+
+		private int count = 0;
+
+		CountingWriter(final Writer out) {
+			super(out);
+		}
+
+		@Override
+		public void write(final int c) throws IOException {
+			out.write(c);
+			count++;
+		}
+
+		@Override
+		public void write(final char[] cbuf, final int off, final int len) throws IOException {
+			out.write(cbuf, off, len);
+			count += len;
+		}
+
+		@Override
+		public void write(final String str, final int off, final int len) throws IOException {
+			out.write(str, off, len);
+			count += len;
+		}
+
+		int getCount() {
+			return count;
+		}
+
+		void reset() {
+			count = 0;
+		}
+	}
+}
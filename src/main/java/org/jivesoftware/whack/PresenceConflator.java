@@ -0,0 +1,169 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.whack;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Keeps only the latest of the presences that a sender sent to the same
+ * recipient while they wait to be processed. A presence that arrives while an
+ * older one from the same sender to the same recipient is still queued takes
+ * its place in the queue instead of being queued too, so during a storm of
+ * status changes the component only sees the latest status.
+ * <p>
+ *
+ * Only availability changes are conflated. Subscription requests, probes and
+ * errors are never replaced, and neither are messages and IQs. A conflated
+ * presence keeps the position of the presence it replaced, so it may be
+ * processed before stanzas of the same sender that were received after the
+ * replaced presence.
+ */
+final class PresenceConflator {
+
+	private final Map<String, Slot> pending = new ConcurrentHashMap<String, Slot>();
+	private final AtomicLong conflated = new AtomicLong();
+
+	/**
+	 * Returns the conflation key of a received packet, or <tt>null</tt> if
+	 * the packet is never conflated.
+	 *
+	 * @param packet
+	 *            the received packet.
+	 * @return the conflation key or <tt>null</tt>.
+	 */
+	static String keyFor(final Packet packet) {
+		if (!(packet instanceof Presence) || !isConflatable(packet.getElement().attributeValue("type"))) {
+			return null;
+		}
+		final JID from = packet.getFrom();
+		final JID to = packet.getTo();
+		return keyFor(from != null ? from.toString() : null, to != null ? to.toString() : null);
+	}
+
+	/**
+	 * Returns the conflation key of the stanza of a framer, or <tt>null</tt>
+	 * if the stanza is never conflated.
+	 *
+	 * @param framer
+	 *            the framer whose current frame is the stanza.
+	 * @return the conflation key or <tt>null</tt>.
+	 */
+	static String keyFor(final StanzaFramer framer) {
+		if (!framer.isElement("presence") || !isConflatable(framer.attribute("type"))) {
+			return null;
+		}
+		return keyFor(framer.attribute("from"), framer.attribute("to"));
+	}
+
+	private static String keyFor(final String from, final String to) {
+		// JIDs cannot contain spaces
+		return from + ' ' + to;
+	}
+
+	private static boolean isConflatable(final String type) {
+		return type == null || "unavailable".equals(type);
+	}
+
+	/**
+	 * Replaces the queued presence with the same key by a newer one.
+	 *
+	 * @param key
+	 *            the conflation key of the presence.
+	 * @param task
+	 *            the task processing the newer presence.
+	 * @return <tt>null</tt> if the task replaced the task of a queued
+	 *         presence, otherwise the task that must be queued instead of the
+	 *         given one.
+	 */
+	Runnable conflate(final String key, final Runnable task) {
+		final Slot queued = pending.get(key);
+		if (queued != null && queued.replace(task)) {
+			conflated.incrementAndGet();
+			return null;
+		}
+		final Slot slot = new Slot(key, task);
+		pending.put(key, slot);
+		return slot;
+	}
+
+	/**
+	 * Forgets a task returned by {@link #conflate(String, Runnable)} that
+	 * could not be queued, so newer presences do not replace it.
+	 *
+	 * @param key
+	 *            the conflation key of the presence.
+	 * @param slot
+	 *            the task that was not queued.
+	 */
+	void discard(final String key, final Runnable slot) {
+		pending.remove(key, slot);
+	}
+
+	/**
+	 * Returns the number of presences that were replaced by a newer one.
+	 *
+	 * @return the number of conflated presences.
+	 */
+	long getConflatedCount() {
+		return conflated.get();
+	}
+
+	/**
+	 * Place in the queue of the latest presence with a key.
+	 */
+	private class Slot implements Runnable {
+
+		private final String key;
+		private Runnable task;
+		private boolean started = false;
+
+		Slot(final String key, final Runnable task) {
+			this.key = key;
+			this.task = task;
+		}
+
+		synchronized boolean replace(final Runnable task) {
+			if (started) {
+				return false;
+			}
+			this.task = task;
+			return true;
+		}
+
+		@Override
+		public void run() {
+			final Runnable latest;
+			synchronized (this) {
+				started = true;
+				latest = task;
+			}
+			pending.remove(key, this);
+			latest.run();
+		}
+	}
+}
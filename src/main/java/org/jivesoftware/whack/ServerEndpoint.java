@@ -0,0 +1,108 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Address of a server node that components may connect to, with the weight
+ * that makes it preferred over the other nodes. The node is reached either
+ * through TCP or through a Unix domain socket when it runs on the same host.
+ */
+final class ServerEndpoint {
+
+	private final String host;
+	private final int port;
+	/**
+	 * Path of the Unix domain socket of the node, or <tt>null</tt> if the node
+	 * is reached through TCP.
+	 */
+	private final String socketPath;
+	private final int weight;
+
+	ServerEndpoint(final String host, final int port, final int weight) {
+		if (host == null)
+			throw new IllegalArgumentException("Host of XMPP server cannot be null");
+		if (weight < 1)
+			throw new IllegalArgumentException("Weight must be positive");
+		this.host = host;
+		this.port = port;
+		this.socketPath = null;
+		this.weight = weight;
+	}
+
+	/**
+	 * Creates the endpoint of a node listening on a Unix domain socket.
+	 *
+	 * @param socketPath
+	 *            the path of the socket file.
+	 */
+	ServerEndpoint(final String socketPath) {
+		if (socketPath == null)
+			throw new IllegalArgumentException("Socket path cannot be null");
+		this.host = null;
+		this.port = -1;
+		this.socketPath = socketPath;
+		this.weight = 1;
+	}
+
+	String getHost() {
+		return host;
+	}
+
+	int getPort() {
+		return port;
+	}
+
+	String getSocketPath() {
+		return socketPath;
+	}
+
+	boolean isUnixSocket() {
+		return socketPath != null;
+	}
+
+	int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Returns the address of the endpoint without resolving the host.
+	 *
+	 * @return the address of the endpoint, or <tt>null</tt> for a Unix domain
+	 *         socket.
+	 */
+	InetSocketAddress toAddress() {
+		return socketPath == null ? InetSocketAddress.createUnresolved(host, port) : null;
+	}
+
+	boolean isSameAddress(final ServerEndpoint other) {
+		if (socketPath != null || other.socketPath != null) {
+			return socketPath != null && socketPath.equals(other.socketPath);
+		}
+		return host.equalsIgnoreCase(other.host) && port == other.port;
+	}
+
+	@Override
+	public String toString() {
+		return socketPath == null ? host + ":" + port : "unix:" + socketPath;
+	}
+}
@@ -21,18 +21,15 @@
 package org.jivesoftware.whack;
 
 import java.io.EOFException;
+import java.io.InputStream;
 import java.net.SocketException;
+import java.nio.channels.ClosedChannelException;
 
 import org.dom4j.Element;
 import org.dom4j.io.XPPPacketReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmpp.packet.IQ;
-import org.xmpp.packet.Message;
-import org.xmpp.packet.Packet;
-import org.xmpp.packet.Presence;
-import org.xmpp.packet.Roster;
 
 /**
  * Reads XMPP XML packets from a socket and asks the component to process the
@@ -45,24 +42,47 @@ public class SocketReadThread extends Thread {
 	private static final Logger log = LoggerFactory.getLogger(SocketReadThread.class);
 
 	private final ExternalComponent component;
+	private final ComponentConnection connection;
 	private boolean shutdown = false;
 
 	XPPPacketReader reader = null;
+	private StanzaFramer framer = null;
+	private InputStream in = null;
 
 	/**
 	 * Create dedicated read thread for this socket.
 	 * 
-	 * @param component
-	 *            The component for which this thread is reading for
+	 * @param connection
+	 *            The connection for which this thread is reading for
 	 * @param reader
 	 *            The reader to use for reading
 	 */
-	public SocketReadThread(final ExternalComponent component, final XPPPacketReader reader) {
+	SocketReadThread(final ComponentConnection connection, final XPPPacketReader reader) {
 		super("Component socket reader");
-		this.component = component;
+		this.component = connection.getComponent();
+		this.connection = connection;
 		this.reader = reader;
 	}
 
+	/**
+	 * Create dedicated read thread for this socket that only finds the
+	 * boundaries of the stanzas. The stanzas are parsed by the component.
+	 * 
+	 * @param connection
+	 *            The connection for which this thread is reading for
+	 * @param framer
+	 *            The framer that holds the data read while connecting
+	 * @param in
+	 *            The stream to read from
+	 */
+	SocketReadThread(final ComponentConnection connection, final StanzaFramer framer, final InputStream in) {
+		super("Component socket reader");
+		this.component = connection.getComponent();
+		this.connection = connection;
+		this.framer = framer;
+		this.in = in;
+	}
+
 	/**
 	 * A dedicated thread loop for reading the stream and sending incoming
 	 * packets to the appropriate router.
@@ -70,22 +90,34 @@ public class SocketReadThread extends Thread {
 	@Override
 	public void run() {
 		try {
-			readStream();
+			if (framer != null) {
+				readFrames();
+			} else {
+				readStream();
+			}
 		} catch (final EOFException eof) {
 			// Normal disconnect
 		} catch (final SocketException se) {
 			// Do nothing if the exception occured while shutting down the
-			// component otherwise
-			// log the error and try to establish a new connection
+			// component otherwise log the error
 			if (!shutdown) {
 				log.error(se.getMessage());
-				component.connectionLost();
+			}
+		} catch (final ClosedChannelException ce) {
+			// Same as above for sockets that are read through a channel
+			if (!shutdown) {
+				log.error("Connection closed", ce);
 			}
 		} catch (final XmlPullParserException ie) {
 			log.error(ie.getMessage());
 		} catch (final Exception e) {
 			log.warn(e.getMessage());
 		}
+		// The stream ended or can no longer be read so try to establish a new
+		// connection, unless the component is shutting down
+		if (!shutdown) {
+			connection.connectionLost();
+		}
 	}
 
 	/**
@@ -101,26 +133,27 @@ public class SocketReadThread extends Thread {
 				// probably closed the connection
 				return;
 
-			Packet packet;
-			final String tag = doc.getName();
-			if ("message".equals(tag)) {
-				packet = new Message(doc);
-			} else if ("presence".equals(tag)) {
-				packet = new Presence(doc);
-			} else if ("iq".equals(tag)) {
-				packet = getIQ(doc);
-			} else
-				throw new XmlPullParserException("Unknown packet type was read: " + tag);
 			// Request the component to process the received packet
-			component.processPacket(packet);
+			component.processPacket(StanzaParser.createPacket(doc));
 		}
 	}
 
-	private IQ getIQ(final Element doc) {
-		final Element query = doc.element("query");
-		if (query != null && "jabber:iq:roster".equals(query.getNamespaceURI()))
-			return new Roster(doc);
-		return new IQ(doc);
+	/**
+	 * Cut the incoming stream into stanzas until it ends.
+	 */
+	private void readFrames() throws Exception {
+		while (!shutdown) {
+			final int event = framer.next();
+			if (event == StanzaFramer.STANZA) {
+				component.processFrame(framer);
+			} else if (event == StanzaFramer.STREAM_END) {
+				// Stop reading the stream since the server has sent an end of
+				// stream element and probably closed the connection
+				return;
+			} else if (event == StanzaFramer.NEED_DATA && framer.read(in) < 0) {
+				return;
+			}
+		}
 	}
 
 	/**
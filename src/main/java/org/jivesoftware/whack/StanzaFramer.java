@@ -0,0 +1,722 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+
+/**
+ * Splits a raw XMPP byte stream into its top-level frames (the stream header,
+ * each stanza and the closing stream tag) without building any XML tree. The
+ * framer only tracks tags, quotes, comments and CDATA sections, so it can be
+ * fed with whatever number of bytes happen to be available on a non-blocking
+ * channel and resumes scanning where it stopped.
+ * <p>
+ *
+ * Scanning is done on bytes rather than chars. This is safe for UTF-8 since
+ * every byte of a multi-byte sequence has its high bit set and can never be
+ * mistaken for XML markup.
+ * <p>
+ *
+ * Instances are not thread safe. The bytes of the last frame returned by
+ * {@link #next()} are only valid until the next call to one of the read
+ * methods.
+ */
+final class StanzaFramer {
+
+	/**
+	 * More bytes must be read before another frame is available.
+	 */
+	static final int NEED_DATA = 0;
+	/**
+	 * The opening <tt>stream:stream</tt> tag was read.
+	 */
+	static final int STREAM_START = 1;
+	/**
+	 * A complete top-level stanza was read.
+	 */
+	static final int STANZA = 2;
+	/**
+	 * The closing <tt>stream:stream</tt> tag was read.
+	 */
+	static final int STREAM_END = 3;
+
+	private static final int TEXT = 0;
+	private static final int TAG_OPEN = 1;
+	private static final int START_TAG = 2;
+	private static final int END_TAG = 3;
+	private static final int PROCESSING_INSTRUCTION = 4;
+	private static final int MARKUP_DECLARATION = 5;
+	private static final int COMMENT = 6;
+	private static final int CDATA = 7;
+	private static final int DECLARATION = 8;
+
+	private final int maxFrameSize;
+
+	private byte[] buf;
+	private ByteBuffer wrapper;
+	/**
+	 * End of the valid data in the buffer.
+	 */
+	private int limit;
+	/**
+	 * Position of the next byte to scan.
+	 */
+	private int pos;
+	/**
+	 * Start of the frame being scanned or -1 if no frame has been started.
+	 */
+	private int frameStart = -1;
+	/**
+	 * Start of the tag being scanned.
+	 */
+	private int tagStart;
+	private int frameOffset;
+	private int frameLength;
+
+	private int state = TEXT;
+	private int depth;
+	private byte quote;
+	private byte previous;
+	/**
+	 * Counts the characters already matched from a multi-character delimiter
+	 * such as <tt>--&gt;</tt> or <tt>]]&gt;</tt>.
+	 */
+	private int matched;
+
+	/**
+	 * Creates a new framer.
+	 *
+	 * @param initialCapacity
+	 *            the initial size of the read buffer.
+	 * @param maxFrameSize
+	 *            the maximum number of bytes a single frame may have.
+	 */
+	StanzaFramer(final int initialCapacity, final int maxFrameSize) {
+		this.buf = new byte[initialCapacity];
+		this.wrapper = ByteBuffer.wrap(buf);
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * Reads as many bytes as currently fit in the buffer from the channel.
+	 *
+	 * @param channel
+	 *            the channel to read from.
+	 * @return the number of bytes read, possibly zero, or -1 if the channel
+	 *         has reached end-of-stream.
+	 * @throws IOException
+	 *             if an I/O error occurs or the current frame exceeds the
+	 *             maximum frame size.
+	 */
+	int read(final ReadableByteChannel channel) throws IOException {
+		prepareRead();
+		wrapper.limit(buf.length).position(limit);
+		final int read = channel.read(wrapper);
+		if (read > 0) {
+			limit += read;
+		}
+		return read;
+	}
+
+	/**
+	 * Reads as many bytes as currently fit in the buffer from the stream.
+	 * Blocks until at least one byte is available.
+	 *
+	 * @param in
+	 *            the stream to read from.
+	 * @return the number of bytes read or -1 if the stream has reached
+	 *         end-of-stream.
+	 * @throws IOException
+	 *             if an I/O error occurs or the current frame exceeds the
+	 *             maximum frame size.
+	 */
+	int read(final InputStream in) throws IOException {
+		prepareRead();
+		final int read = in.read(buf, limit, buf.length - limit);
+		if (read > 0) {
+			limit += read;
+		}
+		return read;
+	}
+
+	/**
+	 * Scans the buffered bytes until a complete frame is found.
+	 *
+	 * @return the type of the frame found or {@link #NEED_DATA} if the
+	 *         buffered bytes do not hold a complete frame.
+	 */
+	int next() {
+		while (pos < limit) {
+			final byte b = buf[pos++];
+			switch (state) {
+			case TEXT:
+				if (b == '<') {
+					state = TAG_OPEN;
+					tagStart = pos - 1;
+				}
+				break;
+			case TAG_OPEN:
+				if (b == '/') {
+					state = END_TAG;
+				} else if (b == '?') {
+					state = PROCESSING_INSTRUCTION;
+					matched = 0;
+				} else if (b == '!') {
+					state = MARKUP_DECLARATION;
+					matched = 0;
+				} else {
+					state = START_TAG;
+					quote = 0;
+					if (depth <= 1 && frameStart < 0) {
+						// Either the stream header or a new stanza
+						frameStart = tagStart;
+					}
+				}
+				break;
+			case START_TAG:
+				if (quote != 0) {
+					if (b == quote) {
+						quote = 0;
+					}
+				} else if (b == '"' || b == '\'') {
+					quote = b;
+				} else if (b == '>') {
+					state = TEXT;
+					if (depth == 0) {
+						depth = 1;
+						return deliver(STREAM_START, frameStart);
+					}
+					if (previous != '/') {
+						depth++;
+					} else if (depth == 1) {
+						return deliver(STANZA, frameStart);
+					}
+				}
+				break;
+			case END_TAG:
+				if (b == '>') {
+					state = TEXT;
+					depth--;
+					if (depth == 1) {
+						return deliver(STANZA, frameStart);
+					}
+					if (depth == 0) {
+						return deliver(STREAM_END, tagStart);
+					}
+				}
+				break;
+			case PROCESSING_INSTRUCTION:
+				if (b == '>' && matched == 1) {
+					state = TEXT;
+				} else {
+					matched = b == '?' ? 1 : 0;
+				}
+				break;
+			case MARKUP_DECLARATION:
+				if (b == '-') {
+					if (++matched == 2) {
+						state = COMMENT;
+						matched = 0;
+					}
+				} else if (b == '[') {
+					state = CDATA;
+					matched = 0;
+				} else {
+					state = DECLARATION;
+				}
+				break;
+			case COMMENT:
+				if (b == '>' && matched >= 2) {
+					state = TEXT;
+				} else {
+					matched = b == '-' ? matched + 1 : 0;
+				}
+				break;
+			case CDATA:
+				if (b == '>' && matched >= 2) {
+					state = TEXT;
+				} else {
+					matched = b == ']' ? matched + 1 : 0;
+				}
+				break;
+			case DECLARATION:
+				if (b == '>') {
+					state = TEXT;
+				}
+				break;
+			}
+			previous = b;
+		}
+		return NEED_DATA;
+	}
+
+	/**
+	 * Returns the buffer holding the last frame returned by {@link #next()}.
+	 *
+	 * @return the buffer holding the last frame.
+	 */
+	byte[] array() {
+		return buf;
+	}
+
+	/**
+	 * Returns the offset of the last frame in the buffer.
+	 *
+	 * @return the offset of the last frame in the buffer.
+	 */
+	int frameOffset() {
+		return frameOffset;
+	}
+
+	/**
+	 * Returns the number of bytes of the last frame.
+	 *
+	 * @return the number of bytes of the last frame.
+	 */
+	int frameLength() {
+		return frameLength;
+	}
+
+	/**
+	 * Returns the value of an unqualified attribute of the start tag of the
+	 * last frame, or <tt>null</tt> if the attribute is not present.
+	 *
+	 * @param name
+	 *            the name of the attribute.
+	 * @return the decoded value of the attribute or <tt>null</tt>.
+	 */
+	String attribute(final String name) {
+		return attribute(frameOffset, name);
+	}
+
+	/**
+	 * Returns the value of an unqualified attribute of the tag of the last
+	 * frame starting at the given offset, or <tt>null</tt> if the attribute
+	 * is not present.
+	 */
+	private String attribute(final int tag, final String name) {
+		final int end = frameOffset + frameLength;
+		int i = nameEnd(tag + 1);
+		while (i < end) {
+			while (i < end && isWhitespace(buf[i])) {
+				i++;
+			}
+			if (i >= end || buf[i] == '>' || buf[i] == '/') {
+				return null;
+			}
+			final int nameStart = i;
+			while (i < end && buf[i] != '=' && !isWhitespace(buf[i])) {
+				i++;
+			}
+			final int nameEnd = i;
+			while (i < end && buf[i] != '"' && buf[i] != '\'') {
+				i++;
+			}
+			if (i >= end) {
+				return null;
+			}
+			final byte q = buf[i++];
+			final int valueStart = i;
+			while (i < end && buf[i] != q) {
+				i++;
+			}
+			if (matches(name, nameStart, nameEnd)) {
+				return decode(buf, valueStart, i);
+			}
+			i++;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns true if the root element of the last frame has the given name.
+	 *
+	 * @param name
+	 *            the name of the element.
+	 * @return true if the frame is an element with that name.
+	 */
+	boolean isElement(final String name) {
+		return matches(name, frameOffset + 1, nameEnd(frameOffset + 1));
+	}
+
+	/**
+	 * Returns the text of the first child element of the stanza of the last
+	 * frame with the given name, or <tt>null</tt> if there is no such element
+	 * or its text is not plain character data. Only the direct children of
+	 * the stanza are looked at, without parsing the frame.
+	 *
+	 * @param name
+	 *            the name of the element.
+	 * @return the decoded text of the element or <tt>null</tt>.
+	 */
+	String childText(final String name) {
+		final int end = frameOffset + frameLength;
+		for (int i = firstChild(); i >= 0; i = nextChild(skipElement(i))) {
+			if (!matches(name, i + 1, nameEnd(i + 1))) {
+				continue;
+			}
+			final int close = tagEnd(i);
+			if (close >= end || buf[close - 1] == '/') {
+				return null;
+			}
+			final int textStart = close + 1;
+			int k = textStart;
+			while (k < end && buf[k] != '<') {
+				k++;
+			}
+			if (k + 1 >= end || buf[k + 1] != '/') {
+				return null;
+			}
+			return decode(buf, textStart, k);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns true if a child element of the stanza of the last frame
+	 * declares the given default namespace. Only the direct children of the
+	 * stanza are looked at, without parsing the frame.
+	 *
+	 * @param namespace
+	 *            the namespace URI.
+	 * @return true if a child of the stanza is in the namespace.
+	 */
+	boolean declaresNamespace(final String namespace) {
+		for (int i = firstChild(); i >= 0; i = nextChild(skipElement(i))) {
+			if (namespace.equals(attribute(i, "xmlns"))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the attributes of the start tag of a stanza. Only tags that can be
+	 * represented without the help of an XML parser are read: tags with
+	 * namespace declarations, qualified attributes or attribute values that
+	 * need whitespace normalization are rejected.
+	 *
+	 * @param data
+	 *            the buffer holding the stanza.
+	 * @param offset
+	 *            the offset of the stanza in the buffer.
+	 * @param length
+	 *            the number of bytes of the stanza.
+	 * @param attributes
+	 *            the list that receives the names and the decoded values of
+	 *            the attributes, one after the other.
+	 * @return the offset of the first byte after the start tag, or -1 if the
+	 *         tag was rejected.
+	 */
+	static int readStartTag(final byte[] data, final int offset, final int length, final List<String> attributes) {
+		final int end = offset + length;
+		int i = offset + 1;
+		// Skip the element name
+		while (i < end && !isWhitespace(data[i]) && data[i] != '>' && data[i] != '/') {
+			i++;
+		}
+		while (i < end) {
+			while (i < end && isWhitespace(data[i])) {
+				i++;
+			}
+			if (i < end && data[i] == '/') {
+				i++;
+			}
+			if (i >= end) {
+				return -1;
+			}
+			if (data[i] == '>') {
+				return i + 1;
+			}
+			final int nameStart = i;
+			while (i < end && data[i] != '=' && !isWhitespace(data[i])) {
+				if (data[i] == ':') {
+					return -1;
+				}
+				i++;
+			}
+			final int nameEnd = i;
+			while (i < end && data[i] != '"' && data[i] != '\'') {
+				i++;
+			}
+			if (i >= end) {
+				return -1;
+			}
+			final byte q = data[i++];
+			final int valueStart = i;
+			while (i < end && data[i] != q) {
+				if (data[i] == '\t' || data[i] == '\n' || data[i] == '\r') {
+					return -1;
+				}
+				i++;
+			}
+			final String name = decode(data, nameStart, nameEnd);
+			if ("xmlns".equals(name)) {
+				return -1;
+			}
+			attributes.add(name);
+			attributes.add(decode(data, valueStart, i));
+			i++;
+		}
+		return -1;
+	}
+
+	private int deliver(final int type, final int start) {
+		frameOffset = start;
+		frameLength = pos - start;
+		frameStart = -1;
+		return type;
+	}
+
+	/**
+	 * Discards the bytes that are no longer needed and makes room for more
+	 * data, growing the buffer if the frame being scanned does not fit.
+	 */
+	private void prepareRead() throws IOException {
+		final int keep = frameStart >= 0 ? frameStart : (state == TEXT ? pos : tagStart);
+		if (keep > 0) {
+			System.arraycopy(buf, keep, buf, 0, limit - keep);
+			limit -= keep;
+			pos -= keep;
+			tagStart = Math.max(0, tagStart - keep);
+			if (frameStart >= 0) {
+				frameStart -= keep;
+			}
+		}
+		if (limit > maxFrameSize) {
+			// The rest of the stanza is not read so its full size is unknown
+			throw new IOException("Closing the connection after receiving a stanza larger than the maximum stanza size of "
+					+ maxFrameSize + " bytes (" + limit + " bytes read)");
+		}
+		if (limit == buf.length) {
+			final byte[] grown = new byte[Math.min(buf.length * 2, maxFrameSize + 1)];
+			System.arraycopy(buf, 0, grown, 0, limit);
+			buf = grown;
+			wrapper = ByteBuffer.wrap(buf);
+		}
+	}
+
+	/**
+	 * Returns the offset of the first child element of the stanza of the
+	 * last frame, or -1 if the stanza has no children.
+	 */
+	private int firstChild() {
+		final int close = tagEnd(frameOffset);
+		if (close >= frameOffset + frameLength || buf[close - 1] == '/') {
+			return -1;
+		}
+		return nextChild(close + 1);
+	}
+
+	/**
+	 * Returns the offset of the next child element of the stanza of the last
+	 * frame, starting between two children, or -1 if there are no more
+	 * children. Text, comments and CDATA sections are skipped.
+	 */
+	private int nextChild(int i) {
+		final int end = frameOffset + frameLength;
+		while (i < end) {
+			if (buf[i] != '<') {
+				i++;
+			} else if (i + 1 >= end || buf[i + 1] == '/') {
+				// End of the stanza
+				return -1;
+			} else if (buf[i + 1] == '!' || buf[i + 1] == '?') {
+				i = skipMarkup(i);
+			} else {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the offset following the element of the last frame whose start
+	 * tag begins at the given offset.
+	 */
+	private int skipElement(int i) {
+		final int end = frameOffset + frameLength;
+		int level = 0;
+		while (i < end) {
+			if (buf[i] != '<') {
+				i++;
+				continue;
+			}
+			if (i + 1 < end && (buf[i + 1] == '!' || buf[i + 1] == '?')) {
+				i = skipMarkup(i);
+				continue;
+			}
+			final int close = tagEnd(i);
+			if (buf[i + 1] == '/') {
+				level--;
+			} else if (buf[close - 1] != '/') {
+				level++;
+			}
+			i = close + 1;
+			if (level == 0) {
+				return i;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Returns the offset following the comment, CDATA section, processing
+	 * instruction or declaration of the last frame starting at the given
+	 * offset.
+	 */
+	private int skipMarkup(final int i) {
+		final int end = frameOffset + frameLength;
+		final String delimiter;
+		if (startsWith("<!--", i)) {
+			delimiter = "-->";
+		} else if (startsWith("<![CDATA[", i)) {
+			delimiter = "]]>";
+		} else if (buf[i + 1] == '?') {
+			delimiter = "?>";
+		} else {
+			delimiter = ">";
+		}
+		for (int j = i + 2; j < end; j++) {
+			if (startsWith(delimiter, j)) {
+				return j + delimiter.length();
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Returns the offset of the <tt>&gt;</tt> closing the tag of the last
+	 * frame starting at the given offset, ignoring the quoted attribute
+	 * values.
+	 */
+	private int tagEnd(int i) {
+		final int end = frameOffset + frameLength;
+		byte q = 0;
+		for (i++; i < end; i++) {
+			if (q != 0) {
+				if (buf[i] == q) {
+					q = 0;
+				}
+			} else if (buf[i] == '"' || buf[i] == '\'') {
+				q = buf[i];
+			} else if (buf[i] == '>') {
+				return i;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Returns the offset following the element name starting at the given
+	 * offset of the last frame.
+	 */
+	private int nameEnd(int i) {
+		final int end = frameOffset + frameLength;
+		while (i < end && !isWhitespace(buf[i]) && buf[i] != '>' && buf[i] != '/') {
+			i++;
+		}
+		return i;
+	}
+
+	private boolean startsWith(final String prefix, final int start) {
+		return start + prefix.length() <= frameOffset + frameLength && matches(prefix, start, start + prefix.length());
+	}
+
+	private boolean matches(final String name, final int start, final int end) {
+		if (end - start != name.length()) {
+			return false;
+		}
+		for (int i = start; i < end; i++) {
+			if (buf[i] != name.charAt(i - start)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isWhitespace(final byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+
+	/**
+	 * Decodes an UTF-8 attribute value replacing the predefined XML entities
+	 * and character references.
+	 */
+	static String decode(final byte[] data, final int start, final int end) {
+		final String raw;
+		try {
+			raw = new String(data, start, end - start, "UTF-8");
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+		if (raw.indexOf('&') < 0) {
+			return raw;
+		}
+		final StringBuilder value = new StringBuilder(raw.length());
+		for (int i = 0; i < raw.length(); i++) {
+			final char c = raw.charAt(i);
+			final int semicolon = c == '&' ? raw.indexOf(';', i) : -1;
+			if (semicolon < 0) {
+				value.append(c);
+				continue;
+			}
+			final String entity = raw.substring(i + 1, semicolon);
+			if ("amp".equals(entity)) {
+				value.append('&');
+			} else if ("lt".equals(entity)) {
+				value.append('<');
+			} else if ("gt".equals(entity)) {
+				value.append('>');
+			} else if ("quot".equals(entity)) {
+				value.append('"');
+			} else if ("apos".equals(entity)) {
+				value.append('\'');
+			} else if (entity.startsWith("#x") && isNumber(entity, 2, 16)) {
+				value.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+			} else if (entity.startsWith("#") && isNumber(entity, 1, 10)) {
+				value.appendCodePoint(Integer.parseInt(entity.substring(1)));
+			} else {
+				value.append(c);
+				continue;
+			}
+			i = semicolon;
+		}
+		return value.toString();
+	}
+
+	private static boolean isNumber(final String text, final int start, final int radix) {
+		if (text.length() <= start || text.length() - start > 6) {
+			return false;
+		}
+		for (int i = start; i < text.length(); i++) {
+			if (Character.digit(text.charAt(i), radix) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
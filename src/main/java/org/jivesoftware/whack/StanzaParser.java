@@ -0,0 +1,274 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+import org.dom4j.io.XPPPacketReader;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+import org.xmpp.packet.Roster;
+
+/**
+ * Builds packets out of single stanzas that were cut from the stream by a
+ * {@link StanzaFramer}. Each stanza is parsed in the namespace context of a
+ * component stream so the resulting elements are identical to the ones read
+ * by {@link SocketReadThread}.
+ * <p>
+ *
+ * Instances are not thread safe.
+ */
+final class StanzaParser {
+
+	/**
+	 * The utf-8 charset for decoding XMPP packet streams.
+	 */
+	private static final String CHARSET = "UTF-8";
+
+	/**
+	 * Stream header that is parsed before each stanza to declare the
+	 * namespaces of the component stream.
+	 */
+	private static final ByteBuffer STREAM_HEADER;
+
+	static {
+		try {
+			STREAM_HEADER = ByteBuffer.wrap("<stream:stream xmlns=\"jabber:component:accept\" xmlns:stream=\"http://etherx.jabber.org/streams\">"
+					.getBytes(CHARSET)).asReadOnlyBuffer();
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Byte sequence that identifies a roster query, which needs to be parsed
+	 * to build the right packet type.
+	 */
+	private static final byte[] ROSTER_NAMESPACE;
+
+	static {
+		try {
+			ROSTER_NAMESPACE = "jabber:iq:roster".getBytes(CHARSET);
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Parsers of the threads that parse stanzas outside of a connection.
+	 */
+	private static final ThreadLocal<StanzaParser> instances = new ThreadLocal<StanzaParser>() {
+		@Override
+		protected StanzaParser initialValue() {
+			try {
+				return new StanzaParser();
+			} catch (final XmlPullParserException e) {
+				throw new IllegalStateException(e.getMessage());
+			}
+		}
+	};
+
+	private final XPPPacketReader reader;
+	private final Utf8Reader input = new Utf8Reader();
+
+	StanzaParser() throws XmlPullParserException {
+		reader = new XPPPacketReader();
+		reader.setXPPFactory(XmlPullParserFactory.newInstance());
+	}
+
+	/**
+	 * Returns the parser of the current thread.
+	 *
+	 * @return the parser of the current thread.
+	 */
+	static StanzaParser getInstance() {
+		return instances.get();
+	}
+
+	/**
+	 * Parses a single stanza into a dom4j element.
+	 *
+	 * @param data
+	 *            the buffer holding the stanza.
+	 * @param offset
+	 *            the offset of the stanza in the buffer.
+	 * @param length
+	 *            the number of bytes of the stanza.
+	 * @return the parsed element.
+	 */
+	Element parseElement(final byte[] data, final int offset, final int length) throws DocumentException, IOException, XmlPullParserException {
+		final XmlPullParser xpp = reader.getXPPParser();
+		input.setInput(STREAM_HEADER, ByteBuffer.wrap(data, offset, length));
+		xpp.setInput(input);
+		for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;) {
+			eventType = xpp.next();
+		}
+		return reader.parseDocument().getRootElement();
+	}
+
+	/**
+	 * Parses a single stanza into a packet.
+	 *
+	 * @param data
+	 *            the buffer holding the stanza.
+	 * @param offset
+	 *            the offset of the stanza in the buffer.
+	 * @param length
+	 *            the number of bytes of the stanza.
+	 * @return the parsed packet.
+	 */
+	Packet parse(final byte[] data, final int offset, final int length) throws DocumentException, IOException, XmlPullParserException {
+		return createPacket(parseElement(data, offset, length));
+	}
+
+	/**
+	 * Wraps a stanza element read from the server into the matching packet
+	 * type.
+	 *
+	 * @param doc
+	 *            the stanza element.
+	 * @return the packet wrapping the element.
+	 * @throws XmlPullParserException
+	 *             if the element is not a message, presence or IQ.
+	 */
+	static Packet createPacket(final Element doc) throws XmlPullParserException {
+		final String tag = doc.getName();
+		if ("message".equals(tag))
+			return new Message(doc);
+		if ("presence".equals(tag))
+			return new Presence(doc);
+		if ("iq".equals(tag))
+			return getIQ(doc);
+		throw new XmlPullParserException("Unknown packet type was read: " + tag);
+	}
+
+	/**
+	 * Builds a packet out of the start tag of a stanza only. The rest of the
+	 * stanza is parsed the first time the content of the packet is accessed,
+	 * and it is written back unparsed if the packet is sent before that.
+	 * <p>
+	 *
+	 * Stanzas that cannot be represented this way, like stanzas declaring
+	 * namespaces on their start tag or roster queries, are not supported.
+	 *
+	 * @param data
+	 *            the buffer holding the stanza. It must not be modified
+	 *            afterwards.
+	 * @param offset
+	 *            the offset of the stanza in the buffer.
+	 * @param length
+	 *            the number of bytes of the stanza.
+	 * @return the packet or <tt>null</tt> if the stanza must be parsed.
+	 */
+	static Packet createLazyPacket(final byte[] data, final int offset, final int length) {
+		final List<String> attributes = new ArrayList<String>();
+		final int contentStart = StanzaFramer.readStartTag(data, offset, length, attributes);
+		if (contentStart < 0) {
+			return null;
+		}
+		final String tag;
+		if (startsWith(data, offset + 1, "message")) {
+			tag = "message";
+		} else if (startsWith(data, offset + 1, "presence")) {
+			tag = "presence";
+		} else if (startsWith(data, offset + 1, "iq")) {
+			if (indexOf(data, contentStart, offset + length, ROSTER_NAMESPACE) >= 0) {
+				return null;
+			}
+			tag = "iq";
+		} else {
+			return null;
+		}
+
+		final DocumentFactory df = DocumentFactory.getInstance();
+		final Element element = df.createElement(tag);
+		df.createDocument().add(element);
+		for (int i = 0; i < attributes.size(); i += 2) {
+			element.addAttribute(attributes.get(i), attributes.get(i + 1));
+		}
+		if (data[offset + length - 2] == '/') {
+			// The stanza is an empty element so there is nothing else to parse
+			return createPacket(element, tag);
+		}
+		final LazyContent content = new LazyContent(data, offset, length, contentStart);
+		if ("message".equals(tag))
+			return new LazyMessage(element, content);
+		if ("presence".equals(tag))
+			return new LazyPresence(element, content);
+		return new LazyIQ(element, content);
+	}
+
+	private static Packet createPacket(final Element element, final String tag) {
+		if ("message".equals(tag))
+			return new Message(element);
+		if ("presence".equals(tag))
+			return new Presence(element);
+		return new IQ(element);
+	}
+
+	/**
+	 * Checks if an element name starts at the given offset.
+	 */
+	private static boolean startsWith(final byte[] data, final int offset, final String name) {
+		final int end = offset + name.length();
+		if (end >= data.length) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			if (data[offset + i] != name.charAt(i)) {
+				return false;
+			}
+		}
+		final byte next = data[end];
+		return next == ' ' || next == '\t' || next == '\n' || next == '\r' || next == '>' || next == '/';
+	}
+
+	private static int indexOf(final byte[] data, final int start, final int end, final byte[] pattern) {
+		outer: for (int i = start; i <= end - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (data[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static IQ getIQ(final Element doc) {
+		final Element query = doc.element("query");
+		if (query != null && "jabber:iq:roster".equals(query.getNamespaceURI()))
+			return new Roster(doc);
+		return new IQ(doc);
+	}
+}
@@ -0,0 +1,230 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Zlib compression of a component connection as negotiated with XEP-0138.
+ * The connection keeps a single {@link Deflater} and a single
+ * {@link Inflater} for its whole life, so the compression dictionary spans
+ * all the stanzas and no native resources are allocated per stanza.
+ * <p>
+ *
+ * Written data is compressed without flushing the deflater until the output
+ * stream is flushed, which happens once per batch of stanzas. The flush mode
+ * decides whether the dictionary survives a flush.
+ */
+final class StreamCompression {
+
+	/**
+	 * Namespace of the XEP-0138 elements.
+	 */
+	static final String NAMESPACE = "http://jabber.org/protocol/compress";
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Deflater deflater;
+	private final Inflater inflater = new Inflater();
+	private final int flushMode;
+
+	/**
+	 * Creates the compression of a connection.
+	 *
+	 * @param level
+	 *            the compression level, from 0 to 9 or
+	 *            {@link Deflater#DEFAULT_COMPRESSION}.
+	 * @param flush
+	 *            the flush mode used when the output is flushed.
+	 */
+	StreamCompression(final int level, final ExternalComponentManager.CompressionFlush flush) {
+		deflater = new Deflater(level);
+		flushMode = flush == ExternalComponentManager.CompressionFlush.FULL_FLUSH ? Deflater.FULL_FLUSH : Deflater.SYNC_FLUSH;
+	}
+
+	/**
+	 * Wraps the output of the connection.
+	 *
+	 * @param out
+	 *            the stream writing to the socket.
+	 * @return a stream compressing the data written to it.
+	 */
+	OutputStream compress(final OutputStream out) {
+		return new DeflatingOutputStream(out);
+	}
+
+	/**
+	 * Wraps the input of a blocking connection.
+	 *
+	 * @param in
+	 *            the stream reading from the socket.
+	 * @return a stream decompressing the data read from the socket.
+	 */
+	InputStream decompress(final InputStream in) {
+		return new InflaterInputStream(in, inflater, BUFFER_SIZE);
+	}
+
+	/**
+	 * Wraps the input of a connection that may be non-blocking.
+	 *
+	 * @param channel
+	 *            the channel of the socket.
+	 * @return a channel decompressing the data read from the socket.
+	 */
+	ReadableByteChannel decompress(final ReadableByteChannel channel) {
+		return new InflatingChannel(channel);
+	}
+
+	/**
+	 * Returns the ratio between the size of the data and its compressed size,
+	 * counting both directions.
+	 *
+	 * @return the compression ratio, or 1 if no data was transferred.
+	 */
+	double getRatio() {
+		final long compressed = deflater.getBytesWritten() + inflater.getBytesRead();
+		final long uncompressed = deflater.getBytesRead() + inflater.getBytesWritten();
+		return compressed == 0 ? 1 : (double) uncompressed / compressed;
+	}
+
+	/**
+	 * Stream that compresses the data written to it.
+	 */
+	private final class DeflatingOutputStream extends FilterOutputStream {
+
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+
+		DeflatingOutputStream(final OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+			deflater.setInput(b, off, len);
+			while (!deflater.needsInput()) {
+				final int n = deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH);
+				if (n > 0) {
+					out.write(buffer, 0, n);
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			int n;
+			do {
+				n = deflater.deflate(buffer, 0, buffer.length, flushMode);
+				out.write(buffer, 0, n);
+			} while (n == buffer.length);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Channel that decompresses the data read from another channel. Reads do
+	 * not block if the underlying channel is non-blocking.
+	 */
+	private final class InflatingChannel implements ReadableByteChannel {
+
+		private final ReadableByteChannel channel;
+		private final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+		private byte[] output;
+
+		InflatingChannel(final ReadableByteChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public int read(final ByteBuffer dst) throws IOException {
+			int total = 0;
+			while (dst.hasRemaining()) {
+				if (inflater.needsInput()) {
+					if (total > 0) {
+						// Do not block on a blocking channel once some data
+						// was read
+						return total;
+					}
+					// Only read more compressed data once the previous data was
+					// entirely consumed, since the inflater keeps a reference to
+					// the input array
+					input.clear();
+					final int read = channel.read(input);
+					if (read <= 0) {
+						return read;
+					}
+					inflater.setInput(input.array(), 0, read);
+				}
+				final int n = inflate(dst);
+				if (n == 0 && !inflater.needsInput()) {
+					// The compressed stream ended
+					return total > 0 ? total : -1;
+				}
+				total += n;
+			}
+			return total;
+		}
+
+		private int inflate(final ByteBuffer dst) throws IOException {
+			try {
+				if (dst.hasArray()) {
+					final int n = inflater.inflate(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+					dst.position(dst.position() + n);
+					return n;
+				}
+				if (output == null) {
+					output = new byte[BUFFER_SIZE];
+				}
+				final int n = inflater.inflate(output, 0, Math.min(output.length, dst.remaining()));
+				dst.put(output, 0, n);
+				return n;
+			} catch (final DataFormatException e) {
+				throw new IOException("Invalid compressed data", e);
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
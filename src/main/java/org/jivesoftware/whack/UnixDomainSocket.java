@@ -0,0 +1,111 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.whack;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Opens connections to a server running on the same host through a Unix
+ * domain socket, which skips the TCP stack of the loopback interface.
+ * <p>
+ *
+ * Unix domain socket channels are only available on Java 16 and later. They
+ * are looked up at runtime so this class can be loaded on older JVMs, where
+ * {@link #isSupported()} returns false. The channels have no
+ * {@link java.net.Socket} adaptor and must be used through their channel.
+ */
+final class UnixDomainSocket {
+
+	private static final ProtocolFamily family;
+	private static final Method open;
+	private static final Method of;
+
+	static {
+		ProtocolFamily unix;
+		Method[] methods;
+		try {
+			unix = StandardProtocolFamily.valueOf("UNIX");
+			methods = new Method[] { SocketChannel.class.getMethod("open", ProtocolFamily.class),
+					Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class) };
+		} catch (final Exception e) {
+			unix = null;
+			methods = new Method[2];
+		}
+		family = unix;
+		open = methods[0];
+		of = methods[1];
+	}
+
+	private UnixDomainSocket() {
+	}
+
+	/**
+	 * Returns true if the JVM supports Unix domain socket channels.
+	 *
+	 * @return true if Unix domain sockets are supported.
+	 */
+	static boolean isSupported() {
+		return of != null;
+	}
+
+	/**
+	 * Opens a blocking channel connected to a Unix domain socket.
+	 *
+	 * @param path
+	 *            the path of the socket file.
+	 * @return the connected channel.
+	 * @throws IOException
+	 *             if the JVM does not support Unix domain sockets or the
+	 *             socket cannot be connected.
+	 */
+	static SocketChannel connect(final String path) throws IOException {
+		if (!isSupported())
+			throw new IOException("Unix domain sockets are not supported by this JVM");
+		final SocketChannel channel = (SocketChannel) invoke(open, family);
+		try {
+			channel.connect((SocketAddress) invoke(of, path));
+		} catch (final IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	private static Object invoke(final Method method, final Object argument) throws IOException {
+		try {
+			return method.invoke(null, argument);
+		} catch (final IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (final InvocationTargetException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+}
@@ -0,0 +1,315 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reader that decodes UTF-8 straight out of a reusable byte buffer. Data is
+ * pulled from the source in large chunks and runs of ASCII characters, which
+ * make up most of an XMPP stream, are copied without going through a charset
+ * decoder. Malformed input is replaced with U+FFFD like
+ * {@link java.io.InputStreamReader} does.
+ * <p>
+ *
+ * The source is either a stream, a channel (which may fill a direct buffer)
+ * or a list of byte buffers that were already read. Instances are not thread
+ * safe.
+ */
+final class Utf8Reader extends Reader {
+
+	private static final char REPLACEMENT = '\uFFFD';
+
+	/**
+	 * Smallest buffer that can hold any character.
+	 */
+	private static final int MIN_BUFFER_SIZE = 16;
+
+	private final InputStream in;
+	private final ReadableByteChannel channel;
+	private ByteBuffer buffer;
+	/**
+	 * Backing array of the buffer, or <tt>null</tt> if the buffer is direct.
+	 */
+	private byte[] array;
+	private int arrayOffset;
+	private ByteBuffer[] segments;
+	private int nextSegment;
+	private boolean eof = false;
+	/**
+	 * Low surrogate of a character that did not fit in the last read, or 0.
+	 */
+	private char pendingLow = 0;
+
+	/**
+	 * Creates a reader that reads from a stream.
+	 *
+	 * @param in
+	 *            the stream to read from.
+	 * @param bufferSize
+	 *            the number of bytes read from the stream at once.
+	 */
+	Utf8Reader(final InputStream in, final int bufferSize) {
+		this.in = in;
+		this.channel = null;
+		setBuffer(ByteBuffer.allocate(Math.max(bufferSize, MIN_BUFFER_SIZE)));
+		buffer.flip();
+	}
+
+	/**
+	 * Creates a reader that reads from a blocking channel.
+	 *
+	 * @param channel
+	 *            the channel to read from.
+	 * @param bufferSize
+	 *            the number of bytes read from the channel at once.
+	 * @param direct
+	 *            true to read into a direct buffer, which saves a copy inside
+	 *            the channel.
+	 */
+	Utf8Reader(final ReadableByteChannel channel, final int bufferSize, final boolean direct) {
+		this.in = null;
+		this.channel = channel;
+		final int size = Math.max(bufferSize, MIN_BUFFER_SIZE);
+		setBuffer(direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size));
+		buffer.flip();
+	}
+
+	/**
+	 * Creates a reader for data that was already read. The data is set with
+	 * {@link #setInput(ByteBuffer...)}.
+	 */
+	Utf8Reader() {
+		this.in = null;
+		this.channel = null;
+		setInput();
+	}
+
+	/**
+	 * Replaces the data of a reader created without a source. The buffers are
+	 * decoded in order and must each hold complete characters. Their content
+	 * is not modified.
+	 *
+	 * @param data
+	 *            the buffers to decode.
+	 */
+	void setInput(final ByteBuffer... data) {
+		if (in != null || channel != null)
+			throw new IllegalStateException("Reader has a source");
+		segments = data;
+		nextSegment = 0;
+		eof = false;
+		pendingLow = 0;
+		setBuffer(ByteBuffer.allocate(0));
+	}
+
+	private void setBuffer(final ByteBuffer buffer) {
+		this.buffer = buffer;
+		if (buffer.hasArray()) {
+			array = buffer.array();
+			arrayOffset = buffer.arrayOffset();
+		} else {
+			array = null;
+			arrayOffset = 0;
+		}
+	}
+
+	@Override
+	public int read(final char[] cbuf, final int off, final int len) throws IOException {
+		if (len == 0)
+			return 0;
+		while (true) {
+			final int n = decode(cbuf, off, len);
+			if (n > 0)
+				return n;
+			if (eof)
+				return -1;
+			fill();
+		}
+	}
+
+	@Override
+	public boolean ready() throws IOException {
+		return pendingLow != 0 || buffer.hasRemaining() || (segments != null && nextSegment < segments.length) || (in != null && in.available() > 0);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (in != null) {
+			in.close();
+		} else if (channel != null) {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads more data into the buffer. Bytes of a character that was only
+	 * partially read are kept.
+	 */
+	private void fill() throws IOException {
+		if (segments != null) {
+			if (nextSegment < segments.length) {
+				setBuffer(segments[nextSegment++].duplicate());
+			} else {
+				eof = true;
+			}
+			return;
+		}
+		buffer.compact();
+		int read;
+		try {
+			if (channel != null) {
+				read = channel.read(buffer);
+			} else {
+				read = in.read(array, arrayOffset + buffer.position(), buffer.remaining());
+				if (read > 0) {
+					buffer.position(buffer.position() + read);
+				}
+			}
+		} finally {
+			buffer.flip();
+		}
+		if (read < 0) {
+			eof = true;
+		}
+	}
+
+	/**
+	 * Decodes as many characters as possible from the buffer.
+	 *
+	 * @return the number of decoded characters.
+	 */
+	private int decode(final char[] cbuf, final int off, final int len) {
+		final int limit = buffer.limit();
+		final int end = off + len;
+		int pos = buffer.position();
+		int n = off;
+		if (pendingLow != 0) {
+			cbuf[n++] = pendingLow;
+			pendingLow = 0;
+		}
+
+		// Fast path for ASCII characters
+		if (array != null) {
+			final byte[] a = array;
+			final int base = arrayOffset;
+			while (n < end && pos < limit) {
+				final byte b = a[base + pos];
+				if (b < 0)
+					break;
+				cbuf[n++] = (char) b;
+				pos++;
+			}
+		} else {
+			while (n < end && pos < limit) {
+				final byte b = buffer.get(pos);
+				if (b < 0)
+					break;
+				cbuf[n++] = (char) b;
+				pos++;
+			}
+		}
+
+		while (n < end && pos < limit) {
+			final int b = byteAt(pos);
+			if (b < 0x80) {
+				cbuf[n++] = (char) b;
+				pos++;
+				continue;
+			}
+			final int count;
+			int cp;
+			if (b >= 0xc2 && b <= 0xdf) {
+				count = 1;
+				cp = b & 0x1f;
+			} else if (b >= 0xe0 && b <= 0xef) {
+				count = 2;
+				cp = b & 0x0f;
+			} else if (b >= 0xf0 && b <= 0xf4) {
+				count = 3;
+				cp = b & 0x07;
+			} else {
+				cbuf[n++] = REPLACEMENT;
+				pos++;
+				continue;
+			}
+			if (pos + count >= limit && !eof && segments == null) {
+				// Wait for the rest of the character
+				break;
+			}
+			int i = 1;
+			for (; i <= count && pos + i < limit; i++) {
+				final int c = byteAt(pos + i);
+				if (i == 1 ? !isValidSecondByte(b, c) : (c & 0xc0) != 0x80)
+					break;
+				cp = (cp << 6) | (c & 0x3f);
+			}
+			if (i <= count) {
+				// Malformed or truncated sequence. Like the JDK decoder the
+				// longest valid prefix is replaced by a single character.
+				cbuf[n++] = REPLACEMENT;
+				pos += i;
+				continue;
+			}
+			if (cp >= 0x10000) {
+				cp -= 0x10000;
+				cbuf[n++] = (char) (0xd800 + (cp >>> 10));
+				if (n < end) {
+					cbuf[n++] = (char) (0xdc00 + (cp & 0x3ff));
+				} else {
+					pendingLow = (char) (0xdc00 + (cp & 0x3ff));
+				}
+			} else {
+				cbuf[n++] = (char) cp;
+			}
+			pos += count + 1;
+		}
+		buffer.position(pos);
+		return n - off;
+	}
+
+	/**
+	 * Checks the second byte of a multi-byte sequence, which also rules out
+	 * overlong encodings, surrogates and code points above U+10FFFF.
+	 */
+	private static boolean isValidSecondByte(final int first, final int second) {
+		switch (first) {
+		case 0xe0:
+			return second >= 0xa0 && second <= 0xbf;
+		case 0xed:
+			return second >= 0x80 && second <= 0x9f;
+		case 0xf0:
+			return second >= 0x90 && second <= 0xbf;
+		case 0xf4:
+			return second >= 0x80 && second <= 0x8f;
+		default:
+			return (second & 0xc0) == 0x80;
+		}
+	}
+
+	private int byteAt(final int index) {
+		return (array != null ? array[arrayOffset + index] : buffer.get(index)) & 0xff;
+	}
+}
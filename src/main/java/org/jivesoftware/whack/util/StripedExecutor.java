@@ -0,0 +1,155 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks on an executor while keeping the tasks that share a key in
+ * order. Keys are hashed onto a fixed number of stripes, each stripe runs its
+ * tasks one after the other and different stripes run in parallel on the
+ * threads of the executor. Tasks with different keys may end up on the same
+ * stripe, in which case they are run in order too.
+ * <p>
+ *
+ * Stripes do not own a thread. A stripe with pending tasks occupies a thread
+ * of the executor for a limited number of tasks and then yields it so busy
+ * keys do not starve the others.
+ */
+public class StripedExecutor {
+
+	private static final Logger log = LoggerFactory.getLogger(StripedExecutor.class);
+
+	/**
+	 * Maximum number of tasks a stripe runs before yielding its thread.
+	 */
+	private static final int MAX_TASKS_PER_TURN = 64;
+
+	private final Executor executor;
+	private final Stripe[] stripes;
+
+	/**
+	 * Creates a new striped executor.
+	 *
+	 * @param executor
+	 *            the executor that runs the stripes.
+	 * @param stripes
+	 *            the number of stripes. More stripes mean less contention
+	 *            between unrelated keys.
+	 */
+	public StripedExecutor(final Executor executor, final int stripes) {
+		this.executor = executor;
+		this.stripes = new Stripe[Math.max(1, stripes)];
+		for (int i = 0; i < this.stripes.length; i++) {
+			this.stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Runs a task after all the tasks previously submitted with the same key.
+	 *
+	 * @param key
+	 *            the ordering key of the task. <tt>null</tt> keys are allowed
+	 *            and ordered together.
+	 * @param task
+	 *            the task to run.
+	 */
+	public void execute(final Object key, final Runnable task) {
+		final Stripe stripe = stripes[indexFor(key)];
+		stripe.tasks.offer(task);
+		stripe.schedule();
+	}
+
+	/**
+	 * Returns the number of tasks waiting to run in all stripes.
+	 *
+	 * @return the number of tasks waiting to run.
+	 */
+	public int getQueueSize() {
+		int size = 0;
+		for (final Stripe stripe : stripes) {
+			size += stripe.tasks.size();
+		}
+		return size;
+	}
+
+	private int indexFor(final Object key) {
+		if (key == null) {
+			return 0;
+		}
+		// Spread the bits of the hash code like HashMap does
+		int h = key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return (h & Integer.MAX_VALUE) % stripes.length;
+	}
+
+	/**
+	 * Queue of tasks that are run one at a time.
+	 */
+	private class Stripe implements Runnable {
+
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		/**
+		 * True while the stripe is waiting for a thread or running.
+		 */
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (final RejectedExecutionException e) {
+					// The executor was shut down
+					scheduled.set(false);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			for (int i = 0; i < MAX_TASKS_PER_TURN; i++) {
+				final Runnable task = tasks.poll();
+				if (task == null) {
+					break;
+				}
+				try {
+					task.run();
+				} catch (final RuntimeException e) {
+					log.error("Error running task", e);
+				}
+			}
+			scheduled.set(false);
+			// Run again if tasks are left or were added after the queue was
+			// found empty
+			if (!tasks.isEmpty()) {
+				schedule();
+			}
+		}
+	}
+}
@@ -22,27 +22,59 @@ package org.jivesoftware.whack.util;
 
 import java.util.Date;
 import java.util.Map;
-import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Performs tasks using worker threads. It also allows tasks to be scheduled to
  * be run at future dates. This class mimics relevant methods in both
- * {@link ExecutorService} and {@link Timer}. Any {@link TimerTask} that's
- * scheduled to be run in the future will automatically be run using the thread
- * executor's thread pool. This means that the standard restriction that
- * TimerTasks should run quickly does not apply.
+ * {@link ExecutorService} and {@link java.util.Timer}. Scheduled
+ * {@link TimerTask}s are run by a small, fixed pool of scheduler threads, so
+ * any number of scheduled tasks share the same threads. Tasks that may run
+ * for long should rather be handed to {@link #submit(Runnable)}.
+ * <p>
+ * 
+ * Submitted tasks are run by a bounded pool of worker threads, which are
+ * started on demand and stop once idle for a minute. When all the workers
+ * are busy tasks wait in a bounded queue. Once the queue is full the thread
+ * that submits a task runs it itself, which slows down the submitters
+ * instead of losing tasks such as reconnections.
+ * <p>
+ * 
+ * The engine keeps track of how late scheduled tasks start and how long they
+ * run, which reveals when the scheduler threads cannot keep up.
  * 
  * @author Matt Tucker
  */
 public class TaskEngine {
 
+	private static final Logger log = LoggerFactory.getLogger(TaskEngine.class);
+
+	/**
+	 * Maximum number of threads that run the submitted tasks.
+	 */
+	static final int MAX_WORKER_THREADS = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+	/**
+	 * Maximum number of submitted tasks waiting for a worker thread.
+	 */
+	static final int MAX_QUEUED_TASKS = 10000;
+	private static final long WORKER_KEEP_ALIVE = 60;
+
 	private static TaskEngine instance = new TaskEngine();
 
 	/**
@@ -54,43 +86,42 @@ public class TaskEngine {
 		return instance;
 	}
 
-	private Timer timer;
+	private ScheduledThreadPoolExecutor scheduler;
 	private ExecutorService executor;
 	private final Map<TimerTask, TimerTaskWrapper> wrappedTasks = new ConcurrentHashMap<TimerTask, TimerTaskWrapper>();
 
+	private final AtomicLong executions = new AtomicLong();
+	private final AtomicLong totalLag = new AtomicLong();
+	private final AtomicLong maxLag = new AtomicLong();
+	private final AtomicLong totalExecutionTime = new AtomicLong();
+	private final AtomicLong maxExecutionTime = new AtomicLong();
+
 	/**
 	 * Constructs a new task engine.
 	 */
 	private TaskEngine() {
-		timer = new Timer("timer-whack", true);
-		executor = Executors.newCachedThreadPool(new ThreadFactory() {
-
-			final AtomicInteger threadNumber = new AtomicInteger(1);
-
-			@Override
-			public Thread newThread(final Runnable runnable) {
-				// Use our own naming scheme for the threads.
-				final Thread thread = new Thread(Thread.currentThread().getThreadGroup(), runnable, "pool-whack" + threadNumber.getAndIncrement(), 0);
-				// Make workers daemon threads.
-				thread.setDaemon(true);
-				if (thread.getPriority() != Thread.NORM_PRIORITY) {
-					thread.setPriority(Thread.NORM_PRIORITY);
-				}
-				return thread;
-			}
-		});
+		scheduler = new ScheduledThreadPoolExecutor(Math.max(2, Runtime.getRuntime().availableProcessors()), new WhackThreadFactory("timer-whack"));
+		// Do not keep cancelled tasks in the queue until their next execution
+		scheduler.setRemoveOnCancelPolicy(true);
+		final ThreadPoolExecutor workers = new ThreadPoolExecutor(MAX_WORKER_THREADS, MAX_WORKER_THREADS, WORKER_KEEP_ALIVE, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(MAX_QUEUED_TASKS), new WhackThreadFactory("pool-whack"), new CallerRunsUnlessShutdown());
+		// Workers are only kept while there are tasks to run
+		workers.allowCoreThreadTimeOut(true);
+		executor = workers;
 	}
 
 	/**
 	 * Submits a Runnable task for execution and returns a Future representing
-	 * that task.
+	 * that task. If all the worker threads are busy and the queue of waiting
+	 * tasks is full, the task is run by the calling thread before this method
+	 * returns.
 	 * 
 	 * @param task
 	 *            the task to submit.
 	 * @return a Future representing pending completion of the task, and whose
 	 *         <tt>get()</tt> method will return <tt>null</tt> upon completion.
 	 * @throws java.util.concurrent.RejectedExecutionException
-	 *             if task cannot be scheduled for execution.
+	 *             if the task engine was shut down.
 	 * @throws NullPointerException
 	 *             if task null.
 	 */
@@ -106,14 +137,15 @@ public class TaskEngine {
 	 * @param delay
 	 *            delay in milliseconds before task is to be executed.
 	 * @throws IllegalArgumentException
-	 *             if <tt>delay</tt> is negative, or
-	 *             <tt>delay + System.currentTimeMillis()</tt> is negative.
-	 * @throws IllegalStateException
-	 *             if task was already scheduled or cancelled, or timer was
-	 *             cancelled.
+	 *             if <tt>delay</tt> is negative.
+	 * @throws java.util.concurrent.RejectedExecutionException
+	 *             if the task engine was shut down.
 	 */
 	public void schedule(final TimerTask task, final long delay) {
-		timer.schedule(new TimerTaskWrapper(task), delay);
+		checkDelay(delay);
+		final TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task, delay, 0, false);
+		wrappedTasks.put(task, taskWrapper);
+		taskWrapper.setFuture(scheduler.schedule(taskWrapper, delay, TimeUnit.MILLISECONDS));
 	}
 
 	/**
@@ -124,14 +156,11 @@ public class TaskEngine {
 	 *            task to be scheduled.
 	 * @param time
 	 *            time at which task is to be executed.
-	 * @throws IllegalArgumentException
-	 *             if <tt>time.getTime()</tt> is negative.
-	 * @throws IllegalStateException
-	 *             if task was already scheduled or cancelled, timer was
-	 *             cancelled, or timer thread terminated.
+	 * @throws java.util.concurrent.RejectedExecutionException
+	 *             if the task engine was shut down.
 	 */
 	public void schedule(final TimerTask task, final Date time) {
-		timer.schedule(new TimerTaskWrapper(task), time);
+		schedule(task, delayUntil(time));
 	}
 
 	/**
@@ -145,8 +174,7 @@ public class TaskEngine {
 	 * delayed for any reason (such as garbage collection or other background
 	 * activity), subsequent executions will be delayed as well. In the long
 	 * run, the frequency of execution will generally be slightly lower than the
-	 * reciprocal of the specified period (assuming the system clock underlying
-	 * <tt>Object.wait(long)</tt> is accurate).
+	 * reciprocal of the specified period.
 	 * 
 	 * <p>
 	 * Fixed-delay execution is appropriate for recurring activities that
@@ -164,16 +192,16 @@ public class TaskEngine {
 	 * @param period
 	 *            time in milliseconds between successive task executions.
 	 * @throws IllegalArgumentException
-	 *             if <tt>delay</tt> is negative, or
-	 *             <tt>delay + System.currentTimeMillis()</tt> is negative.
-	 * @throws IllegalStateException
-	 *             if task was already scheduled or cancelled, timer was
-	 *             cancelled, or timer thread terminated.
+	 *             if the delay is negative or the period is not positive.
+	 * @throws java.util.concurrent.RejectedExecutionException
+	 *             if the task engine was shut down.
 	 */
 	public void schedule(final TimerTask task, final long delay, final long period) {
-		final TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
+		checkDelay(delay);
+		checkPeriod(period);
+		final TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task, delay, period, false);
 		wrappedTasks.put(task, taskWrapper);
-		timer.schedule(taskWrapper, delay, period);
+		taskWrapper.setFuture(scheduler.scheduleWithFixedDelay(taskWrapper, delay, period, TimeUnit.MILLISECONDS));
 	}
 
 	/**
@@ -187,8 +215,7 @@ public class TaskEngine {
 	 * delayed for any reason (such as garbage collection or other background
 	 * activity), subsequent executions will be delayed as well. In the long
 	 * run, the frequency of execution will generally be slightly lower than the
-	 * reciprocal of the specified period (assuming the system clock underlying
-	 * <tt>Object.wait(long)</tt> is accurate).
+	 * reciprocal of the specified period.
 	 * 
 	 * <p>
 	 * Fixed-delay execution is appropriate for recurring activities that
@@ -206,15 +233,12 @@ public class TaskEngine {
 	 * @param period
 	 *            time in milliseconds between successive task executions.
 	 * @throws IllegalArgumentException
-	 *             if <tt>time.getTime()</tt> is negative.
-	 * @throws IllegalStateException
-	 *             if task was already scheduled or cancelled, timer was
-	 *             cancelled, or timer thread terminated.
+	 *             if the period is not positive.
+	 * @throws java.util.concurrent.RejectedExecutionException
+	 *             if the task engine was shut down.
 	 */
 	public void schedule(final TimerTask task, final Date firstTime, final long period) {
-		final TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
-		wrappedTasks.put(task, taskWrapper);
-		timer.schedule(taskWrapper, firstTime, period);
+		schedule(task, delayUntil(firstTime), period);
 	}
 
 	/**
@@ -228,8 +252,7 @@ public class TaskEngine {
 	 * delayed for any reason (such as garbage collection or other background
 	 * activity), two or more executions will occur in rapid succession to
 	 * "catch up." In the long run, the frequency of execution will be exactly
-	 * the reciprocal of the specified period (assuming the system clock
-	 * underlying <tt>Object.wait(long)</tt> is accurate).
+	 * the reciprocal of the specified period.
 	 * 
 	 * <p>
 	 * Fixed-rate execution is appropriate for recurring activities that are
@@ -248,16 +271,16 @@ public class TaskEngine {
 	 * @param period
 	 *            time in milliseconds between successive task executions.
 	 * @throws IllegalArgumentException
-	 *             if <tt>delay</tt> is negative, or
-	 *             <tt>delay + System.currentTimeMillis()</tt> is negative.
-	 * @throws IllegalStateException
-	 *             if task was already scheduled or cancelled, timer was
-	 *             cancelled, or timer thread terminated.
+	 *             if the delay is negative or the period is not positive.
+	 * @throws java.util.concurrent.RejectedExecutionException
+	 *             if the task engine was shut down.
 	 */
 	public void scheduleAtFixedRate(final TimerTask task, final long delay, final long period) {
-		final TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
+		checkDelay(delay);
+		checkPeriod(period);
+		final TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task, delay, period, true);
 		wrappedTasks.put(task, taskWrapper);
-		timer.scheduleAtFixedRate(taskWrapper, delay, period);
+		taskWrapper.setFuture(scheduler.scheduleAtFixedRate(taskWrapper, delay, period, TimeUnit.MILLISECONDS));
 	}
 
 	/**
@@ -271,8 +294,7 @@ public class TaskEngine {
 	 * delayed for any reason (such as garbage collection or other background
 	 * activity), two or more executions will occur in rapid succession to
 	 * "catch up." In the long run, the frequency of execution will be exactly
-	 * the reciprocal of the specified period (assuming the system clock
-	 * underlying <tt>Object.wait(long)</tt> is accurate).
+	 * the reciprocal of the specified period.
 	 * 
 	 * <p>
 	 * Fixed-rate execution is appropriate for recurring activities that are
@@ -291,15 +313,12 @@ public class TaskEngine {
 	 * @param period
 	 *            time in milliseconds between successive task executions.
 	 * @throws IllegalArgumentException
-	 *             if <tt>time.getTime()</tt> is negative.
-	 * @throws IllegalStateException
-	 *             if task was already scheduled or cancelled, timer was
-	 *             cancelled, or timer thread terminated.
+	 *             if the period is not positive.
+	 * @throws java.util.concurrent.RejectedExecutionException
+	 *             if the task engine was shut down.
 	 */
 	public void scheduleAtFixedRate(final TimerTask task, final Date firstTime, final long period) {
-		final TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
-		wrappedTasks.put(task, taskWrapper);
-		timer.scheduleAtFixedRate(taskWrapper, firstTime, period);
+		scheduleAtFixedRate(task, delayUntil(firstTime), period);
 	}
 
 	/**
@@ -316,6 +335,66 @@ public class TaskEngine {
 		}
 	}
 
+	/**
+	 * Returns the number of tasks that are scheduled to run.
+	 * 
+	 * @return the number of scheduled tasks.
+	 */
+	public int getScheduledTaskCount() {
+		return wrappedTasks.size();
+	}
+
+	/**
+	 * Returns the number of times scheduled tasks were run.
+	 * 
+	 * @return the number of executions of scheduled tasks.
+	 */
+	public long getExecutionCount() {
+		return executions.get();
+	}
+
+	/**
+	 * Returns the average time (in milliseconds) scheduled tasks started after
+	 * the time they were scheduled for.
+	 * 
+	 * @return the average lag of the scheduled tasks in milliseconds.
+	 */
+	public double getAverageLag() {
+		final long count = executions.get();
+		return count == 0 ? 0 : totalLag.get() / (count * 1000000.0);
+	}
+
+	/**
+	 * Returns the longest time (in milliseconds) a scheduled task started
+	 * after the time it was scheduled for.
+	 * 
+	 * @return the maximum lag of the scheduled tasks in milliseconds.
+	 */
+	public long getMaxLag() {
+		return TimeUnit.NANOSECONDS.toMillis(maxLag.get());
+	}
+
+	/**
+	 * Returns the average time (in milliseconds) scheduled tasks took to run.
+	 * 
+	 * @return the average execution time of the scheduled tasks in
+	 *         milliseconds.
+	 */
+	public double getAverageExecutionTime() {
+		final long count = executions.get();
+		return count == 0 ? 0 : totalExecutionTime.get() / (count * 1000000.0);
+	}
+
+	/**
+	 * Returns the longest time (in milliseconds) a scheduled task took to run.
+	 * 
+	 * @return the maximum execution time of the scheduled tasks in
+	 *         milliseconds.
+	 */
+	public long getMaxExecutionTime() {
+		return TimeUnit.NANOSECONDS.toMillis(maxExecutionTime.get());
+	}
+
 	/**
 	 * Shuts down the task engine service.
 	 */
@@ -325,27 +404,150 @@ public class TaskEngine {
 			executor = null;
 		}
 
-		if (timer != null) {
-			timer.cancel();
-			timer = null;
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		wrappedTasks.clear();
+	}
+
+	private static void checkDelay(final long delay) {
+		if (delay < 0)
+			throw new IllegalArgumentException("Negative delay.");
+	}
+
+	private static void checkPeriod(final long period) {
+		if (period <= 0)
+			throw new IllegalArgumentException("Non-positive period.");
+	}
+
+	private static long delayUntil(final Date time) {
+		return Math.max(0, time.getTime() - System.currentTimeMillis());
+	}
+
+	private static void updateMax(final AtomicLong max, final long value) {
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
 		}
 	}
 
 	/**
-	 * Wrapper class for a standard TimerTask. It simply executes the TimerTask
-	 * using the executor's thread pool.
+	 * Runs a task in the thread that submitted it when the worker threads
+	 * cannot take it, unless the engine was shut down in which case the task
+	 * is rejected.
 	 */
-	private class TimerTaskWrapper extends TimerTask {
+	private static class CallerRunsUnlessShutdown implements RejectedExecutionHandler {
+
+		@Override
+		public void rejectedExecution(final Runnable task, final ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("Task engine was shut down");
+			}
+			log.warn("All the " + executor.getMaximumPoolSize() + " worker threads are busy and " + executor.getQueue().size()
+					+ " tasks are waiting, running the task in the calling thread");
+			task.run();
+		}
+	}
+
+	/**
+	 * Creates the daemon threads of the engine.
+	 */
+	private static class WhackThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		WhackThreadFactory(final String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			// Use our own naming scheme for the threads.
+			final Thread thread = new Thread(Thread.currentThread().getThreadGroup(), runnable, prefix + threadNumber.getAndIncrement(), 0);
+			// Make workers daemon threads.
+			thread.setDaemon(true);
+			if (thread.getPriority() != Thread.NORM_PRIORITY) {
+				thread.setPriority(Thread.NORM_PRIORITY);
+			}
+			return thread;
+		}
+	}
+
+	/**
+	 * Wrapper class for a standard TimerTask. It runs the TimerTask on a
+	 * scheduler thread, measuring how late it started and how long it ran.
+	 */
+	private class TimerTaskWrapper implements Runnable {
 
 		private final TimerTask task;
+		private final long period;
+		private final boolean fixedRate;
+		/**
+		 * Time (as given by {@link System#nanoTime()}) of the next execution.
+		 */
+		private long nextExecution;
+		private volatile ScheduledFuture<?> future;
+		private volatile boolean cancelled = false;
 
-		public TimerTaskWrapper(final TimerTask task) {
+		public TimerTaskWrapper(final TimerTask task, final long delay, final long period, final boolean fixedRate) {
 			this.task = task;
+			this.period = TimeUnit.MILLISECONDS.toNanos(period);
+			this.fixedRate = fixedRate;
+			this.nextExecution = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
 		}
 
 		@Override
 		public void run() {
-			executor.submit(task);
+			if (cancelled) {
+				// The task was cancelled before its future was known. The future
+				// may not even be assigned yet, in which case setFuture cancels it.
+				final ScheduledFuture<?> scheduled = future;
+				if (scheduled != null) {
+					scheduled.cancel(false);
+				}
+				return;
+			}
+			final long start = System.nanoTime();
+			final long lag = Math.max(0, start - nextExecution);
+			try {
+				task.run();
+			} catch (final RuntimeException e) {
+				// An exception would stop the executions of a periodic task
+				log.error("Error running scheduled task", e);
+			} finally {
+				final long end = System.nanoTime();
+				executions.incrementAndGet();
+				totalLag.addAndGet(lag);
+				updateMax(maxLag, lag);
+				totalExecutionTime.addAndGet(end - start);
+				updateMax(maxExecutionTime, end - start);
+				if (period == 0) {
+					// One-shot tasks are no longer scheduled
+					wrappedTasks.remove(task, this);
+				} else {
+					nextExecution = (fixedRate ? nextExecution : end) + period;
+				}
+			}
+		}
+
+		void setFuture(final ScheduledFuture<?> scheduled) {
+			future = scheduled;
+			// A cancel() that ran before the assignment could not reach the future
+			if (cancelled) {
+				scheduled.cancel(false);
+			}
+		}
+
+		void cancel() {
+			cancelled = true;
+			final ScheduledFuture<?> scheduled = future;
+			if (scheduled != null) {
+				scheduled.cancel(false);
+			}
 		}
 	}
 }
@@ -0,0 +1,220 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel that keeps track of a large number of timeouts. Time is
+ * divided in ticks of a fixed duration and every timeout is put in the bucket
+ * of the tick it expires in, so adding and cancelling a timeout take constant
+ * time and advancing the wheel only looks at the buckets of the elapsed ticks.
+ * Timeouts expire at most one tick late.
+ * <p>
+ *
+ * The wheel does not own a thread. It must be advanced periodically, usually
+ * once per tick, and returns the items whose timeout expired. All methods are
+ * thread safe.
+ *
+ * @param <T>
+ *            the type of the items whose timeouts are tracked.
+ */
+public class TimingWheel<T> {
+
+	private final long tickNanos;
+	private final Timeout<T>[] buckets;
+	private final int mask;
+	private final long start;
+	/**
+	 * Last tick whose bucket was processed.
+	 */
+	private long currentTick = 0;
+	private int size = 0;
+
+	/**
+	 * Creates a new timing wheel.
+	 *
+	 * @param tickDuration
+	 *            the duration of a tick, which is the precision of the
+	 *            timeouts.
+	 * @param unit
+	 *            the unit of the tick duration.
+	 * @param wheelSize
+	 *            the number of buckets of the wheel, rounded up to a power of
+	 *            two. Timeouts longer than a full turn of the wheel are kept
+	 *            in their bucket for several turns.
+	 */
+	public TimingWheel(final long tickDuration, final TimeUnit unit, final int wheelSize) {
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("Tick duration must be positive");
+		if (wheelSize < 1)
+			throw new IllegalArgumentException("Wheel size must be positive");
+		tickNanos = unit.toNanos(tickDuration);
+		int capacity = 1;
+		while (capacity < wheelSize) {
+			capacity <<= 1;
+		}
+		// Generic arrays cannot be created, but the buckets only ever hold
+		// timeouts of this wheel
+		@SuppressWarnings("unchecked")
+		final Timeout<T>[] array = (Timeout<T>[]) new Timeout<?>[capacity];
+		buckets = array;
+		mask = capacity - 1;
+		start = System.nanoTime();
+	}
+
+	/**
+	 * Adds the timeout of an item.
+	 *
+	 * @param item
+	 *            the item.
+	 * @param delay
+	 *            the time after which the item expires.
+	 * @param unit
+	 *            the unit of the delay.
+	 * @return the timeout, which can be used for cancelling it.
+	 */
+	public synchronized Timeout<T> schedule(final T item, final long delay, final TimeUnit unit) {
+		final long deadline = System.nanoTime() - start + unit.toNanos(Math.max(0, delay));
+		// Round up so that items never expire early, and never put an item in
+		// a bucket that was already processed
+		final long tick = Math.max(currentTick + 1, (deadline + tickNanos - 1) / tickNanos);
+		final Timeout<T> timeout = new Timeout<T>(this, item, tick);
+		final int index = (int) (tick & mask);
+		timeout.next = buckets[index];
+		if (timeout.next != null) {
+			timeout.next.previous = timeout;
+		}
+		buckets[index] = timeout;
+		size++;
+		return timeout;
+	}
+
+	/**
+	 * Processes the ticks elapsed since the last call and returns the items
+	 * that expired.
+	 *
+	 * @return the expired items, possibly empty.
+	 */
+	public synchronized List<T> advance() {
+		final long now = (System.nanoTime() - start) / tickNanos;
+		List<T> expired = null;
+		if (now - currentTick > buckets.length) {
+			// More than a turn elapsed so every bucket must be looked at
+			currentTick = now - buckets.length;
+		}
+		while (currentTick < now) {
+			currentTick++;
+			final int index = (int) (currentTick & mask);
+			Timeout<T> timeout = buckets[index];
+			while (timeout != null) {
+				final Timeout<T> next = timeout.next;
+				if (timeout.tick <= now) {
+					remove(timeout, index);
+					if (expired == null) {
+						expired = new ArrayList<T>();
+					}
+					expired.add(timeout.item);
+				}
+				timeout = next;
+			}
+		}
+		return expired != null ? expired : new ArrayList<T>(0);
+	}
+
+	/**
+	 * Returns the number of timeouts that did not expire nor were cancelled.
+	 *
+	 * @return the number of pending timeouts.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	private synchronized boolean cancel(final Timeout<T> timeout) {
+		if (timeout.wheel == null) {
+			return false;
+		}
+		remove(timeout, (int) (timeout.tick & mask));
+		return true;
+	}
+
+	private void remove(final Timeout<T> timeout, final int index) {
+		if (timeout.previous != null) {
+			timeout.previous.next = timeout.next;
+		} else {
+			buckets[index] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+		timeout.previous = null;
+		timeout.next = null;
+		timeout.wheel = null;
+		size--;
+	}
+
+	/**
+	 * Timeout of an item in a timing wheel.
+	 *
+	 * @param <T>
+	 *            the type of the item.
+	 */
+	public static final class Timeout<T> {
+
+		private final T item;
+		private final long tick;
+		/**
+		 * The wheel holding the timeout, or <tt>null</tt> once it expired or
+		 * was cancelled.
+		 */
+		private TimingWheel<T> wheel;
+		private Timeout<T> previous;
+		private Timeout<T> next;
+
+		private Timeout(final TimingWheel<T> wheel, final T item, final long tick) {
+			this.wheel = wheel;
+			this.item = item;
+			this.tick = tick;
+		}
+
+		/**
+		 * Returns the item whose timeout is tracked.
+		 *
+		 * @return the item.
+		 */
+		public T getItem() {
+			return item;
+		}
+
+		/**
+		 * Cancels the timeout. Does nothing if it already expired.
+		 *
+		 * @return true if the timeout was cancelled.
+		 */
+		public boolean cancel() {
+			final TimingWheel<T> owner = wheel;
+			return owner != null && owner.cancel(this);
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.whack.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor that runs every task on a new virtual thread, limiting the number
+ * of tasks that run at the same time. Tasks beyond the limit wait for their
+ * turn on their own virtual thread, which costs little memory, so submitting
+ * a task never blocks.
+ * <p>
+ *
+ * Virtual threads are only available on Java 21 and later. They are looked up
+ * at runtime so this class can be loaded on older JVMs, where
+ * {@link #isSupported()} returns false.
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService {
+
+	private static final Method ofVirtual;
+	private static final Method name;
+	private static final Method factory;
+	private static final Method newThreadPerTaskExecutor;
+
+	static {
+		Method[] methods;
+		try {
+			final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			methods = new Method[] { Thread.class.getMethod("ofVirtual"), builder.getMethod("name", String.class, long.class),
+					builder.getMethod("factory"), Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class) };
+			// Fails on JVMs where virtual threads are a preview feature that
+			// was not enabled
+			methods[0].invoke(null);
+		} catch (final Exception e) {
+			methods = new Method[4];
+		}
+		ofVirtual = methods[0];
+		name = methods[1];
+		factory = methods[2];
+		newThreadPerTaskExecutor = methods[3];
+	}
+
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final int maxConcurrency;
+
+	/**
+	 * Returns true if the JVM supports virtual threads.
+	 *
+	 * @return true if virtual threads are supported.
+	 */
+	public static boolean isSupported() {
+		return ofVirtual != null;
+	}
+
+	/**
+	 * Creates a new executor.
+	 *
+	 * @param threadName
+	 *            the prefix of the names of the threads, which are numbered.
+	 * @param maxConcurrency
+	 *            the maximum number of tasks that run at the same time.
+	 * @throws UnsupportedOperationException
+	 *             if the JVM does not support virtual threads.
+	 */
+	public VirtualThreadExecutor(final String threadName, final int maxConcurrency) {
+		if (!isSupported())
+			throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
+		if (maxConcurrency < 1)
+			throw new IllegalArgumentException("Maximum concurrency must be positive");
+		try {
+			final Object builder = name.invoke(ofVirtual.invoke(null), threadName, 0L);
+			executor = (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory.invoke(builder));
+		} catch (final IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (final InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+		permits = new Semaphore(maxConcurrency);
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	@Override
+	public void execute(final Runnable task) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				permits.acquireUninterruptibly();
+				try {
+					task.run();
+				} finally {
+					permits.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the maximum number of tasks that run at the same time.
+	 *
+	 * @return the maximum number of running tasks.
+	 */
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	/**
+	 * Returns the number of tasks that are running.
+	 *
+	 * @return the number of running tasks.
+	 */
+	public int getActiveCount() {
+		return maxConcurrency - permits.availablePermits();
+	}
+
+	/**
+	 * Returns the number of tasks waiting for a running task to finish.
+	 *
+	 * @return the number of waiting tasks.
+	 */
+	public int getQueueSize() {
+		return permits.getQueueLength();
+	}
+
+	@Override
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		return executor.shutdownNow();
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return executor.isShutdown();
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return executor.isTerminated();
+	}
+
+	@Override
+	public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.whack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.Message;
+
+/**
+ * Tests that components fail over to another server node when the node
+ * they are connected to goes down.
+ */
+public class FailoverTest {
+
+	private StandInServer primary;
+	private StandInServer secondary;
+	private ExternalComponentManager manager;
+	private final TestComponent component = new TestComponent();
+
+	@Before
+	public void setUp() throws Exception {
+		primary = new StandInServer();
+		secondary = new StandInServer();
+		manager = new ExternalComponentManager("127.0.0.1", primary.getPort());
+		manager.addServerEndpoint("127.0.0.1", secondary.getPort());
+		manager.setDefaultSecretKey("secret");
+		manager.setServerName("localhost");
+		manager.setReconnectDelay(20);
+		manager.setMaxReconnectDelay(50);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		manager.removeComponent("test");
+		primary.close();
+		secondary.close();
+	}
+
+	@Test
+	public void failsOverWhenTheNodeDies() throws Exception {
+		manager.addComponent("test", component);
+		assertTrue(primary.awaitHandshakes(1, 5000));
+		assertEquals(0, secondary.getHandshakes());
+		send(0, 10);
+		assertTrue(primary.awaitBodies(10, 5000));
+
+		// Packets written before the loss is noticed are lost with the node,
+		// so only send once the component failed over
+		primary.close();
+		assertTrue("The component did not fail over", secondary.awaitHandshakes(1, 5000));
+		send(10, 10);
+		assertTrue(secondary.awaitBodies(10, 5000));
+		final List<String> expected = new ArrayList<String>();
+		for (int i = 10; i < 20; i++) {
+			expected.add(Integer.toString(i));
+		}
+		assertEquals(expected, secondary.getBodies());
+
+		// The new node delivers packets to the component
+		secondary.send("<message from='user@localhost/r' to='test.localhost'><body>in</body></message>");
+		final Message received = (Message) component.received.poll(5, TimeUnit.SECONDS);
+		assertNotNull(received);
+		assertEquals("in", received.getBody());
+	}
+
+	@Test
+	public void skipsNodesThatAreDown() throws Exception {
+		primary.close();
+		manager.addComponent("test", component);
+		assertTrue(secondary.awaitHandshakes(1, 5000));
+		send(0, 5);
+		assertTrue(secondary.awaitBodies(5, 5000));
+		assertEquals(0, primary.getHandshakes());
+	}
+
+	private void send(final int first, final int count) throws Exception {
+		for (int i = first; i < first + count; i++) {
+			final Message message = new Message();
+			message.setFrom("test.localhost");
+			message.setTo("user@localhost");
+			message.setBody(Integer.toString(i));
+			manager.sendPacket(component, message);
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.whack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.component.ComponentException;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+
+/**
+ * Tests that a component whose inbound queue is full does not hold up the
+ * other components read by the same reactor thread, nor the answers its own
+ * threads wait for.
+ */
+public class InboundBackpressureTest {
+
+	private static final int MESSAGES = 50;
+
+	private StandInServer server;
+	private ExternalComponentManager manager;
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	@Before
+	public void setUp() throws Exception {
+		server = new StandInServer();
+		manager = new ExternalComponentManager("127.0.0.1", server.getPort());
+		manager.setDefaultSecretKey("secret");
+		manager.setServerName("localhost");
+		manager.setTransport(ExternalComponentManager.Transport.REACTOR);
+		manager.setReactorThreads(1);
+		manager.setInboundQueueSize(4);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		release.countDown();
+		manager.removeComponent("slow");
+		manager.removeComponent("fast");
+		server.close();
+	}
+
+	@Test
+	public void blockPolicyDoesNotStallReactor() throws Exception {
+		assertOtherComponentsKeepReading(ExternalComponentManager.OverloadPolicy.BLOCK);
+	}
+
+	@Test
+	public void callerRunsPolicyDoesNotStallReactor() throws Exception {
+		assertOtherComponentsKeepReading(ExternalComponentManager.OverloadPolicy.CALLER_RUNS);
+	}
+
+	@Test
+	public void blockPolicyReadsAwaitedAnswers() throws Exception {
+		manager.setTransport(ExternalComponentManager.Transport.BLOCKING);
+		manager.setOverloadPolicy(ExternalComponentManager.OverloadPolicy.BLOCK);
+		final BlockingQueue<IQ> replies = new LinkedBlockingQueue<IQ>();
+		final TestComponent slow = new TestComponent() {
+			@Override
+			public void processPacket(final Packet packet) {
+				if (packet instanceof Message && "0".equals(((Message) packet).getBody())) {
+					// The only thread of the component waits for an answer
+					// that arrives behind a full queue
+					final IQ query = new IQ(IQ.Type.get, "query-1");
+					query.setTo("localhost");
+					try {
+						final IQ reply = manager.query(this, query, 10000);
+						if (reply != null) {
+							replies.add(reply);
+						}
+					} catch (final ComponentException e) {
+						// The reply is missing
+					}
+				}
+				super.processPacket(packet);
+			}
+		};
+		manager.setMaxConcurrency("slow", 1);
+		manager.addComponent("slow", slow);
+
+		for (int i = 0; i < MESSAGES; i++) {
+			server.send("<message from='user@localhost/r' to='test.localhost'><body>" + i + "</body></message>");
+		}
+		server.send("<iq type='result' id='query-1' from='localhost' to='test.localhost'/>");
+		final IQ reply = replies.poll(5, TimeUnit.SECONDS);
+		assertNotNull("The answer was not read while the queue was full", reply);
+		for (int i = 0; i < MESSAGES; i++) {
+			final Packet packet = slow.received.poll(5, TimeUnit.SECONDS);
+			assertNotNull("Packets were lost", packet);
+			assertEquals(Integer.toString(i), ((Message) packet).getBody());
+		}
+	}
+
+	private void assertOtherComponentsKeepReading(final ExternalComponentManager.OverloadPolicy policy) throws Exception {
+		manager.setOverloadPolicy(policy);
+		final TestComponent slow = new TestComponent() {
+			@Override
+			public void processPacket(final Packet packet) {
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.processPacket(packet);
+			}
+		};
+		final TestComponent fast = new TestComponent();
+		manager.setMaxConcurrency("slow", 1);
+		manager.addComponent("slow", slow);
+		manager.addComponent("fast", fast);
+
+		// Fill the queue of the slow component well beyond its capacity
+		for (int i = 0; i < MESSAGES; i++) {
+			server.send("<message from='user@localhost/r' to='test.localhost'><body>" + i + "</body></message>");
+		}
+		for (int i = 0; i < MESSAGES; i++) {
+			assertNotNull("The fast component was held up by the slow one", fast.received.poll(5, TimeUnit.SECONDS));
+		}
+
+		// The paused connection is read again once the queue drains
+		release.countDown();
+		for (int i = 0; i < MESSAGES; i++) {
+			final Packet packet = slow.received.poll(5, TimeUnit.SECONDS);
+			assertNotNull("Packets of the paused connection were lost", packet);
+		}
+		assertTrue(slow.received.isEmpty());
+	}
+}
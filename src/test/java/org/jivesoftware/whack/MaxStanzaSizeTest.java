@@ -0,0 +1,106 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.whack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.Message;
+
+/**
+ * Tests of the limit on the size of the stanzas read from framed
+ * connections.
+ */
+public class MaxStanzaSizeTest {
+
+	private StandInServer server;
+	private ExternalComponentManager manager;
+	private final TestComponent component = new TestComponent();
+
+	@Before
+	public void setUp() throws Exception {
+		server = new StandInServer();
+		manager = new ExternalComponentManager("127.0.0.1", server.getPort());
+		manager.setDefaultSecretKey("secret");
+		manager.setServerName("localhost");
+		manager.setTransport(ExternalComponentManager.Transport.REACTOR);
+		manager.setReactorThreads(1);
+		manager.setReadBufferSize(256);
+		manager.setReconnectDelay(20);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		manager.removeComponent("test");
+		server.close();
+	}
+
+	@Test
+	public void oversizedStanzaClosesTheConnection() throws Exception {
+		manager.setMaxStanzaSize(1024);
+		manager.addComponent("test", component);
+		assertTrue(server.awaitHandshakes(1, 5000));
+
+		server.send(message(2000));
+		assertTrue("The connection was not reestablished", server.awaitHandshakes(2, 5000));
+		awaitSingleConnection();
+		server.send(message(10));
+		final Message received = (Message) component.received.poll(5, TimeUnit.SECONDS);
+		assertNotNull(received);
+		assertEquals(10, received.getBody().length());
+		assertTrue(component.received.isEmpty());
+	}
+
+	@Test
+	public void stanzasWithinTheLimitAreReceived() throws Exception {
+		manager.setMaxStanzaSize(4096);
+		manager.addComponent("test", component);
+		assertTrue(server.awaitHandshakes(1, 5000));
+
+		server.send(message(2000));
+		final Message received = (Message) component.received.poll(5, TimeUnit.SECONDS);
+		assertNotNull(received);
+		assertEquals(2000, received.getBody().length());
+		assertEquals(1, server.getHandshakes());
+	}
+
+	private void awaitSingleConnection() throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (server.getConnectionCount() != 1 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	private static String message(final int size) {
+		final StringBuilder body = new StringBuilder(size);
+		for (int i = 0; i < size; i++) {
+			body.append((char) ('a' + i % 26));
+		}
+		return "<message from='user@localhost/r' to='test.localhost'><body>" + body + "</body></message>";
+	}
+}
@@ -0,0 +1,211 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.whack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the on-disk journal of outbound packets.
+ */
+public class OutboundSpoolTest {
+
+	private static final int SEGMENT_SIZE = 4096;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+
+	@Before
+	public void setUp() {
+		directory = folder.getRoot();
+	}
+
+	@Test
+	public void packetsAreReadInOrderAcrossSegments() throws Exception {
+		final OutboundSpool spool = new OutboundSpool(directory, "test", SEGMENT_SIZE, 64 * SEGMENT_SIZE);
+		try {
+			// Enough packets to fill several segments
+			for (int i = 0; i < 500; i++) {
+				assertTrue(spool.append(PacketWriterTest.message(i)));
+			}
+			assertEquals(500, spool.size());
+			for (int i = 0; i < 500; i++) {
+				assertEquals(PacketWriterTest.message(i).toXML(), poll(spool));
+			}
+			assertNull(spool.peek());
+			assertTrue(spool.isEmpty());
+			assertEquals("Read segments must be deleted", 0, countSegments());
+		} finally {
+			spool.close();
+		}
+	}
+
+	@Test
+	public void packetsAreRecoveredAfterReopening() throws Exception {
+		OutboundSpool spool = new OutboundSpool(directory, "test", SEGMENT_SIZE, 64 * SEGMENT_SIZE);
+		for (int i = 0; i < 300; i++) {
+			spool.append(PacketWriterTest.message(i));
+		}
+		for (int i = 0; i < 100; i++) {
+			poll(spool);
+		}
+		spool.close();
+
+		spool = new OutboundSpool(directory, "test", SEGMENT_SIZE, 64 * SEGMENT_SIZE);
+		try {
+			assertEquals(200, spool.size());
+			// New packets go after the recovered ones
+			spool.append(PacketWriterTest.message(300));
+			for (int i = 100; i <= 300; i++) {
+				assertEquals(PacketWriterTest.message(i).toXML(), poll(spool));
+			}
+			assertNull(spool.peek());
+		} finally {
+			spool.close();
+		}
+	}
+
+	@Test
+	public void uncommittedPacketsAreReadAgain() throws Exception {
+		final OutboundSpool spool = new OutboundSpool(directory, "test", SEGMENT_SIZE, 64 * SEGMENT_SIZE);
+		try {
+			for (int i = 0; i < 3; i++) {
+				spool.append(PacketWriterTest.message(i));
+			}
+			assertEquals(PacketWriterTest.message(0).toXML(), spool.peek().toString());
+			assertEquals(PacketWriterTest.message(1).toXML(), spool.peek().toString());
+			// Packets are only removed once committed
+			assertEquals(3, spool.size());
+			spool.rewind();
+			assertEquals(PacketWriterTest.message(0).toXML(), spool.peek().toString());
+			spool.commit();
+			assertEquals(2, spool.size());
+			assertEquals(PacketWriterTest.message(1).toXML(), poll(spool));
+			assertEquals(PacketWriterTest.message(2).toXML(), poll(spool));
+			assertNull(spool.peek());
+		} finally {
+			spool.close();
+		}
+	}
+
+	@Test
+	public void uncommittedPacketsAreRecoveredAfterReopening() throws Exception {
+		OutboundSpool spool = new OutboundSpool(directory, "test", SEGMENT_SIZE, 64 * SEGMENT_SIZE);
+		for (int i = 0; i < 300; i++) {
+			spool.append(PacketWriterTest.message(i));
+		}
+		// Read the whole head segment without committing
+		while (spool.peek() != null) {
+			// Read the next packet
+		}
+		spool.close();
+
+		spool = new OutboundSpool(directory, "test", SEGMENT_SIZE, 64 * SEGMENT_SIZE);
+		try {
+			assertEquals(300, spool.size());
+			for (int i = 0; i < 300; i++) {
+				assertEquals(PacketWriterTest.message(i).toXML(), poll(spool));
+			}
+		} finally {
+			spool.close();
+		}
+	}
+
+	@Test
+	public void fullSpoolRejectsPackets() throws Exception {
+		final OutboundSpool spool = new OutboundSpool(directory, "test", SEGMENT_SIZE, 2 * SEGMENT_SIZE);
+		try {
+			int appended = 0;
+			while (spool.append(PacketWriterTest.message(appended))) {
+				appended++;
+			}
+			assertTrue(appended > 0);
+			assertEquals(appended, spool.size());
+		} finally {
+			spool.close();
+		}
+	}
+
+	@Test
+	public void sameSpoolCannotBeOpenedTwice() throws Exception {
+		final OutboundSpool spool = new OutboundSpool(directory, "test", SEGMENT_SIZE, 4 * SEGMENT_SIZE);
+		try {
+			new OutboundSpool(directory, "test", SEGMENT_SIZE, 4 * SEGMENT_SIZE);
+			fail("A second spool was opened on the same files");
+		} catch (final IOException e) {
+			// Expected
+		} finally {
+			spool.close();
+		}
+		// The name can be used again once closed
+		new OutboundSpool(directory, "test", SEGMENT_SIZE, 4 * SEGMENT_SIZE).close();
+	}
+
+	@Test
+	public void closedSpoolIsNotUsed() throws Exception {
+		final OutboundSpool spool = new OutboundSpool(directory, "test", SEGMENT_SIZE, 4 * SEGMENT_SIZE);
+		spool.append(PacketWriterTest.message(0));
+		spool.close();
+		assertFalse(spool.append(PacketWriterTest.message(1)));
+		assertNull(spool.peek());
+		// Closing twice does nothing
+		spool.close();
+	}
+
+	/**
+	 * Reads the oldest packet and removes it from the spool.
+	 */
+	private static String poll(final OutboundSpool spool) {
+		final CharBuffer chars = spool.peek();
+		if (chars == null) {
+			return null;
+		}
+		final String packet = chars.toString();
+		spool.commit();
+		return packet;
+	}
+
+	private int countSegments() {
+		final String[] names = directory.list();
+		int count = 0;
+		for (final String name : names) {
+			if (name.endsWith(".spool")) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
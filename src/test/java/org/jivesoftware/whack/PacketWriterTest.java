@@ -0,0 +1,186 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.whack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xmpp.packet.Message;
+
+/**
+ * Tests of the single-writer queue of a connection.
+ */
+public class PacketWriterTest {
+
+	private static final int SEGMENT_SIZE = 4096;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private PacketWriter writer;
+
+	@Before
+	public void setUp() {
+		writer = new PacketWriter(null, 1000, 1000, FlushPolicy.immediate(), new OutboundBuffer(100, 1024 * 1024, 30000,
+				ExternalComponentManager.BufferOverflowPolicy.DROP_OLDEST));
+	}
+
+	@After
+	public void tearDown() {
+		writer.shutdown();
+	}
+
+	@Test
+	public void heartbeatWithoutOutputDoesNotSpin() throws Exception {
+		writer.sendHeartbeat();
+		Thread.sleep(100);
+		final Thread thread = findWriterThread(writer);
+		// A spinning writer thread never waits for work
+		boolean idle = thread == null;
+		for (int i = 0; i < 50 && !idle; i++) {
+			idle = thread.getState() != Thread.State.RUNNABLE;
+			Thread.sleep(2);
+		}
+		assertTrue("The writer thread keeps running without a connection", idle);
+	}
+
+	@Test
+	public void heartbeatIsWrittenWhenIdle() throws Exception {
+		final StringWriter out = new StringWriter();
+		writer.setOutput(out);
+		writer.sendHeartbeat();
+		assertTrue(awaitOutput(out, " "));
+	}
+
+	@Test
+	public void packetsSentWithoutOutputAreReplayedInOrder() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			writer.send(message(i));
+		}
+		Thread.sleep(50);
+		assertEquals(20, writer.getBufferedPackets());
+		final StringWriter out = new StringWriter();
+		writer.setOutput(out);
+		final StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			expected.append(message(i).toXML());
+		}
+		assertTrue(awaitOutput(out, expected.toString()));
+		assertEquals(20, writer.getReplayedPackets());
+	}
+
+	@Test
+	public void packetsSpooledWithoutOutputAreSentInOrder() throws Exception {
+		writer.shutdown();
+		// A queue smaller than the outage so that packets overflow
+		writer = new PacketWriter(null, 5, 1000, FlushPolicy.immediate(), new OutboundBuffer(100, 1024 * 1024, 30000,
+				ExternalComponentManager.BufferOverflowPolicy.DROP_OLDEST));
+		writer.setSpool(new OutboundSpool(folder.getRoot(), "test", SEGMENT_SIZE, 64 * SEGMENT_SIZE));
+		final StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			assertTrue(writer.send(message(i)));
+			expected.append(message(i).toXML());
+		}
+		final StringWriter out = new StringWriter();
+		writer.setOutput(out);
+		assertTrue(awaitOutput(out, expected.toString()));
+		assertEquals(0, writer.getSpooledPackets());
+	}
+
+	@Test
+	public void spooledPacketsAreSentAgainAfterWriteFailure() throws Exception {
+		final ExternalComponentManager manager = new ExternalComponentManager("127.0.0.1", 5275);
+		final ComponentConnection connection = new ComponentConnection(new ExternalComponent(new TestComponent(), manager), 0);
+		writer.shutdown();
+		writer = new PacketWriter(connection, 1000, 1000, FlushPolicy.immediate(), new OutboundBuffer(100, 1024 * 1024, 30000,
+				ExternalComponentManager.BufferOverflowPolicy.DROP_OLDEST));
+		writer.setSpool(new OutboundSpool(folder.getRoot(), "test", SEGMENT_SIZE, 64 * SEGMENT_SIZE));
+		final StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			writer.send(message(i));
+			expected.append(message(i).toXML());
+		}
+		assertEquals(20, writer.getSpooledPackets());
+
+		// The connection breaks while the first packet is flushed
+		final CountDownLatch failed = new CountDownLatch(1);
+		writer.setOutput(new Writer() {
+			@Override
+			public void write(final char[] cbuf, final int off, final int len) {
+				// Discard the data
+			}
+
+			@Override
+			public void flush() throws IOException {
+				failed.countDown();
+				throw new IOException("Broken pipe");
+			}
+
+			@Override
+			public void close() {
+				// Do nothing
+			}
+		});
+		assertTrue(failed.await(5, TimeUnit.SECONDS));
+		final StringWriter out = new StringWriter();
+		writer.setOutput(out);
+		assertTrue(awaitOutput(out, expected.toString()));
+	}
+
+	static Message message(final int index) {
+		final Message message = new Message();
+		message.setTo("user@localhost");
+		message.setBody(Integer.toString(index));
+		return message;
+	}
+
+	static boolean awaitOutput(final StringWriter out, final String expected) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!out.toString().equals(expected)) {
+			if (System.nanoTime() > deadline) {
+				assertEquals(expected, out.toString());
+			}
+			Thread.sleep(5);
+		}
+		return true;
+	}
+
+	private static Thread findWriterThread(final PacketWriter writer) {
+		for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals(writer.getThreadName()) && thread.isAlive()) {
+				return thread;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,204 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.whack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.component.ComponentException;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Message;
+
+/**
+ * Tests of the states a connection goes through when it is lost and
+ * reestablished.
+ */
+public class ReconnectTest {
+
+	private StandInServer server;
+	private ExternalComponentManager manager;
+	private final TestComponent component = new TestComponent();
+	private final List<String> transitions = Collections.synchronizedList(new ArrayList<String>());
+	private final List<Long> delays = Collections.synchronizedList(new ArrayList<Long>());
+
+	@Before
+	public void setUp() throws Exception {
+		server = new StandInServer();
+		manager = new ExternalComponentManager("127.0.0.1", server.getPort());
+		manager.setDefaultSecretKey("secret");
+		manager.setServerName("localhost");
+		manager.setReconnectDelay(10);
+		manager.setMaxReconnectDelay(40);
+		manager.setReconnectJitter(0);
+		manager.addConnectionListener(new ConnectionListener() {
+			@Override
+			public void connectionStateChanged(final ExternalComponent component, final ExternalComponentManager.ConnectionState previous,
+					final ExternalComponentManager.ConnectionState state) {
+				transitions.add(previous + ">" + state);
+			}
+
+			@Override
+			public void reconnectScheduled(final ExternalComponent component, final int attempt, final long delay) {
+				delays.add(delay);
+			}
+		});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		manager.removeComponent("test");
+		server.close();
+	}
+
+	@Test
+	public void reconnectsWithBackoff() throws Exception {
+		manager.addComponent("test", component);
+		final ExternalComponent external = manager.getExternalComponent("test");
+		assertEquals(ExternalComponentManager.ConnectionState.CONNECTED, external.getConnectionState());
+		assertEquals(1, component.starts);
+		transitions.clear();
+
+		server.setRefusing(true);
+		server.dropConnections();
+		awaitAttempts(external, 5);
+		assertEquals(ExternalComponentManager.ConnectionState.DISCONNECTED, external.getConnectionState());
+		assertEquals(1, component.shutdowns);
+		// Every failed attempt goes through the connecting state
+		assertEquals("CONNECTED>DISCONNECTED", transitions.get(0));
+		for (int i = 1; i + 1 < transitions.size(); i += 2) {
+			assertEquals("DISCONNECTED>CONNECTING", transitions.get(i));
+			assertEquals("CONNECTING>DISCONNECTED", transitions.get(i + 1));
+		}
+		// The delay doubles up to the maximum
+		assertEquals(Long.valueOf(10), delays.get(0));
+		assertEquals(Long.valueOf(20), delays.get(1));
+		assertEquals(Long.valueOf(40), delays.get(2));
+		assertEquals(Long.valueOf(40), delays.get(3));
+
+		server.setRefusing(false);
+		awaitState(external, ExternalComponentManager.ConnectionState.CONNECTED);
+		// The component is started again once the connection is up
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (component.starts < 2 && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(2, component.starts);
+		assertEquals("CONNECTING>CONNECTED", transitions.get(transitions.size() - 1));
+		assertEquals(0, external.getReconnectAttempts());
+	}
+
+	@Test
+	public void shutdownStopsReconnecting() throws Exception {
+		manager.addComponent("test", component);
+		final ExternalComponent external = manager.getExternalComponent("test");
+		server.setRefusing(true);
+		server.dropConnections();
+		awaitAttempts(external, 2);
+
+		manager.removeComponent("test");
+		assertEquals(ExternalComponentManager.ConnectionState.SHUTDOWN, external.getConnectionState());
+		final int scheduled = delays.size();
+		Thread.sleep(200);
+		assertEquals("Reconnected after the shutdown", scheduled, delays.size());
+		assertEquals(ExternalComponentManager.ConnectionState.SHUTDOWN, external.getConnectionState());
+	}
+
+	@Test
+	public void stalledWriteIsDetectedWithoutSending() throws Exception {
+		manager.setWriteTimeout(200);
+		manager.setTimeoutResolution(20);
+		manager.addComponent("test", component);
+		server.setReading(false);
+		// Fill the socket buffers so that the writer blocks, without filling
+		// the send queue
+		final StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 65536; i++) {
+			body.append('x');
+		}
+		for (int i = 0; i < 200; i++) {
+			final Message message = new Message();
+			message.setTo("user@localhost");
+			message.setBody(body.toString());
+			manager.sendPacket(component, message);
+		}
+		// The sweep drops the stalled connection and the component reconnects
+		assertTrue(server.awaitHandshakes(2, 5000));
+		server.setReading(true);
+	}
+
+	@Test
+	public void queryFailsRightAwayWhileDisconnected() throws Exception {
+		manager.addComponent("test", component);
+		final ExternalComponent external = manager.getExternalComponent("test");
+		server.setRefusing(true);
+		server.dropConnections();
+		awaitAttempts(external, 1);
+
+		final IQ query = new IQ(IQ.Type.get);
+		query.setTo("localhost");
+		try {
+			manager.queryAsync(component, query, 60000).get(1, TimeUnit.SECONDS);
+			fail("The query did not fail");
+		} catch (final ExecutionException e) {
+			assertTrue(e.getCause() instanceof ComponentException);
+		}
+	}
+
+	@Test
+	public void jitterShortensTheDelay() {
+		manager.setReconnectDelay(1000);
+		manager.setMaxReconnectDelay(60000);
+		manager.setReconnectJitter(0.5);
+		for (int i = 0; i < 100; i++) {
+			final long delay = manager.getReconnectDelay(2);
+			assertTrue(delay >= 2000 && delay <= 4000);
+		}
+		assertEquals(60000, manager.getReconnectDelay(30), 30000);
+	}
+
+	private static void awaitAttempts(final ExternalComponent external, final int attempts) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (external.getReconnectAttempts() < attempts) {
+			assertTrue("No reconnection attempts", System.nanoTime() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	private static void awaitState(final ExternalComponent external, final ExternalComponentManager.ConnectionState state)
+			throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (external.getConnectionState() != state) {
+			assertTrue("The connection did not reach " + state, System.nanoTime() < deadline);
+			Thread.sleep(5);
+		}
+	}
+}
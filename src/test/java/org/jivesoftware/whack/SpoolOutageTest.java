@@ -0,0 +1,102 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.whack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xmpp.packet.Message;
+
+/**
+ * Tests that a component with a spool keeps the packets sent during an outage
+ * longer than the time to live of the reconnect buffer.
+ */
+public class SpoolOutageTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private StandInServer server;
+	private ExternalComponentManager manager;
+	private TestComponent component;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new StandInServer();
+		manager = new ExternalComponentManager("127.0.0.1", server.getPort());
+		manager.setDefaultSecretKey("secret");
+		manager.setServerName("localhost");
+		manager.setReconnectDelay(20);
+		manager.setMaxReconnectDelay(50);
+		manager.setReconnectBufferTtl(100);
+		manager.setSpoolDirectory(folder.getRoot());
+		component = new TestComponent();
+		manager.addComponent("test", component);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		manager.removeComponent("test");
+		server.close();
+	}
+
+	@Test
+	public void packetsSentDuringLongOutageArriveInOrder() throws Exception {
+		send(0, 10);
+		assertTrue(server.awaitBodies(10, 5000));
+
+		server.setRefusing(true);
+		server.dropConnections();
+		Thread.sleep(100);
+		send(10, 50);
+		// Outlive the time to live of the reconnect buffer
+		Thread.sleep(300);
+		send(60, 50);
+		Thread.sleep(300);
+		server.setRefusing(false);
+
+		assertTrue("Packets lost during the outage", server.awaitBodies(110, 5000));
+		final List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 110; i++) {
+			expected.add(Integer.toString(i));
+		}
+		assertEquals(expected, server.getBodies());
+	}
+
+	private void send(final int first, final int count) throws Exception {
+		for (int i = first; i < first + count; i++) {
+			final Message message = new Message();
+			message.setFrom("test.localhost");
+			message.setTo("user@localhost");
+			message.setBody(Integer.toString(i));
+			manager.sendPacket(component, message);
+		}
+	}
+}
@@ -0,0 +1,280 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.whack;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * XMPP server that accepts every component handshake, records what the
+ * components send and lets tests drop or refuse connections. Listens on the
+ * loopback interface or on a Unix domain socket.
+ */
+class StandInServer {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Pattern BODY = Pattern.compile("<body>([^<]*)</body>");
+
+	private final ServerSocketChannel serverChannel;
+	private Thread acceptor;
+	private final List<SocketChannel> clients = new CopyOnWriteArrayList<SocketChannel>();
+	private final StringBuffer received = new StringBuffer();
+	private final AtomicInteger handshakes = new AtomicInteger();
+	private volatile boolean refusing = false;
+	private volatile boolean reading = true;
+
+	/**
+	 * Starts a server listening on a free port of the loopback interface.
+	 */
+	StandInServer() throws IOException {
+		this(ServerSocketChannel.open());
+		serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		start();
+	}
+
+	private StandInServer(final ServerSocketChannel serverChannel) {
+		this.serverChannel = serverChannel;
+	}
+
+	/**
+	 * Starts a server listening on a Unix domain socket. The channel must be
+	 * bound already.
+	 */
+	static StandInServer listen(final ServerSocketChannel serverChannel) {
+		final StandInServer server = new StandInServer(serverChannel);
+		server.start();
+		return server;
+	}
+
+	private void start() {
+		acceptor = new Thread("Stand-in server") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final SocketChannel client = serverChannel.accept();
+						if (refusing) {
+							client.close();
+							continue;
+						}
+						clients.add(client);
+						final Thread reader = new Thread("Stand-in server client") {
+							@Override
+							public void run() {
+								serve(client);
+							}
+						};
+						reader.setDaemon(true);
+						reader.start();
+					}
+				} catch (final IOException e) {
+					// The server was closed
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private void serve(final SocketChannel client) {
+		try {
+			readUntil(client, ">");
+			write(client, "<stream:stream xmlns='jabber:component:accept' xmlns:stream='http://etherx.jabber.org/streams'"
+					+ " id='stand-in' from='test.localhost'>");
+			readUntil(client, "</handshake>");
+			write(client, "<handshake/>");
+			handshakes.incrementAndGet();
+			final ByteBuffer buffer = ByteBuffer.allocate(65536);
+			while (awaitReading(client) && client.read(buffer) >= 0) {
+				buffer.flip();
+				received.append(UTF8.decode(buffer));
+				buffer.clear();
+			}
+		} catch (final IOException e) {
+			// The connection was dropped
+		} finally {
+			clients.remove(client);
+			try {
+				client.close();
+			} catch (final IOException e) {
+				// Do nothing
+			}
+		}
+	}
+
+	/**
+	 * Waits while the server does not read, which lets the socket buffers of
+	 * a connection fill up.
+	 *
+	 * @return false if the connection was closed meanwhile.
+	 */
+	private boolean awaitReading(final SocketChannel client) {
+		while (!reading && client.isOpen()) {
+			try {
+				Thread.sleep(5);
+			} catch (final InterruptedException e) {
+				return false;
+			}
+		}
+		return client.isOpen();
+	}
+
+	private static void readUntil(final SocketChannel client, final String end) throws IOException {
+		final StringBuilder text = new StringBuilder();
+		final ByteBuffer buffer = ByteBuffer.allocate(1);
+		while (text.length() < end.length() || !text.substring(text.length() - end.length()).equals(end)) {
+			buffer.clear();
+			if (client.read(buffer) < 0) {
+				throw new EOFException();
+			}
+			text.append((char) buffer.get(0));
+		}
+	}
+
+	private static void write(final SocketChannel client, final String xml) throws IOException {
+		final ByteBuffer buffer = UTF8.encode(xml);
+		while (buffer.hasRemaining()) {
+			client.write(buffer);
+		}
+	}
+
+	int getPort() {
+		return ((InetSocketAddress) serverChannel.socket().getLocalSocketAddress()).getPort();
+	}
+
+	/**
+	 * Returns the number of connections that completed the handshake.
+	 */
+	int getHandshakes() {
+		return handshakes.get();
+	}
+
+	/**
+	 * Returns the number of connections currently open.
+	 */
+	int getConnectionCount() {
+		return clients.size();
+	}
+
+	/**
+	 * Returns the bodies of the messages received on all connections, in the
+	 * order they arrived.
+	 */
+	List<String> getBodies() {
+		final List<String> bodies = new ArrayList<String>();
+		final Matcher matcher = BODY.matcher(received.toString());
+		while (matcher.find()) {
+			bodies.add(matcher.group(1));
+		}
+		return bodies;
+	}
+
+	/**
+	 * Waits until the messages received hold a number of bodies.
+	 */
+	boolean awaitBodies(final int count, final long timeout) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		while (getBodies().size() < count) {
+			if (System.nanoTime() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until a number of connections completed the handshake.
+	 */
+	boolean awaitHandshakes(final int count, final long timeout) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		while (handshakes.get() < count) {
+			if (System.nanoTime() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	/**
+	 * Sends a stanza to every connected component.
+	 */
+	void send(final String xml) throws IOException {
+		for (final SocketChannel client : clients) {
+			write(client, xml);
+		}
+	}
+
+	/**
+	 * Closes new connections right after accepting them while true.
+	 */
+	void setRefusing(final boolean refusing) {
+		this.refusing = refusing;
+	}
+
+	/**
+	 * Stops reading from the connections while false, as if the server were
+	 * stuck.
+	 */
+	void setReading(final boolean reading) {
+		this.reading = reading;
+	}
+
+	/**
+	 * Closes the open connections, as if the server had crashed.
+	 */
+	void dropConnections() throws IOException {
+		for (final SocketChannel client : clients) {
+			clients.remove(client);
+			client.close();
+		}
+	}
+
+	/**
+	 * Stops listening and closes the open connections.
+	 */
+	void close() throws IOException {
+		serverChannel.close();
+		// The socket is only closed once the thread blocked accepting on it
+		// was woken up, so it could still accept connections until then
+		try {
+			acceptor.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		dropConnections();
+	}
+}
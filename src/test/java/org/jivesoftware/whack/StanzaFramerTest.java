@@ -0,0 +1,121 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.whack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Tests of the scans of the raw stanzas returned by the framer.
+ */
+public class StanzaFramerTest {
+
+	private static final String HEADER = "<stream:stream xmlns='jabber:component:accept' xmlns:stream='http://etherx.jabber.org/streams'>";
+
+	@Test
+	public void splitsStanzas() throws IOException {
+		final StanzaFramer framer = framer("<message><body>a &lt; b</body></message><presence/></stream:stream>");
+		assertEquals(StanzaFramer.STANZA, framer.next());
+		assertTrue(framer.isElement("message"));
+		assertEquals(StanzaFramer.STANZA, framer.next());
+		assertTrue(framer.isElement("presence"));
+		assertEquals(StanzaFramer.STREAM_END, framer.next());
+	}
+
+	@Test
+	public void readsTheThreadOfTheMessage() throws IOException {
+		final StanzaFramer framer = stanza("<message from='a@b/c'><body>hi</body><thread>t&amp;1</thread></message>");
+		assertEquals("t&1", framer.childText("thread"));
+		assertNull(framer.childText("subject"));
+	}
+
+	@Test
+	public void ignoresNestedElements() throws IOException {
+		final StanzaFramer framer = stanza("<message><event xmlns='http://jabber.org/protocol/pubsub#event'>"
+				+ "<items><item><entry><thread>nested</thread></entry></item></items></event></message>");
+		assertNull(framer.childText("thread"));
+		assertTrue(framer.declaresNamespace("http://jabber.org/protocol/pubsub#event"));
+		assertFalse(framer.declaresNamespace("jabber:x:nested"));
+
+		final StanzaFramer after = stanza("<message><x xmlns='jabber:x:data'><thread>nested</thread></x><thread>top</thread></message>");
+		assertEquals("top", after.childText("thread"));
+	}
+
+	@Test
+	public void ignoresText() throws IOException {
+		final StanzaFramer framer = stanza("<message><body>xmlns='http://jabber.org/protocol/chatstates' &lt;thread>t&lt;/thread></body>"
+				+ "<!-- <thread>c</thread> --><![CDATA[<active xmlns='http://jabber.org/protocol/chatstates'/>]]></message>");
+		assertFalse(framer.declaresNamespace("http://jabber.org/protocol/chatstates"));
+		assertNull(framer.childText("thread"));
+	}
+
+	@Test
+	public void readsNamespacesOfChildren() throws IOException {
+		final StanzaFramer framer = stanza("<message to='x>y'><body>hi</body><composing xmlns=\"http://jabber.org/protocol/chatstates\"/></message>");
+		assertTrue(framer.declaresNamespace("http://jabber.org/protocol/chatstates"));
+		assertFalse(framer.declaresNamespace("http://jabber.org/protocol/chat"));
+		assertFalse(stanza("<presence/>").declaresNamespace("jabber:client"));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsOversizedStanzas() throws IOException {
+		final StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			body.append("0123456789");
+		}
+		final StanzaFramer framer = new StanzaFramer(64, 1024);
+		final ByteArrayInputStream in = new ByteArrayInputStream((HEADER + "<message><body>" + body + "</body></message>").getBytes("UTF-8"));
+		while (framer.read(in) >= 0) {
+			while (framer.next() != StanzaFramer.NEED_DATA) {
+				// Drain the frames
+			}
+		}
+	}
+
+	private static StanzaFramer stanza(final String stanza) throws IOException {
+		final StanzaFramer framer = framer(stanza);
+		assertEquals(StanzaFramer.STANZA, framer.next());
+		return framer;
+	}
+
+	/**
+	 * Returns a framer that read the stream header followed by the given
+	 * data.
+	 */
+	private static StanzaFramer framer(final String data) throws IOException {
+		final StanzaFramer framer = new StanzaFramer(16, 64 * 1024);
+		final ByteArrayInputStream in = new ByteArrayInputStream((HEADER + data).getBytes("UTF-8"));
+		int read;
+		do {
+			read = framer.read(in);
+		} while (read > 0 && in.available() > 0);
+		assertEquals(StanzaFramer.STREAM_START, framer.next());
+		return framer;
+	}
+}
@@ -0,0 +1,70 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.whack;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.xmpp.component.Component;
+import org.xmpp.component.ComponentManager;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+
+/**
+ * Component that keeps the packets it receives and counts its starts.
+ */
+class TestComponent implements Component {
+
+	final BlockingQueue<Packet> received = new LinkedBlockingQueue<Packet>();
+	volatile int starts = 0;
+	volatile int shutdowns = 0;
+
+	@Override
+	public String getName() {
+		return "test";
+	}
+
+	@Override
+	public String getDescription() {
+		return "Test component";
+	}
+
+	@Override
+	public void processPacket(final Packet packet) {
+		received.add(packet);
+	}
+
+	@Override
+	public void initialize(final JID jid, final ComponentManager componentManager) {
+		// Nothing to do
+	}
+
+	@Override
+	public void start() {
+		starts++;
+	}
+
+	@Override
+	public void shutdown() {
+		shutdowns++;
+	}
+}
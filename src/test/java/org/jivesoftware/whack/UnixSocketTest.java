@@ -0,0 +1,138 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.whack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xmpp.packet.Message;
+
+/**
+ * Tests that components connect to a co-located server through its Unix
+ * domain socket and fall back to TCP without it.
+ */
+public class UnixSocketTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private StandInServer tcpServer;
+	private StandInServer unixServer;
+	private File socket;
+	private ExternalComponentManager manager;
+	private final TestComponent component = new TestComponent();
+
+	@Before
+	public void setUp() throws Exception {
+		Assume.assumeTrue(UnixDomainSocket.isSupported());
+		tcpServer = new StandInServer();
+		socket = new File(folder.getRoot(), "xmpp.sock");
+		manager = new ExternalComponentManager("127.0.0.1", tcpServer.getPort());
+		manager.setDefaultSecretKey("secret");
+		manager.setServerName("localhost");
+		manager.setUnixSocketPath(socket.getPath());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (manager != null) {
+			manager.removeComponent("test");
+		}
+		if (unixServer != null) {
+			unixServer.close();
+		}
+		if (tcpServer != null) {
+			tcpServer.close();
+		}
+	}
+
+	@Test
+	public void connectsThroughTheSocket() throws Exception {
+		assertExchangesThroughTheSocket();
+	}
+
+	@Test
+	public void reactorConnectsThroughTheSocket() throws Exception {
+		manager.setTransport(ExternalComponentManager.Transport.REACTOR);
+		manager.setReactorThreads(1);
+		assertExchangesThroughTheSocket();
+	}
+
+	@Test
+	public void fallsBackToTcpWithoutTheSocket() throws Exception {
+		manager.addComponent("test", component);
+		assertTrue(tcpServer.awaitHandshakes(1, 5000));
+		send(5);
+		assertTrue(tcpServer.awaitBodies(5, 5000));
+	}
+
+	private void assertExchangesThroughTheSocket() throws Exception {
+		unixServer = StandInServer.listen(bindUnixSocket(socket));
+		manager.addComponent("test", component);
+		assertTrue(unixServer.awaitHandshakes(1, 5000));
+		send(5);
+		assertTrue(unixServer.awaitBodies(5, 5000));
+
+		unixServer.send("<message from='user@localhost/r' to='test.localhost'><body>in</body></message>");
+		final Message received = (Message) component.received.poll(5, TimeUnit.SECONDS);
+		assertNotNull(received);
+		assertEquals("in", received.getBody());
+		assertEquals(0, tcpServer.getHandshakes());
+	}
+
+	private void send(final int count) {
+		for (int i = 0; i < count; i++) {
+			final Message message = new Message();
+			message.setFrom("test.localhost");
+			message.setTo("user@localhost");
+			message.setBody(Integer.toString(i));
+			manager.sendPacket(component, message);
+		}
+	}
+
+	/**
+	 * Binds a server channel to a Unix domain socket. The channels are looked
+	 * up at runtime since they need Java 16.
+	 */
+	private static ServerSocketChannel bindUnixSocket(final File path) throws Exception {
+		final ServerSocketChannel channel = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null,
+				StandardProtocolFamily.valueOf("UNIX"));
+		final SocketAddress address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class)
+				.invoke(null, path.getPath());
+		channel.bind(address);
+		return channel;
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.whack.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests of the ordering of the tasks of a striped executor.
+ */
+public class StripedExecutorTest {
+
+	private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	@Test
+	public void tasksWithTheSameKeyRunInOrder() throws Exception {
+		final StripedExecutor executor = new StripedExecutor(pool, 3);
+		final int keys = 8;
+		final int tasks = 2000;
+		final int[] next = new int[keys];
+		final AtomicInteger[] running = new AtomicInteger[keys];
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		final CountDownLatch done = new CountDownLatch(keys * tasks);
+		final List<Thread> producers = new ArrayList<Thread>();
+		for (int k = 0; k < keys; k++) {
+			final int key = k;
+			running[key] = new AtomicInteger();
+			producers.add(new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < tasks; i++) {
+						final int sequence = i;
+						executor.execute("key" + key, new Runnable() {
+							@Override
+							public void run() {
+								if (running[key].incrementAndGet() != 1 || next[key] != sequence) {
+									failed.set(true);
+								}
+								next[key]++;
+								running[key].decrementAndGet();
+								done.countDown();
+							}
+						});
+					}
+				}
+			});
+		}
+		for (final Thread producer : producers) {
+			producer.start();
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertTrue("Tasks of a key ran out of order or concurrently", !failed.get());
+		assertEquals(0, executor.getQueueSize());
+	}
+
+	@Test
+	public void blockedKeyDoesNotHoldUpOtherStripes() throws Exception {
+		final StripedExecutor executor = new StripedExecutor(pool, 2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch ran = new CountDownLatch(1);
+		// Integer keys 0 and 1 land on different stripes
+		executor.execute(0, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		executor.execute(1, new Runnable() {
+			@Override
+			public void run() {
+				ran.countDown();
+			}
+		});
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+		release.countDown();
+	}
+
+	@Test
+	public void busyStripeYieldsItsThread() throws Exception {
+		final ExecutorService single = Executors.newSingleThreadExecutor();
+		try {
+			final StripedExecutor executor = new StripedExecutor(single, 2);
+			final CountDownLatch release = new CountDownLatch(1);
+			final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+			final CountDownLatch done = new CountDownLatch(201);
+			executor.execute(0, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						release.await();
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			for (int i = 0; i < 200; i++) {
+				executor.execute(0, record(order, 0, done));
+			}
+			executor.execute(1, record(order, 1, done));
+			release.countDown();
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertTrue("The busy stripe did not yield", order.indexOf(1) < 200);
+		} finally {
+			single.shutdownNow();
+		}
+	}
+
+	@Test
+	public void failingTaskDoesNotStopTheStripe() throws Exception {
+		final StripedExecutor executor = new StripedExecutor(pool, 1);
+		final CountDownLatch ran = new CountDownLatch(1);
+		executor.execute("key", new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException("Expected by the test");
+			}
+		});
+		executor.execute("key", new Runnable() {
+			@Override
+			public void run() {
+				ran.countDown();
+			}
+		});
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+	}
+
+	private static Runnable record(final List<Integer> order, final int key, final CountDownLatch done) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				order.add(key);
+				done.countDown();
+			}
+		};
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.whack.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests of the scheduled and submitted tasks of the task engine.
+ */
+public class TaskEngineTest {
+
+	@Test
+	public void taskCancelledOnItsFirstRunIsNotRunAgain() throws Exception {
+		final TaskEngine engine = TaskEngine.getInstance();
+		for (int i = 0; i < 200; i++) {
+			final AtomicInteger runs = new AtomicInteger();
+			final CountDownLatch ran = new CountDownLatch(1);
+			// With no delay the task may run, and cancel itself, before its
+			// future has been assigned
+			engine.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					runs.incrementAndGet();
+					TaskEngine.getInstance().cancelScheduledTask(this);
+					ran.countDown();
+				}
+			}, 0, 1);
+			ran.await(5, TimeUnit.SECONDS);
+			Thread.sleep(5);
+			assertEquals(1, runs.get());
+		}
+		assertEquals(0, engine.getScheduledTaskCount());
+	}
+
+	@Test
+	public void callerRunsTaskOnceWorkersAndQueueAreFull() throws Exception {
+		final TaskEngine engine = TaskEngine.getInstance();
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(TaskEngine.MAX_WORKER_THREADS);
+		try {
+			for (int i = 0; i < TaskEngine.MAX_WORKER_THREADS; i++) {
+				engine.submit(new Runnable() {
+					@Override
+					public void run() {
+						started.countDown();
+						try {
+							release.await();
+						} catch (final InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				});
+			}
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			final Runnable noop = new Runnable() {
+				@Override
+				public void run() {
+					// Nothing to do
+				}
+			};
+			for (int i = 0; i < TaskEngine.MAX_QUEUED_TASKS; i++) {
+				engine.submit(noop);
+			}
+			final AtomicReference<Thread> runner = new AtomicReference<Thread>();
+			engine.submit(new Runnable() {
+				@Override
+				public void run() {
+					runner.set(Thread.currentThread());
+				}
+			});
+			assertSame(Thread.currentThread(), runner.get());
+		} finally {
+			release.countDown();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright 2005 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jivesoftware.whack.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests of the expiry and cancellation of timeouts in a timing wheel.
+ */
+public class TimingWheelTest {
+
+	@Test
+	public void timeoutsExpireInTheirTick() throws Exception {
+		final TimingWheel<String> wheel = new TimingWheel<String>(10, TimeUnit.MILLISECONDS, 8);
+		wheel.schedule("short", 20, TimeUnit.MILLISECONDS);
+		wheel.schedule("long", 300, TimeUnit.MILLISECONDS);
+		assertEquals(2, wheel.size());
+		assertTrue(wheel.advance().isEmpty());
+
+		final List<String> expired = advanceFor(wheel, 150);
+		assertEquals(1, expired.size());
+		assertEquals("short", expired.get(0));
+		assertEquals(1, wheel.size());
+
+		// The long timeout spans several turns of the wheel
+		expired.addAll(advanceFor(wheel, 250));
+		assertEquals(2, expired.size());
+		assertEquals("long", expired.get(1));
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void timeoutsNeverExpireEarly() throws Exception {
+		final TimingWheel<String> wheel = new TimingWheel<String>(10, TimeUnit.MILLISECONDS, 16);
+		final long scheduled = System.nanoTime();
+		wheel.schedule("item", 55, TimeUnit.MILLISECONDS);
+		while (wheel.advance().isEmpty()) {
+			Thread.sleep(1);
+		}
+		assertTrue(System.nanoTime() - scheduled >= TimeUnit.MILLISECONDS.toNanos(55));
+	}
+
+	@Test
+	public void cancelledTimeoutsDoNotExpire() throws Exception {
+		final TimingWheel<Integer> wheel = new TimingWheel<Integer>(10, TimeUnit.MILLISECONDS, 4);
+		final List<TimingWheel.Timeout<Integer>> timeouts = new ArrayList<TimingWheel.Timeout<Integer>>();
+		for (int i = 0; i < 10; i++) {
+			// Several timeouts share a bucket, so cancel from the middle of it
+			timeouts.add(wheel.schedule(i, 30, TimeUnit.MILLISECONDS));
+		}
+		assertTrue(timeouts.get(3).cancel());
+		assertTrue(timeouts.get(0).cancel());
+		assertTrue(timeouts.get(9).cancel());
+		assertFalse(timeouts.get(3).cancel());
+		assertEquals(7, wheel.size());
+
+		final List<Integer> expired = advanceFor(wheel, 100);
+		assertEquals(7, expired.size());
+		assertFalse(expired.contains(0));
+		assertFalse(expired.contains(3));
+		assertFalse(expired.contains(9));
+		assertEquals(0, wheel.size());
+		// Expired timeouts can no longer be cancelled
+		assertFalse(timeouts.get(5).cancel());
+	}
+
+	private static <T> List<T> advanceFor(final TimingWheel<T> wheel, final long millis) throws InterruptedException {
+		final List<T> expired = new ArrayList<T>();
+		final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		while (System.nanoTime() < end) {
+			expired.addAll(wheel.advance());
+			Thread.sleep(5);
+		}
+		return expired;
+	}
+}